@@ -0,0 +1,480 @@
+import java.util.*;
+
+// **********************************************************************
+// BlockLayout reorders the basic blocks of an IRFunction so that the
+// likely way out of each block is to fall through into the next one,
+// instead of the order the statements were lowered in.
+//
+// Jumps are threaded first: a jump to a block that only jumps on goes
+// straight to where that one goes, and "if c goto L; goto M; L:" becomes
+// "if !c goto M; L:", so no block is just a jump in the way of a fall
+// through.
+//
+// Each edge then gets a weight: the number of times it is taken in the
+// profile if there is one (see Profile), otherwise an estimate.  Without
+// a profile, a branch back into a loop, or one staying in a loop, is
+// taken PROB_LIKELY of the time, and a branch out of a loop the rest;
+// other branches go either way half the time.  The entry runs once, a
+// block as often as the edges into it are taken, and the head of a loop
+// LOOP_WEIGHT times as often as the loop is entered; an edge weighs the
+// frequency of its block times the chance of the branch taking it.
+//
+// Blocks are then chained, heaviest forward edge first: an edge from
+// the last block of a chain to the first block of another joins the
+// two (back edges are left alone, loops being tested at the bottom
+// already).  The chain with the entry comes first, then each time the
+// chain entered along the heaviest edge from the blocks placed so far
+// (on ties, one in the same loop as the last block placed, or one that
+// block used to fall into).  Laying the chains out, a conditional jump
+// to the next block is turned around (its condition negated, and its
+// target the block it used to fall into), jumps to the next block go
+// away, and a jump is added where a block used to fall into one that
+// is no longer next.  A jump to a tiny block that just returns (at most
+// TINY_RETURN quads) is replaced by a copy of the block.
+// **********************************************************************
+
+public class BlockLayout {
+
+    // estimated times a loop body runs per entry into the loop //
+    private static final double LOOP_WEIGHT = 8;
+    // estimated chance of staying in a loop //
+    private static final double PROB_LIKELY = 0.9;
+    // largest returning block copied in place of a jump to it //
+    private static final int TINY_RETURN = 2;
+
+    // **********************************************************************
+    // arrange
+    //    lay out the blocks of fn
+    // **********************************************************************
+    public static void arrange(IRFunction fn) {
+        threadJumps(fn);
+        CFG cfg = new CFG(fn);
+        List<BasicBlock> blocks = cfg.blocks();
+        if (blocks.size() < 2)
+            return;
+
+        // every block but the entry gets a label, to jump to if need be
+        // (the unused ones are dropped by DeadCode) //
+        Map<BasicBlock, String> labels = new HashMap<BasicBlock, String>();
+        for (BasicBlock b : blocks) {
+            if (b.label() != null)
+                labels.put(b, b.label());
+            else if (b != cfg.entry())
+                labels.put(b, fn.newLabel());
+        }
+
+        double[][] weights = edgeWeights(cfg);
+        List<BasicBlock> order = order(cfg, chains(cfg, weights), weights);
+        fn.setCode(layOut(blocks, order, labels));
+    }
+
+    // **********************************************************************
+    // threadJumps
+    //    send jumps to a jump straight on, and branch over a jump by
+    //    branching on the opposite condition instead
+    // **********************************************************************
+    private static void threadJumps(IRFunction fn) {
+        List<Quad> code = fn.code();
+        // where each label that is just a jump goes //
+        Map<String, String> jumps = new HashMap<String, String>();
+        for (int k = 0; k + 1 < code.size(); k++) {
+            if (code.get(k) instanceof LabelQuad &&
+                code.get(k + 1) instanceof JumpQuad)
+                jumps.put(((LabelQuad)code.get(k)).label(),
+                          code.get(k + 1).target());
+        }
+
+        List<Quad> threaded = new ArrayList<Quad>();
+        for (int k = 0; k < code.size(); k++) {
+            Quad q = code.get(k);
+            String target = q.target();
+            if (target != null && !target.equals(follow(jumps, target)))
+                q.replaceLabel(target, follow(jumps, target));
+
+            if (q instanceof CondJumpQuad && k + 2 < code.size() &&
+                code.get(k + 1) instanceof JumpQuad &&
+                code.get(k + 2) instanceof LabelQuad &&
+                ((LabelQuad)code.get(k + 2)).label().equals(q.target())) {
+                CondJumpQuad cj = (CondJumpQuad)q;
+                q = new CondJumpQuad(Quad.negate(cj.op()), cj.src1(),
+                                     cj.src2(),
+                                     follow(jumps, code.get(k + 1).target()));
+                q.setCount(cj.count());
+                k++; // the jump //
+            }
+            threaded.add(q);
+        }
+        fn.setCode(threaded);
+    }
+
+    // where a jump to label ends up, following jumps (but not around a
+    // loop of them) //
+    private static String follow(Map<String, String> jumps, String label) {
+        Set<String> seen = new HashSet<String>();
+        while (jumps.containsKey(label) && seen.add(label))
+            label = jumps.get(label);
+        return label;
+    }
+
+    // **********************************************************************
+    // edgeWeights
+    //    the weight of each edge, by block and successor
+    // **********************************************************************
+    private static double[][] edgeWeights(CFG cfg) {
+        List<BasicBlock> blocks = cfg.blocks();
+        double[][] prob = isProfiled(blocks) ? null : probabilities(cfg);
+        double[] freq = prob == null ? counts(blocks) :
+                        frequencies(cfg, prob);
+
+        double[][] weights = new double[blocks.size()][];
+        for (BasicBlock b : blocks) {
+            List<BasicBlock> succs = b.succs();
+            weights[b.id()] = new double[succs.size()];
+            for (int k = 0; k < succs.size(); k++) {
+                if (prob != null)
+                    weights[b.id()][k] = freq[b.id()] * prob[b.id()][k];
+                else if (succs.size() == 1)
+                    weights[b.id()][k] = freq[b.id()];
+                else
+                    weights[b.id()][k] = Math.min(freq[b.id()],
+                                                  freq[succs.get(k).id()]);
+            }
+        }
+        return weights;
+    }
+
+    // the profiled count of each block //
+    private static double[] counts(List<BasicBlock> blocks) {
+        double[] freq = new double[blocks.size()];
+        for (BasicBlock b : blocks)
+            freq[b.id()] = count(b);
+        // blocks added since (say a preheader) run with their successor //
+        for (BasicBlock b : blocks) {
+            if (count(b) < 0 && b.succs().size() == 1)
+                freq[b.id()] = Math.max(count(b.succs().get(0)), 0);
+            else if (count(b) < 0)
+                freq[b.id()] = 0;
+        }
+        return freq;
+    }
+
+    // the count of the label, formal or jump of b (quads no pass
+    // moves), or -1 //
+    private static int count(BasicBlock b) {
+        Quad first = b.quads().get(0);
+        if ((first instanceof LabelQuad || first instanceof ArgQuad) &&
+            first.count() >= 0)
+            return first.count();
+        Quad last = b.last();
+        if (last.target() != null || last.isUnconditionalJump())
+            return last.count();
+        return -1;
+    }
+
+    private static boolean isProfiled(List<BasicBlock> blocks) {
+        for (BasicBlock b : blocks) {
+            if (count(b) >= 0)
+                return true;
+        }
+        return false;
+    }
+
+    // **********************************************************************
+    // probabilities
+    //    the estimated chance of each block leaving by each successor
+    // **********************************************************************
+    private static double[][] probabilities(CFG cfg) {
+        List<BasicBlock> blocks = cfg.blocks();
+        int[] index = rpoIndices(cfg);
+        int[] depth = new int[blocks.size()];
+        for (Set<BasicBlock> loop : loops(cfg, index).values()) {
+            for (BasicBlock b : loop)
+                depth[b.id()]++;
+        }
+
+        double[][] prob = new double[blocks.size()][];
+        for (BasicBlock b : blocks) {
+            List<BasicBlock> succs = b.succs();
+            prob[b.id()] = new double[succs.size()];
+            if (succs.size() == 1)
+                prob[b.id()][0] = 1;
+            if (succs.size() != 2)
+                continue;
+
+            BasicBlock succ = succs.get(0);
+            BasicBlock other = succs.get(1);
+            double p = 0.5;
+            if (isBackEdge(b, succ, index) ||
+                depth[other.id()] < depth[b.id()])
+                p = PROB_LIKELY;
+            else if (isBackEdge(b, other, index) ||
+                     depth[succ.id()] < depth[b.id()])
+                p = 1 - PROB_LIKELY;
+            prob[b.id()][0] = p;
+            prob[b.id()][1] = 1 - p;
+        }
+        return prob;
+    }
+
+    // **********************************************************************
+    // frequencies
+    //    the estimated frequency of each block, the entry running once
+    // **********************************************************************
+    private static double[] frequencies(CFG cfg, double[][] prob) {
+        int[] index = rpoIndices(cfg);
+        double[] freq = new double[cfg.blocks().size()];
+        for (BasicBlock b : cfg.reversePostorder()) {
+            double in = b == cfg.entry() ? 1 : 0;
+            boolean isHead = false;
+            for (BasicBlock pred : b.preds()) {
+                if (index[pred.id()] < 0)
+                    continue;
+                if (isBackEdge(pred, b, index))
+                    isHead = true;
+                else
+                    in += freq[pred.id()] *
+                          prob[pred.id()][pred.succs().indexOf(b)];
+            }
+            freq[b.id()] = isHead ? in * LOOP_WEIGHT : in;
+        }
+        return freq;
+    }
+
+    // the place of each block in reverse postorder (-1: unreachable) //
+    private static int[] rpoIndices(CFG cfg) {
+        int[] index = new int[cfg.blocks().size()];
+        Arrays.fill(index, -1);
+        List<BasicBlock> rpo = cfg.reversePostorder();
+        for (int k = 0; k < rpo.size(); k++)
+            index[rpo.get(k).id()] = k;
+        return index;
+    }
+
+    private static boolean isBackEdge(BasicBlock b, BasicBlock succ,
+                                      int[] index) {
+        return index[b.id()] >= 0 && index[succ.id()] <= index[b.id()];
+    }
+
+    // **********************************************************************
+    // loops
+    //    the blocks of each loop, by its head: the head, and the blocks
+    //    that get back to it without going through it
+    // **********************************************************************
+    private static Map<BasicBlock, Set<BasicBlock>> loops(CFG cfg,
+                                                          int[] index) {
+        Map<BasicBlock, Set<BasicBlock>> loops =
+            new HashMap<BasicBlock, Set<BasicBlock>>();
+        for (BasicBlock b : cfg.blocks()) {
+            for (BasicBlock head : b.succs()) {
+                if (!isBackEdge(b, head, index))
+                    continue;
+                if (!loops.containsKey(head)) {
+                    Set<BasicBlock> loop = new HashSet<BasicBlock>();
+                    loop.add(head);
+                    loops.put(head, loop);
+                }
+                Set<BasicBlock> loop = loops.get(head);
+                Deque<BasicBlock> worklist = new ArrayDeque<BasicBlock>();
+                if (loop.add(b))
+                    worklist.push(b);
+                while (!worklist.isEmpty()) {
+                    for (BasicBlock pred : worklist.pop().preds()) {
+                        if (index[pred.id()] >= 0 && loop.add(pred))
+                            worklist.push(pred);
+                    }
+                }
+            }
+        }
+        return loops;
+    }
+
+    // the head of the innermost loop around each block (-1: none) //
+    private static int[] innermostLoops(CFG cfg) {
+        int[] head = new int[cfg.blocks().size()];
+        int[] size = new int[cfg.blocks().size()];
+        Arrays.fill(head, -1);
+        for (Map.Entry<BasicBlock, Set<BasicBlock>> e :
+                 loops(cfg, rpoIndices(cfg)).entrySet()) {
+            for (BasicBlock b : e.getValue()) {
+                if (head[b.id()] < 0 || e.getValue().size() < size[b.id()]) {
+                    head[b.id()] = e.getKey().id();
+                    size[b.id()] = e.getValue().size();
+                }
+            }
+        }
+        return head;
+    }
+
+    // **********************************************************************
+    // chains
+    //    join blocks into chains along the heaviest edges; returns the
+    //    chain of each block
+    // **********************************************************************
+    private static List<List<BasicBlock>> chains(CFG cfg,
+                                                 final double[][] weights) {
+        List<BasicBlock> blocks = cfg.blocks();
+
+        // each edge as its block and the index of its successor //
+        List<int[]> edges = new ArrayList<int[]>();
+        for (BasicBlock b : blocks) {
+            for (int k = 0; k < b.succs().size(); k++) {
+                BasicBlock succ = b.succs().get(k);
+                // loops are already tested at the bottom: a chain along
+                // a back edge would put the test above the body //
+                if (succ.id() <= b.id() || succ == cfg.entry())
+                    continue;
+                edges.add(new int[] { b.id(), k, succ.id() });
+            }
+        }
+        // heaviest first; on ties, falling through as now, then code
+        // order (so the order stays put where nothing says otherwise) //
+        Collections.sort(edges, new Comparator<int[]>() {
+            public int compare(int[] a, int[] b) {
+                int c = Double.compare(weights[b[0]][b[1]],
+                                       weights[a[0]][a[1]]);
+                if (c != 0)
+                    return c;
+                boolean aFalls = a[2] == a[0] + 1;
+                boolean bFalls = b[2] == b[0] + 1;
+                if (aFalls != bFalls)
+                    return aFalls ? -1 : 1;
+                if (a[0] != b[0])
+                    return a[0] - b[0];
+                return a[2] - b[2];
+            }
+        });
+
+        List<List<BasicBlock>> chainOf = new ArrayList<List<BasicBlock>>();
+        for (BasicBlock b : blocks) {
+            List<BasicBlock> chain = new ArrayList<BasicBlock>();
+            chain.add(b);
+            chainOf.add(chain);
+        }
+        for (int[] edge : edges) {
+            List<BasicBlock> from = chainOf.get(edge[0]);
+            List<BasicBlock> to = chainOf.get(edge[2]);
+            if (from == to || from.get(from.size() - 1).id() != edge[0] ||
+                to.get(0).id() != edge[2])
+                continue;
+            from.addAll(to);
+            for (BasicBlock b : to)
+                chainOf.set(b.id(), from);
+        }
+        return chainOf;
+    }
+
+    // **********************************************************************
+    // order
+    //    the entry's chain, then the chain entered along the heaviest
+    //    edge from the ones placed, and so on
+    // **********************************************************************
+    private static List<BasicBlock> order(CFG cfg,
+                                          List<List<BasicBlock>> chainOf,
+                                          double[][] weights) {
+        int[] loop = innermostLoops(cfg);
+        List<BasicBlock> order = new ArrayList<BasicBlock>();
+        Set<List<BasicBlock>> placed = new HashSet<List<BasicBlock>>();
+        List<BasicBlock> next = chainOf.get(cfg.entry().id());
+
+        while (next != null) {
+            order.addAll(next);
+            placed.add(next);
+            BasicBlock last = order.get(order.size() - 1);
+
+            next = null;
+            double best = -1;
+            boolean bestNear = false;
+            for (BasicBlock b : order) {
+                for (int k = 0; k < b.succs().size(); k++) {
+                    BasicBlock succ = b.succs().get(k);
+                    List<BasicBlock> chain = chainOf.get(succ.id());
+                    if (placed.contains(chain))
+                        continue;
+                    // in the same loop as the last block, or where b
+                    // used to fall //
+                    boolean near = loop[succ.id()] == loop[last.id()] ||
+                                   succ.id() == b.id() + 1;
+                    double w = weights[b.id()][k];
+                    if (w > best || (w == best && near && !bestNear)) {
+                        next = chain;
+                        best = w;
+                        bestNear = near;
+                    }
+                }
+            }
+            // blocks nothing reaches, in code order //
+            for (BasicBlock b : cfg.blocks()) {
+                if (next == null && !placed.contains(chainOf.get(b.id())))
+                    next = chainOf.get(b.id());
+            }
+        }
+        return order;
+    }
+
+    // **********************************************************************
+    // layOut
+    //    the code of the blocks in order, with the jumps fixed up
+    // **********************************************************************
+    private static List<Quad> layOut(List<BasicBlock> blocks,
+                                     List<BasicBlock> order,
+                                     Map<BasicBlock, String> labels) {
+        Map<String, BasicBlock> byLabel = new HashMap<String, BasicBlock>();
+        for (Map.Entry<BasicBlock, String> e : labels.entrySet())
+            byLabel.put(e.getValue(), e.getKey());
+
+        List<Quad> code = new ArrayList<Quad>();
+        for (int k = 0; k < order.size(); k++) {
+            BasicBlock b = order.get(k);
+            BasicBlock next = k + 1 < order.size() ? order.get(k + 1) : null;
+            List<Quad> quads = new ArrayList<Quad>(b.quads());
+            if (b.label() == null && labels.containsKey(b))
+                quads.add(0, new LabelQuad(labels.get(b)));
+
+            Quad last = quads.get(quads.size() - 1);
+            // where control used to fall to (null: off the end) //
+            BasicBlock fall = null;
+            if (!last.isUnconditionalJump() && b.id() + 1 < blocks.size())
+                fall = blocks.get(b.id() + 1);
+            boolean fallsOff = !last.isUnconditionalJump() && fall == null;
+
+            if (last instanceof CondJumpQuad && fall != null &&
+                fall != next && byLabel.get(last.target()) == next) {
+                CondJumpQuad cj = (CondJumpQuad)last;
+                Quad turned = new CondJumpQuad(Quad.negate(cj.op()),
+                                               cj.src1(), cj.src2(),
+                                               labels.get(fall));
+                turned.setCount(cj.count());
+                quads.set(quads.size() - 1, turned);
+                fall = next;
+            }
+            else if (last instanceof JumpQuad) {
+                quads.remove(quads.size() - 1);
+                fall = byLabel.get(last.target());
+            }
+
+            code.addAll(quads);
+            if (fall != null && fall != next)
+                code.addAll(jumpTo(fall, labels.get(fall)));
+            else if (fallsOff && next != null)
+                code.add(new ReturnQuad(null));
+        }
+        return code;
+    }
+
+    // a jump to block, or a copy of it if it is a tiny return //
+    private static List<Quad> jumpTo(BasicBlock block, String label) {
+        List<Quad> quads = new ArrayList<Quad>();
+        List<Quad> body = block.quads();
+        if (block.label() != null)
+            body = body.subList(1, body.size());
+        if (!body.isEmpty() && body.size() <= TINY_RETURN &&
+            body.get(body.size() - 1) instanceof ReturnQuad &&
+            !(body.get(0) instanceof ArgQuad)) {
+            for (Quad q : body)
+                quads.add(q.copy());
+        }
+        else
+            quads.add(new JumpQuad(label));
+        return quads;
+    }
+}
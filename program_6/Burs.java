@@ -0,0 +1,825 @@
+import java.util.*;
+
+// **********************************************************************
+// Burs selects the instructions for a function by tiling expression
+// trees with the rules of a bottom-up rewrite system (RULES, below):
+// each tree is labeled bottom-up with the cheapest way to derive each
+// nonterminal at each node, and then reduced top-down, each rule
+// generating its instructions (through InstrSelect).
+//
+// The trees come from the quads: a quad that assigns, branches on a
+// comparison or writes is the root of a tree, and a temp defined just
+// before by a quad computing a value (and defined and used nowhere else)
+// is folded into the tree in place of its use, e.g.
+//
+//     t1 = a * 4                 MOVE x
+//     t2 = t1 + b                  ADD
+//     x = t2                         MUL a 4
+//                                    b
+//
+// so a rule can cover several quads, and the value of a tree is made
+// where it ends up (x's register or frame slot, $a0 for a write).  The
+// temps folded in must have registers (RegAlloc's choice), and those
+// of the nodes not covered by a bigger rule still hold their values;
+// as quads are folded only into the quads right after them, and trees
+// are evaluated in the order of their quads, the temps in registers are
+// read and written as they were.
+//
+// Nonterminals:
+//     REG     a value in a register
+//     CON     a constant
+//     MEM     a variable or spilled temp (in memory)
+//     STMT    a tree that has been generated
+// Costs are rough R2000 cycle counts (see InstrSelect).
+// **********************************************************************
+
+public class Burs {
+
+    // **********************************************************************
+    // generate
+    //    generate the code of fn, folding the quads into trees
+    // **********************************************************************
+    public static void generate(IRFunction fn) {
+        List<Quad> code = fn.code();
+        Map<Operand, Integer> uses = new HashMap<Operand, Integer>();
+        Map<Operand, Integer> defs = new HashMap<Operand, Integer>();
+        for (Quad q : code) {
+            for (Operand op : q.uses())
+                count(uses, op);
+            count(defs, q.def());
+        }
+
+        // build trees backward, so each root takes the quads before it //
+        Node[] trees = new Node[code.size()];
+        boolean[] folded = new boolean[code.size()];
+        for (int j = code.size() - 1; j >= 0; j--) {
+            Node root = root(code.get(j), j);
+            if (root == null)
+                continue;
+            int first = fold(root, code, j, uses, defs);
+            if (!ordered(root)) {
+                root = root(code.get(j), j);
+                first = j;
+            }
+            for (int k = first; k < j; k++)
+                folded[k] = true;
+            trees[j] = root;
+            j = first;
+        }
+
+        for (int j = 0; j < code.size(); j++) {
+            if (folded[j])
+                continue;
+            if (trees[j] != null)
+                generate(trees[j]);
+            else
+                code.get(j).codeGen(fn);
+        }
+    }
+
+    // **********************************************************************
+    // generate
+    //    generate the code of q alone (as a one-quad tree)
+    // **********************************************************************
+    public static void generate(Quad q) {
+        generate(root(q, 0));
+    }
+
+    private static void generate(Node root) {
+        label(root);
+        reduce(root, STMT, null);
+    }
+
+    private static void count(Map<Operand, Integer> counts, Operand op) {
+        if (!(op instanceof Temp))
+            return;
+        Integer n = counts.get(op);
+        counts.put(op, n == null ? 1 : n + 1);
+    }
+
+    // **********************************************************************
+    // **********************************************************************
+    // TREES
+    // **********************************************************************
+    // **********************************************************************
+
+    // node kinds: roots, values made by quads, and leaves //
+    private static final int MOVE = 0;
+    private static final int CJUMP = 1;
+    private static final int WRITE = 2;
+    private static final int BIN = 3;
+    private static final int UN = 4;
+    private static final int STR = 5;
+    private static final int CONST = 6;
+    private static final int VAR = 7;      // in memory //
+    private static final int TEMP = 8;     // in a register //
+
+    private static class Node {
+        public Node(int kind, int op, int index, Node... kids) {
+            this.kind = kind;
+            this.op = op;
+            this.index = index;
+            this.kids = kids;
+        }
+
+        public boolean isLeaf() {
+            return kind >= CONST;
+        }
+
+        public int constant() {
+            return ((Const)operand).value();
+        }
+
+        int kind;
+        int op;
+        boolean wraps;        // BIN's BinOpQuad.wraps //
+        int index;            // of its quad (-1 for leaves) //
+        Node[] kids;
+        Operand operand;      // leaf's operand, MOVE's destination, or
+                              // the temp a folded value was for //
+        String label;         // CJUMP's target, STR's string label //
+        boolean isString;     // WRITE of a string //
+
+        int[] cost = new int[NUM_NTS];
+        Rule[] rule = new Rule[NUM_NTS];
+    }
+
+    // the tree of quad q at index (null if q isn't tiled) //
+    private static Node root(Quad q, int index) {
+        Node value = value(q, index);
+        if (value != null) {
+            Node root = new Node(MOVE, 0, index, value);
+            root.operand = q.def();
+            return root;
+        }
+        if (q instanceof CondJumpQuad) {
+            CondJumpQuad jump = (CondJumpQuad)q;
+            Node root = new Node(CJUMP, jump.op(), index, leaf(jump.src1()),
+                                 leaf(jump.src2()));
+            root.label = jump.target();
+            return root;
+        }
+        if (q instanceof WriteQuad) {
+            WriteQuad write = (WriteQuad)q;
+            Node root = new Node(WRITE, 0, index, leaf(write.src()));
+            root.isString = write.isString();
+            return root;
+        }
+        return null;
+    }
+
+    // the value computed by quad q at index (null if it isn't one) //
+    private static Node value(Quad q, int index) {
+        if (q instanceof BinOpQuad) {
+            BinOpQuad bin = (BinOpQuad)q;
+            Node value = new Node(BIN, bin.op(), index, leaf(bin.src1()),
+                                  leaf(bin.src2()));
+            value.wraps = bin.wraps();
+            return value;
+        }
+        if (q instanceof UnOpQuad) {
+            UnOpQuad un = (UnOpQuad)q;
+            return new Node(UN, un.op(), index, leaf(un.src()));
+        }
+        if (q instanceof MoveQuad)
+            return leaf(((MoveQuad)q).src());
+        if (q instanceof LoadStrQuad) {
+            Node str = new Node(STR, 0, index);
+            str.label = Codegen.data().stringLabel(((LoadStrQuad)q).strVal());
+            return str;
+        }
+        return null;
+    }
+
+    private static Node leaf(Operand op) {
+        int kind = VAR;
+        if (op instanceof Const)
+            kind = CONST;
+        else if (op instanceof Temp && ((Temp)op).reg() != null)
+            kind = TEMP;
+        Node leaf = new Node(kind, 0, -1);
+        leaf.operand = op;
+        return leaf;
+    }
+
+    // **********************************************************************
+    // fold
+    //    fold the quads before index j into root while their temps can
+    //    be; return the index of the first quad of the tree
+    // **********************************************************************
+    private static int fold(Node root, List<Quad> code, int j,
+                            Map<Operand, Integer> uses,
+                            Map<Operand, Integer> defs) {
+        int first = j;
+        while (first > 0) {
+            Quad q = code.get(first - 1);
+            Operand t = q.def();
+            // a copy of a temp would be read later than it was //
+            if (!(t instanceof Temp) || ((Temp)t).reg() == null ||
+                !Integer.valueOf(1).equals(uses.get(t)) ||
+                !Integer.valueOf(1).equals(defs.get(t)) ||
+                (q instanceof MoveQuad && ((MoveQuad)q).src() instanceof Temp))
+                break;
+            Node value = value(q, first - 1);
+            if (value == null || !replace(root, t, value))
+                break;
+            value.operand = value.isLeaf() ? value.operand : t;
+            first--;
+        }
+        return first;
+    }
+
+    // put value in place of the leaf for t in the tree of n //
+    private static boolean replace(Node n, Operand t, Node value) {
+        for (int k = 0; k < n.kids.length; k++) {
+            Node kid = n.kids[k];
+            if (kid.kind == TEMP && kid.operand == t) {
+                n.kids[k] = value;
+                return true;
+            }
+            if (replace(kid, t, value))
+                return true;
+        }
+        return false;
+    }
+
+    // are the quads of the subtrees of every node in separate stretches
+    // (so evaluating subtrees one by one keeps the order of the quads)? //
+    private static boolean ordered(Node n) {
+        List<int[]> ranges = new ArrayList<int[]>();
+        for (Node kid : n.kids) {
+            if (!ordered(kid))
+                return false;
+            if (!kid.isLeaf())
+                ranges.add(range(kid));
+        }
+        Collections.sort(ranges, new Comparator<int[]>() {
+            public int compare(int[] a, int[] b) {
+                return a[0] - b[0];
+            }
+        });
+        for (int k = 1; k < ranges.size(); k++) {
+            if (ranges.get(k - 1)[1] >= ranges.get(k)[0])
+                return false;
+        }
+        return true;
+    }
+
+    // lowest and highest quad index in the tree of n //
+    private static int[] range(Node n) {
+        int[] range = {n.index, n.index};
+        for (Node kid : n.kids) {
+            if (kid.isLeaf())
+                continue;
+            int[] r = range(kid);
+            range[0] = Math.min(range[0], r[0]);
+            range[1] = Math.max(range[1], r[1]);
+        }
+        return range;
+    }
+
+    // **********************************************************************
+    // **********************************************************************
+    // LABELING AND REDUCTION
+    // **********************************************************************
+    // **********************************************************************
+
+    private static final int REG = 0;
+    private static final int CON = 1;
+    private static final int MEM = 2;
+    private static final int STMT = 3;
+    private static final int NUM_NTS = 4;
+
+    private static final int INFINITY = Integer.MAX_VALUE / 2;
+
+    // **********************************************************************
+    // label
+    //    find the cheapest rule for each nonterminal at each node of n
+    // **********************************************************************
+    private static void label(Node n) {
+        for (Node kid : n.kids)
+            label(kid);
+        Arrays.fill(n.cost, INFINITY);
+
+        for (Rule r : RULES) {
+            if (r.chain >= 0)
+                continue;
+            int cost = match(r.pattern, n);
+            int own = cost < INFINITY ? r.cost(n) : -1;
+            if (own >= 0 && cost + own < n.cost[r.nt]) {
+                n.cost[r.nt] = cost + own;
+                n.rule[r.nt] = r;
+            }
+        }
+
+        // chain rules (nonterminal <- nonterminal) //
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Rule r : RULES) {
+                if (r.chain < 0)
+                    continue;
+                int cost = n.cost[r.chain] + r.cost(n);
+                if (cost < n.cost[r.nt]) {
+                    n.cost[r.nt] = cost;
+                    n.rule[r.nt] = r;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    // the cost of the nonterminals at the leaves of pattern p matched
+    // against n (INFINITY if it doesn't match) //
+    private static int match(Pattern p, Node n) {
+        if (p.kind != n.kind || (p.ops != null && !p.hasOp(n.op)))
+            return INFINITY;
+        int cost = 0;
+        for (int k = 0; k < p.kids.length; k++) {
+            Node kid = n.kids[k];
+            if (p.kids[k] instanceof Pattern) {
+                // a value folded in just before (see the comment at top) //
+                if (kid.isLeaf() || n.index - kid.index > 1)
+                    return INFINITY;
+                cost += match((Pattern)p.kids[k], kid);
+            }
+            else {
+                cost += kid.cost[(Integer)p.kids[k]];
+            }
+            if (cost >= INFINITY)
+                return INFINITY;
+        }
+        return cost;
+    }
+
+    // the nodes at the leaves of pattern p (matched against n) and the
+    // nonterminals they are to be reduced to //
+    private static void collect(Pattern p, Node n, List<Node> nodes,
+                                List<Integer> nts) {
+        for (int k = 0; k < p.kids.length; k++) {
+            if (p.kids[k] instanceof Pattern) {
+                collect((Pattern)p.kids[k], n.kids[k], nodes, nts);
+            }
+            else {
+                nodes.add(n.kids[k]);
+                nts.add((Integer)p.kids[k]);
+            }
+        }
+    }
+
+    // **********************************************************************
+    // reduce
+    //    generate the code deriving nonterminal nt at n, a REG in "to"
+    //    if the rule gets to choose; return the register of a REG
+    // **********************************************************************
+    private static String reduce(final Node n, int nt, String to) {
+        Rule r = n.rule[nt];
+        if (r == null)
+            throw new IllegalStateException("no rule for " + n.kind);
+
+        final List<Node> nodes = new ArrayList<Node>();
+        List<Integer> nts = new ArrayList<Integer>();
+        if (r.chain >= 0) {
+            nodes.add(n);
+            nts.add(r.chain);
+        }
+        else {
+            collect(r.pattern, n, nodes, nts);
+        }
+
+        // leaves load into $v1 (first) and $v0 //
+        String[] targets = new String[nodes.size()];
+        int scratch = 0;
+        for (int k = 0; k < nodes.size(); k++) {
+            targets[k] = r.target(n, k);
+            if (targets[k] != null)
+                continue;
+            Node kid = nodes.get(k);
+            if (!kid.isLeaf())
+                targets[k] = ((Temp)kid.operand).reg();
+            else if (nts.get(k) == REG)
+                targets[k] = scratch++ == 0 ? Codegen.V1 : Codegen.V0;
+        }
+
+        // folded values first, in the order of their quads, then leaves //
+        List<Integer> order = new ArrayList<Integer>();
+        for (int k = 0; k < nodes.size(); k++)
+            order.add(k);
+        Collections.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return key(nodes.get(a)) - key(nodes.get(b));
+            }
+
+            private int key(Node kid) {
+                return kid.isLeaf() || kid == n ? INFINITY : kid.index;
+            }
+        });
+
+        String[] regs = new String[nodes.size()];
+        for (int k : order)
+            regs[k] = reduce(nodes.get(k), nts.get(k), targets[k]);
+        return r.emit(n, nodes, regs, to);
+    }
+
+    // **********************************************************************
+    // **********************************************************************
+    // RULES
+    // **********************************************************************
+    // **********************************************************************
+
+    private static class Pattern {
+        public Pattern(int kind, int[] ops, Object... kids) {
+            this.kind = kind;
+            this.ops = ops;
+            this.kids = kids;
+        }
+
+        public boolean hasOp(int op) {
+            for (int o : ops) {
+                if (o == op)
+                    return true;
+            }
+            return false;
+        }
+
+        int kind;
+        int[] ops;        // the ops it matches (null for any) //
+        Object[] kids;    // a nonterminal (Integer) or Pattern each //
+    }
+
+    private static Pattern pat(int kind, Object... kids) {
+        return new Pattern(kind, null, kids);
+    }
+
+    private static Pattern pat(int kind, int[] ops, Object... kids) {
+        return new Pattern(kind, ops, kids);
+    }
+
+    private static int[] ops(int... ops) {
+        return ops;
+    }
+
+    private static final int[] ADDSUB = {Quad.ADD, Quad.SUB};
+    private static final int[] RELOPS = {
+        Quad.EQ, Quad.NE, Quad.LT, Quad.GT, Quad.LE, Quad.GE
+    };
+    private static final int[] EQNE = {Quad.EQ, Quad.NE};
+
+    private abstract static class Rule {
+        // nt <- pattern //
+        public Rule(int nt, Pattern pattern, int cost) {
+            this.nt = nt;
+            this.pattern = pattern;
+            this.chain = -1;
+            this.fixedCost = cost;
+        }
+
+        // nt <- chain //
+        public Rule(int nt, int chain, int cost) {
+            this.nt = nt;
+            this.chain = chain;
+            this.fixedCost = cost;
+        }
+
+        // the cost of applying the rule at n (-1 if it can't be) //
+        public int cost(Node n) {
+            return fixedCost;
+        }
+
+        // the register the value of the k-th leaf of the pattern should
+        // go to (null for the default) //
+        public String target(Node n, int k) {
+            return null;
+        }
+
+        // generate the code; leaves are the nodes at the leaves of the
+        // pattern, regs the registers of their REG values //
+        public abstract String emit(Node n, List<Node> leaves,
+                                    String[] regs, String to);
+
+        int nt;
+        Pattern pattern;
+        int chain;
+        int fixedCost;
+    }
+
+    private static final Rule[] RULES = {
+
+        // ---- leaves ---- //
+
+        // CON <- constant //
+        new Rule(CON, pat(CONST), 0) {
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                return null;
+            }
+        },
+        // MEM <- variable, spilled temp //
+        new Rule(MEM, pat(VAR), 0) {
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                return null;
+            }
+        },
+        // REG <- temp //
+        new Rule(REG, pat(TEMP), 0) {
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                return ((Temp)n.operand).reg();
+            }
+        },
+        // REG <- CON: li //
+        new Rule(REG, CON, 1) {
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                return Codegen.genLoad(n.operand, to);
+            }
+        },
+        // REG <- MEM: lw //
+        new Rule(REG, MEM, 1) {
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                return Codegen.genLoad(n.operand, to);
+            }
+        },
+        // REG <- string: la //
+        new Rule(REG, pat(STR), 1) {
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                Codegen.generate("la", to, n.label);
+                return to;
+            }
+        },
+
+        // ---- operations ---- //
+
+        // REG <- REG op REG //
+        new Rule(REG, pat(BIN, REG, REG), 0) {
+            public int cost(Node n) {
+                return InstrSelect.opCost(n.op);
+            }
+
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                InstrSelect.genOp(n.op, n.wraps, to, regs[0], regs[1]);
+                return to;
+            }
+        },
+        // REG <- REG op CON: immediate forms, shifts, magic numbers //
+        new Rule(REG, pat(BIN, REG, CON), 0) {
+            public int cost(Node n) {
+                return InstrSelect.immediateCost(n.op, n.kids[1].constant());
+            }
+
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                InstrSelect.genOpImmediate(n.op, n.wraps, to, regs[0],
+                                           leaves.get(1).constant());
+                return to;
+            }
+        },
+        // REG <- CON op REG: the same, swapped //
+        new Rule(REG, pat(BIN, CON, REG), 0) {
+            public int cost(Node n) {
+                int op = Quad.mirror(n.op);
+                if (op < 0)
+                    return -1;
+                return InstrSelect.immediateCost(op, n.kids[0].constant());
+            }
+
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                InstrSelect.genOpImmediate(Quad.mirror(n.op), n.wraps, to,
+                                           regs[1], leaves.get(0).constant());
+                return to;
+            }
+        },
+        // REG <- 0 - REG: neg //
+        new Rule(REG, pat(BIN, ops(Quad.SUB), CON, REG), 1) {
+            public int cost(Node n) {
+                return n.kids[0].constant() == 0 ? 1 : -1;
+            }
+
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                Codegen.generate(n.wraps ? "negu" : "neg", to, regs[1]);
+                return to;
+            }
+        },
+        // REG <- (REG +- CON) +- CON: one addi //
+        new Rule(REG, pat(BIN, ADDSUB, pat(BIN, ADDSUB, REG, CON), CON), 1) {
+            public int cost(Node n) {
+                // not if only one of the two wraps (see BinOpQuad) //
+                if (n.wraps != n.kids[0].wraps)
+                    return -1;
+                long sum = sum(n);
+                return sum >= -32768 && sum <= 32767 ? 1 : -1;
+            }
+
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                InstrSelect.genOpImmediate(Quad.ADD, n.wraps, to, regs[0],
+                                           (int)sum(n));
+                return to;
+            }
+
+            private long sum(Node n) {
+                Node inner = n.kids[0];
+                long c = inner.kids[1].constant();
+                if (inner.op == Quad.SUB)
+                    c = -c;
+                if (n.op == Quad.SUB)
+                    return c - n.kids[1].constant();
+                return c + n.kids[1].constant();
+            }
+        },
+        // REG <- op REG //
+        new Rule(REG, pat(UN, REG), 1) {
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                InstrSelect.genUnOp(n.op, to, regs[0]);
+                return to;
+            }
+        },
+        // REG <- - CON: li //
+        new Rule(REG, pat(UN, ops(Quad.NEG), CON), 1) {
+            public int cost(Node n) {
+                return n.kids[0].constant() == Integer.MIN_VALUE ? -1 : 1;
+            }
+
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                Codegen.generate("li", to, -leaves.get(0).constant());
+                return to;
+            }
+        },
+        // REG <- !(REG relop REG): the opposite comparison //
+        new Rule(REG, pat(UN, ops(Quad.NOT), pat(BIN, RELOPS, REG, REG)), 0) {
+            public int cost(Node n) {
+                return InstrSelect.opCost(Quad.negate(n.kids[0].op));
+            }
+
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                InstrSelect.genOp(Quad.negate(n.kids[0].op), false, to,
+                                  regs[0], regs[1]);
+                return to;
+            }
+        },
+        // REG <- !(REG relop CON) //
+        new Rule(REG, pat(UN, ops(Quad.NOT), pat(BIN, RELOPS, REG, CON)), 0) {
+            public int cost(Node n) {
+                Node cmp = n.kids[0];
+                return InstrSelect.immediateCost(Quad.negate(cmp.op),
+                                                 cmp.kids[1].constant());
+            }
+
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                InstrSelect.genOpImmediate(Quad.negate(n.kids[0].op),
+                                           false, to, regs[0],
+                                           leaves.get(1).constant());
+                return to;
+            }
+        },
+
+        // ---- assignments ---- //
+
+        // STMT <- MOVE REG: computed into the destination's register //
+        new Rule(STMT, pat(MOVE, REG), 0) {
+            public int cost(Node n) {
+                return isMemory(n.operand) ? 1 : 0;
+            }
+
+            public String target(Node n, int k) {
+                return Codegen.destReg(n.operand, Codegen.V1);
+            }
+
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                Codegen.genStore(n.operand, regs[0]);
+                return null;
+            }
+        },
+        // STMT <- MOVE 0, to memory: sw $zero //
+        new Rule(STMT, pat(MOVE, CON), 1) {
+            public int cost(Node n) {
+                return isMemory(n.operand) && n.kids[0].constant() == 0
+                       ? 1 : -1;
+            }
+
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                Codegen.genStore(n.operand, InstrSelect.ZERO);
+                return null;
+            }
+        },
+
+        // ---- branches ---- //
+
+        // STMT <- CJUMP REG relop CON //
+        new Rule(STMT, pat(CJUMP, REG, CON), 0) {
+            public int cost(Node n) {
+                return InstrSelect.branchImmediateCost(n.op,
+                                                       n.kids[1].constant());
+            }
+
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                InstrSelect.genBranchImmediate(n.op, regs[0],
+                                               leaves.get(1).constant(),
+                                               n.label);
+                return null;
+            }
+        },
+        // STMT <- CJUMP REG relop REG //
+        new Rule(STMT, pat(CJUMP, REG, REG), 0) {
+            public int cost(Node n) {
+                return InstrSelect.branchCost(n.op);
+            }
+
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                InstrSelect.genBranch(n.op, regs[0], regs[1], n.label);
+                return null;
+            }
+        },
+        // STMT <- CJUMP CON relop REG //
+        new Rule(STMT, pat(CJUMP, CON, REG), 0) {
+            public int cost(Node n) {
+                return InstrSelect.branchImmediateCost(
+                           Quad.mirror(n.op), n.kids[0].constant());
+            }
+
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                InstrSelect.genBranchImmediate(Quad.mirror(n.op),
+                                               regs[1],
+                                               leaves.get(0).constant(),
+                                               n.label);
+                return null;
+            }
+        },
+        // STMT <- CJUMP (REG relop REG) ==/!= 0: branch on the comparison //
+        new Rule(STMT, pat(CJUMP, EQNE, pat(BIN, RELOPS, REG, REG), CON), 0) {
+            public int cost(Node n) {
+                if (n.kids[1].constant() != 0)
+                    return -1;
+                return InstrSelect.branchCost(branchOp(n));
+            }
+
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                InstrSelect.genBranch(branchOp(n), regs[0], regs[1], n.label);
+                return null;
+            }
+        },
+        // STMT <- CJUMP (REG relop CON) ==/!= 0 //
+        new Rule(STMT, pat(CJUMP, EQNE, pat(BIN, RELOPS, REG, CON), CON), 0) {
+            public int cost(Node n) {
+                if (n.kids[1].constant() != 0)
+                    return -1;
+                return InstrSelect.branchImmediateCost(branchOp(n),
+                           n.kids[0].kids[1].constant());
+            }
+
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                InstrSelect.genBranchImmediate(branchOp(n), regs[0],
+                                               leaves.get(1).constant(),
+                                               n.label);
+                return null;
+            }
+        },
+
+        // ---- output ---- //
+
+        // STMT <- WRITE REG: the value made in $a0 //
+        new Rule(STMT, pat(WRITE, REG), 1) {
+            public String target(Node n, int k) {
+                return Codegen.A0;
+            }
+
+            public String emit(Node n, List<Node> leaves, String[] regs,
+                               String to) {
+                if (!regs[0].equals(Codegen.A0))
+                    Codegen.generate("move", Codegen.A0, regs[0]);
+                // Buffered write (see IORuntime) //
+                Codegen.generate("jal", n.isString ? IORuntime.PUTSTR
+                                                   : IORuntime.PUTINT);
+                return null;
+            }
+        },
+    };
+
+    // the branch for "if (a relop b) ==/!= 0" at n //
+    private static int branchOp(Node n) {
+        int relop = n.kids[0].op;
+        return n.op == Quad.NE ? relop : Quad.negate(relop);
+    }
+
+    // is op stored in memory (a variable or spilled temp)? //
+    private static boolean isMemory(Operand op) {
+        return !(op instanceof Temp) || ((Temp)op).reg() == null;
+    }
+}
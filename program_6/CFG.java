@@ -0,0 +1,94 @@
+import java.util.*;
+
+// **********************************************************************
+// CFG is the control-flow graph of an IRFunction: its basic blocks,
+// linked to their successors (the block a jump goes to, and the next
+// block if control can fall through) and predecessors.
+//
+// The graph is a snapshot - it has to be rebuilt after the function's
+// code changes.  Blocks are numbered in code order; the first one is the
+// entry.  Blocks with no successors (ending in a return, or falling off
+// the end of the function) lead to the exit.
+// **********************************************************************
+
+public class CFG {
+
+    public CFG(IRFunction fn) {
+        myFunction = fn;
+        myBlocks = fn.basicBlocks();
+
+        Map<String, BasicBlock> labels = new HashMap<String, BasicBlock>();
+        for (BasicBlock b : myBlocks) {
+            if (b.label() != null)
+                labels.put(b.label(), b);
+        }
+
+        for (int k = 0; k < myBlocks.size(); k++) {
+            BasicBlock b = myBlocks.get(k);
+            Quad last = b.last();
+            if (last.target() != null)
+                addEdge(b, labels.get(last.target()));
+            if (!last.isUnconditionalJump() && k + 1 < myBlocks.size())
+                addEdge(b, myBlocks.get(k + 1));
+        }
+    }
+
+    public IRFunction function() {
+        return myFunction;
+    }
+
+    public List<BasicBlock> blocks() {
+        return myBlocks;
+    }
+
+    public BasicBlock entry() {
+        return myBlocks.get(0);
+    }
+
+    // **********************************************************************
+    // reversePostorder
+    //    the blocks reachable from the entry, each before its successors
+    //    except along back edges (the good order for forward analyses)
+    // **********************************************************************
+    public List<BasicBlock> reversePostorder() {
+        List<BasicBlock> order = new ArrayList<BasicBlock>();
+        boolean[] visited = new boolean[myBlocks.size()];
+
+        // iterative DFS - deep functions would overflow the stack //
+        Deque<BasicBlock> stack = new ArrayDeque<BasicBlock>();
+        Deque<Integer> nextSucc = new ArrayDeque<Integer>();
+        if (!myBlocks.isEmpty()) {
+            stack.push(entry());
+            nextSucc.push(0);
+            visited[entry().id()] = true;
+        }
+        while (!stack.isEmpty()) {
+            BasicBlock b = stack.peek();
+            int k = nextSucc.pop();
+            if (k < b.succs().size()) {
+                nextSucc.push(k + 1);
+                BasicBlock succ = b.succs().get(k);
+                if (!visited[succ.id()]) {
+                    visited[succ.id()] = true;
+                    stack.push(succ);
+                    nextSucc.push(0);
+                }
+            }
+            else {
+                order.add(stack.pop());
+            }
+        }
+        Collections.reverse(order);
+        return order;
+    }
+
+    private static void addEdge(BasicBlock from, BasicBlock to) {
+        if (to == null || from.succs().contains(to))
+            return;
+        from.succs().add(to);
+        to.preds().add(from);
+    }
+
+    private IRFunction myFunction;
+    private List<BasicBlock> myBlocks;
+}
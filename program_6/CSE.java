@@ -0,0 +1,306 @@
+import java.util.*;
+
+// **********************************************************************
+// CSE removes recomputation of values, in two steps:
+//
+//   - local value numbering, within each basic block: every value gets
+//     a number, so a later BinOpQuad, UnOpQuad or pure call (see
+//     CallGraph) computing a value some temp or variable still holds
+//     becomes a move from it, a variable
+//     (e.g., a struct field s.a.b) whose value is already in a temp is
+//     read from the temp instead of memory, and operands whose value is
+//     a known constant become that constant
+//
+//   - global common subexpression elimination, using AvailableExprs: an
+//     expression available where it is computed again is saved in a new
+//     temp wherever it is computed, and the recomputation becomes a move
+//     from that temp
+//
+// The moves left behind are cheap, and mostly disappear in DeadCode and
+// register allocation.
+// **********************************************************************
+
+public class CSE {
+
+    // **********************************************************************
+    // optimize
+    // **********************************************************************
+    public static void optimize(IRFunction fn) {
+        List<BasicBlock> blocks = fn.basicBlocks();
+        for (BasicBlock b : blocks)
+            new ValueNumbering().run(b.quads());
+        fn.setCode(flatten(blocks));
+        eliminateGlobal(fn);
+    }
+
+    // **********************************************************************
+    // eliminateGlobal
+    // **********************************************************************
+    private static void eliminateGlobal(IRFunction fn) {
+        AvailableExprs avail = new AvailableExprs(new CFG(fn));
+
+        // the expressions recomputed where they are available //
+        BitSet redundant = new BitSet();
+        for (BasicBlock b : avail.cfg().blocks()) {
+            List<BitSet> before = avail.quadValues(b);
+            for (int k = 0; k < b.quads().size(); k++) {
+                int e = avail.index(b.quads().get(k));
+                if (e >= 0 && before.get(k).get(e))
+                    redundant.set(e);
+            }
+        }
+        if (redundant.isEmpty())
+            return;
+
+        // one temp per such expression //
+        Map<Integer, Temp> saved = new HashMap<Integer, Temp>();
+        for (int e = redundant.nextSetBit(0); e >= 0;
+             e = redundant.nextSetBit(e + 1))
+            saved.put(e, fn.newTemp());
+
+        List<Quad> code = new ArrayList<Quad>();
+        for (BasicBlock b : avail.cfg().blocks()) {
+            List<BitSet> before = avail.quadValues(b);
+            for (int k = 0; k < b.quads().size(); k++) {
+                Quad q = b.quads().get(k);
+                int e = avail.index(q);
+                if (e < 0 || !saved.containsKey(e)) {
+                    code.add(q);
+                    continue;
+                }
+                Temp t = saved.get(e);
+                if (before.get(k).get(e)) {
+                    // recomputation: take the saved value //
+                    code.add(new MoveQuad(q.def(), t));
+                }
+                else {
+                    // computation: also save the value //
+                    code.add(withDst(q, t));
+                    code.add(new MoveQuad(q.def(), t));
+                }
+            }
+        }
+        fn.setCode(code);
+    }
+
+    // a copy of the BinOpQuad, UnOpQuad or CallQuad q writing dst
+    // instead //
+    private static Quad withDst(Quad q, Operand dst) {
+        if (q instanceof CallQuad) {
+            Quad call = q.copy();
+            call.replaceDef(dst);
+            return call;
+        }
+        if (q instanceof BinOpQuad) {
+            BinOpQuad b = (BinOpQuad)q;
+            BinOpQuad bin = new BinOpQuad(dst, b.op(), b.src1(), b.src2());
+            bin.setWraps(b.wraps());
+            return bin;
+        }
+        UnOpQuad u = (UnOpQuad)q;
+        return new UnOpQuad(dst, u.op(), u.src());
+    }
+
+    private static List<Quad> flatten(List<BasicBlock> blocks) {
+        List<Quad> code = new ArrayList<Quad>();
+        for (BasicBlock b : blocks)
+            code.addAll(b.quads());
+        return code;
+    }
+
+    // **********************************************************************
+    // ValueNumbering does local value numbering over one block.
+    // **********************************************************************
+    private static class ValueNumbering {
+
+        void run(List<Quad> quads) {
+            for (int k = 0; k < quads.size(); k++) {
+                Quad q = quads.get(k);
+
+                // read each operand from the best place holding its value //
+                for (Operand op : q.uses()) {
+                    Operand better = best(op);
+                    if (better != op)
+                        q.replaceUse(op, better);
+                }
+
+                Operand dst = q.def();
+                if (q instanceof MoveQuad) {
+                    define(dst, number(((MoveQuad)q).src()));
+                }
+                else if (q instanceof BinOpQuad || q instanceof UnOpQuad) {
+                    String key = key(q);
+                    Integer value = myExprs.get(key);
+                    Operand holder = value == null ? null : holder(value);
+                    Integer folded = fold(q);
+
+                    if (folded != null) {
+                        quads.set(k, new MoveQuad(dst, new Const(folded)));
+                        define(dst, number(new Const(folded)));
+                    }
+                    else if (holder != null) {
+                        quads.set(k, new MoveQuad(dst, holder));
+                        define(dst, value);
+                    }
+                    else {
+                        value = myNext++;
+                        myExprs.put(key, value);
+                        define(dst, value);
+                    }
+                }
+                else if (q instanceof CallQuad && ((CallQuad)q).isPure() &&
+                         dst != null) {
+                    // the same actuals give the same result //
+                    String key = key(q);
+                    Integer value = myExprs.get(key);
+                    Operand holder = value == null ? null : holder(value);
+                    if (holder != null) {
+                        quads.set(k, new MoveQuad(dst, holder));
+                        define(dst, value);
+                    }
+                    else {
+                        value = myNext++;
+                        myExprs.put(key, value);
+                        define(dst, value);
+                    }
+                }
+                else {
+                    if (q instanceof CallQuad && !((CallQuad)q).isPure())
+                        forgetGlobals();
+                    if (dst != null)
+                        define(dst, myNext++);
+                }
+            }
+        }
+
+        // value number of op (constants by value) //
+        private int number(Operand op) {
+            if (op instanceof Const) {
+                int c = ((Const)op).value();
+                Integer value = myConstNums.get(c);
+                if (value == null) {
+                    value = myNext++;
+                    myConstNums.put(c, value);
+                    myConsts.put(value, c);
+                }
+                return value;
+            }
+            Integer value = myNums.get(op);
+            if (value == null) {
+                value = myNext++;
+                define(op, value);
+            }
+            return value;
+        }
+
+        // op now holds value //
+        private void define(Operand op, int value) {
+            myNums.put(op, value);
+            List<Operand> holders = myHolders.get(value);
+            if (holders == null) {
+                holders = new ArrayList<Operand>();
+                myHolders.put(value, holders);
+            }
+            holders.add(op);
+        }
+
+        // an operand still holding value, temps first (null if none) //
+        private Operand holder(int value) {
+            if (myConsts.containsKey(value))
+                return new Const(myConsts.get(value));
+            Operand found = null;
+            List<Operand> holders = myHolders.get(value);
+            if (holders == null)
+                return null;
+            for (Operand op : holders) {
+                Integer curr = myNums.get(op);
+                if (curr == null || curr != value)
+                    continue;
+                if (op instanceof Temp)
+                    return op;
+                if (found == null)
+                    found = op;
+            }
+            return found;
+        }
+
+        // the cheapest operand with op's value: a constant, or a temp
+        // instead of a variable //
+        private Operand best(Operand op) {
+            if (op instanceof Const)
+                return op;
+            Operand holder = holder(number(op));
+            if (holder instanceof Const ||
+                (holder instanceof Temp && op instanceof Var))
+                return holder;
+            return op;
+        }
+
+        // a call (other than a pure one) may change any global //
+        private void forgetGlobals() {
+            Iterator<Operand> it = myNums.keySet().iterator();
+            while (it.hasNext()) {
+                Operand op = it.next();
+                if (op instanceof Var && ((Var)op).isGlobal())
+                    it.remove();
+            }
+        }
+
+        // operator (or callee) and operand value numbers (ordered for
+        // commutative operators) //
+        private String key(Quad q) {
+            if (q instanceof CallQuad) {
+                CallQuad call = (CallQuad)q;
+                String key = "call " + call.name();
+                for (Operand arg : call.args())
+                    key += " " + number(arg);
+                return key;
+            }
+            if (q instanceof UnOpQuad) {
+                UnOpQuad u = (UnOpQuad)q;
+                return u.op() + " " + number(u.src());
+            }
+            BinOpQuad b = (BinOpQuad)q;
+            int n1 = number(b.src1());
+            int n2 = number(b.src2());
+            if (isCommutative(b.op()) && n2 < n1) {
+                int tmp = n1;
+                n1 = n2;
+                n2 = tmp;
+            }
+            return b.op() + " " + n1 + " " + n2;
+        }
+
+        private static boolean isCommutative(int op) {
+            return op == Quad.ADD || op == Quad.MUL || op == Quad.AND ||
+                   op == Quad.OR || op == Quad.EQ || op == Quad.NE;
+        }
+
+        // value of q if its operands are constants (null if not, or if it
+        // must be left to trap at run time) //
+        private Integer fold(Quad q) {
+            if (q instanceof UnOpQuad) {
+                UnOpQuad u = (UnOpQuad)q;
+                if (!(u.src() instanceof Const))
+                    return null;
+                int val = ((Const)u.src()).value();
+                return Quad.evaluate(u.op(), val, 0);
+            }
+            BinOpQuad b = (BinOpQuad)q;
+            if (!(b.src1() instanceof Const && b.src2() instanceof Const))
+                return null;
+            return Quad.evaluate(b.op(), ((Const)b.src1()).value(),
+                                 ((Const)b.src2()).value());
+        }
+
+        private int myNext = 0;
+        private Map<Operand, Integer> myNums = new HashMap<Operand, Integer>();
+        private Map<Integer, Integer> myConstNums =
+            new HashMap<Integer, Integer>();
+        private Map<Integer, Integer> myConsts =
+            new HashMap<Integer, Integer>();
+        private Map<String, Integer> myExprs = new HashMap<String, Integer>();
+        private Map<Integer, List<Operand>> myHolders =
+            new HashMap<Integer, List<Operand>>();
+    }
+}
@@ -0,0 +1,234 @@
+import java.util.*;
+
+// **********************************************************************
+// CallGraph is the whole-program call graph of an IRProgram (an edge
+// from each function to every function it calls), with a summary of
+// what each function does besides computing its result:
+//
+//     readsGlobals      reads a global variable
+//     writesGlobals     writes a global variable
+//     doesIO            reads input or writes output
+//
+// each counting what the functions it calls (transitively) do.  From
+// those come two properties of a function, and so of calls to it:
+//
+//     pure              none of the above: the result depends on the
+//                       actuals only, so calls with the same actuals
+//                       have the same result, and a call stays put for
+//                       nothing but its actuals
+//     safe              pure, and also sure to return (no loops, no
+//                       recursion) without trapping (no division by
+//                       anything but a nonzero constant), so a call can
+//                       be dropped if its result is unused, or made
+//                       where it might not have been
+//
+// markCalls records both on every CallQuad, for the passes after it.
+// Like the CFG, the graph is a snapshot: it has to be built again after
+// functions are added, dropped, or changed.
+// **********************************************************************
+
+public class CallGraph {
+
+    public CallGraph(IRProgram prog) {
+        myProgram = prog;
+        for (IRFunction fn : prog.functions()) {
+            myFunctions.put(fn.name(), fn);
+            Set<String> callees = new LinkedHashSet<String>();
+            for (Quad q : fn.code()) {
+                if (q instanceof CallQuad)
+                    callees.add(((CallQuad)q).name());
+            }
+            myCallees.put(fn.name(), callees);
+        }
+        findRecursive();
+        summarize();
+    }
+
+    public IRFunction function(String name) {
+        return myFunctions.get(name);
+    }
+
+    // the names of the functions fn calls //
+    public Set<String> callees(String name) {
+        Set<String> callees = myCallees.get(name);
+        return callees == null ? new HashSet<String>() : callees;
+    }
+
+    // can the function reach itself through calls? //
+    public boolean isRecursive(String name) {
+        return myRecursive.contains(name);
+    }
+
+    public boolean readsGlobals(String name) {
+        return summary(name).readsGlobals;
+    }
+
+    public boolean writesGlobals(String name) {
+        return summary(name).writesGlobals;
+    }
+
+    public boolean doesIO(String name) {
+        return summary(name).doesIO;
+    }
+
+    public boolean isPure(String name) {
+        Summary s = summary(name);
+        return !s.readsGlobals && !s.writesGlobals && !s.doesIO;
+    }
+
+    public boolean isSafe(String name) {
+        return isPure(name) && summary(name).returns;
+    }
+
+    // **********************************************************************
+    // markCalls
+    //    record on each call whether its callee is pure and safe
+    // **********************************************************************
+    public void markCalls() {
+        for (IRFunction fn : myProgram.functions()) {
+            for (Quad q : fn.code()) {
+                if (q instanceof CallQuad) {
+                    String name = ((CallQuad)q).name();
+                    ((CallQuad)q).setPurity(isPure(name), isSafe(name));
+                }
+            }
+        }
+    }
+
+    // **********************************************************************
+    // bottomUp
+    //    the functions in DFS postorder of the call graph: callees before
+    //    their callers (except around cycles)
+    // **********************************************************************
+    public List<IRFunction> bottomUp() {
+        List<IRFunction> order = new ArrayList<IRFunction>();
+        Set<String> visited = new HashSet<String>();
+        for (IRFunction fn : myProgram.functions())
+            postorder(fn, visited, order);
+        return order;
+    }
+
+    private void postorder(IRFunction fn, Set<String> visited,
+                           List<IRFunction> order) {
+        if (!visited.add(fn.name()))
+            return;
+        for (String name : callees(fn.name())) {
+            if (myFunctions.containsKey(name))
+                postorder(myFunctions.get(name), visited, order);
+        }
+        order.add(fn);
+    }
+
+    // **********************************************************************
+    // findRecursive
+    //    search from each function's callees for the function
+    // **********************************************************************
+    private void findRecursive() {
+        for (IRFunction fn : myProgram.functions()) {
+            Set<String> seen = new HashSet<String>();
+            Deque<String> worklist =
+                new ArrayDeque<String>(callees(fn.name()));
+            while (!worklist.isEmpty()) {
+                String name = worklist.poll();
+                if (name.equals(fn.name())) {
+                    myRecursive.add(name);
+                    break;
+                }
+                if (seen.add(name))
+                    worklist.addAll(callees(name));
+            }
+        }
+    }
+
+    // **********************************************************************
+    // summarize
+    //    each function's own effects, then those of its callees added in
+    //    until nothing changes
+    // **********************************************************************
+    private void summarize() {
+        for (IRFunction fn : myProgram.functions())
+            mySummaries.put(fn.name(), ownEffects(fn));
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (IRFunction fn : myProgram.functions()) {
+                Summary s = mySummaries.get(fn.name());
+                for (String name : callees(fn.name()))
+                    changed |= s.add(summary(name));
+            }
+        }
+    }
+
+    private Summary ownEffects(IRFunction fn) {
+        Summary s = new Summary();
+        s.returns = !isRecursive(fn.name());
+        Set<String> labelsSeen = new HashSet<String>();
+        for (Quad q : fn.code()) {
+            if (q instanceof ReadQuad || q instanceof WriteQuad)
+                s.doesIO = true;
+            // every call has to reach the profile counters //
+            if (q instanceof CountQuad)
+                s.writesGlobals = true;
+            for (Operand op : q.uses()) {
+                if (op instanceof Var && ((Var)op).isGlobal())
+                    s.readsGlobals = true;
+            }
+            if (q.def() instanceof Var && ((Var)q.def()).isGlobal())
+                s.writesGlobals = true;
+
+            if (q instanceof LabelQuad)
+                labelsSeen.add(((LabelQuad)q).label());
+            // a jump back makes a loop //
+            if (q.target() != null && labelsSeen.contains(q.target()))
+                s.returns = false;
+            if (q instanceof BinOpQuad && ((BinOpQuad)q).op() == Quad.DIV) {
+                Operand divisor = ((BinOpQuad)q).src2();
+                if (!(divisor instanceof Const) ||
+                    ((Const)divisor).value() == 0)
+                    s.returns = false;
+            }
+        }
+        return s;
+    }
+
+    // the summary of name (the worst for a function not in the program) //
+    private Summary summary(String name) {
+        Summary s = mySummaries.get(name);
+        if (s == null) {
+            s = new Summary();
+            s.readsGlobals = s.writesGlobals = s.doesIO = true;
+            s.returns = false;
+        }
+        return s;
+    }
+
+    private static class Summary {
+        // add in the effects of a callee; return true if any is new //
+        boolean add(Summary callee) {
+            boolean changed =
+                (callee.readsGlobals && !readsGlobals) ||
+                (callee.writesGlobals && !writesGlobals) ||
+                (callee.doesIO && !doesIO) ||
+                (!callee.returns && returns);
+            readsGlobals |= callee.readsGlobals;
+            writesGlobals |= callee.writesGlobals;
+            doesIO |= callee.doesIO;
+            returns &= callee.returns;
+            return changed;
+        }
+
+        boolean readsGlobals = false;
+        boolean writesGlobals = false;
+        boolean doesIO = false;
+        boolean returns = true;   // surely, and without trapping
+    }
+
+    private IRProgram myProgram;
+    private Map<String, IRFunction> myFunctions =
+        new LinkedHashMap<String, IRFunction>();
+    private Map<String, Set<String>> myCallees =
+        new HashMap<String, Set<String>>();
+    private Set<String> myRecursive = new HashSet<String>();
+    private Map<String, Summary> mySummaries = new HashMap<String, Summary>();
+}
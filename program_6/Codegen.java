@@ -1,15 +1,16 @@
 import java.io.*;
+import java.util.*;
 
 // **********************************************************************
 // The Codegen class provides constants and operations useful for code
 // generation.
 //
 // The constants are:
-//     Registers: FP, SP, RA, V0, V1, A0, T0, T1
+//     Registers: FP, SP, RA, V0, V1, A0 - A3, T0 - T9, S0 - S7
 //     Values: TRUE, FALSE
 //
-// The operations are include various "generate" methods to print nicely
-// formatted assembly code:
+// The operations are include various "generate" methods to buffer
+// assembly instructions:
 //     generateWithComment
 //     generate
 //     generateIndexed
@@ -17,7 +18,28 @@ import java.io.*;
 //     genPush
 //     genPop
 //     genLabel
-// and a method nextLabel to create and return a new label.
+// and a method nextLabel to create and return a new label. Instructions
+// are kept as Instr objects until flush, which runs the Peephole optimizer
+// and the Scheduler over them and prints them nicely formatted, after the
+// data segment (globals and string literals) collected in data().
+//
+// For IR operands (Temp, Const, Var) there are:
+//     genLoad
+//     genLoadInto
+//     destReg
+//     genStore
+// which address frame slots as set by setFrame (from FP, or from SP in
+// functions without a frame pointer), and globals by label (which the
+// assembler makes one instruction off $gp for the small ones, see
+// DataSegment).
+//
+// Temps live in registers from the register pool, which RegAlloc hands
+// out (and spills from when it runs dry) through:
+//     getReg
+//     freeReg
+//     numFreeRegs
+// The pool covers the temporaries and saved registers ($t0 - $t9,
+// $s0 - $s7).
 //
 // **********************************************************************
 
@@ -36,15 +58,53 @@ public class Codegen {
     public static final String V0 = "$v0";
     public static final String V1 = "$v1";
     public static final String A0 = "$a0";
+    public static final String A1 = "$a1";
+    public static final String A2 = "$a2";
+    public static final String A3 = "$a3";
     public static final String T0 = "$t0";
     public static final String T1 = "$t1";
     public static final String T2 = "$t2";
     public static final String T3 = "$t3";
-	// probably wont ever need more than 4 registers... //
+    public static final String T4 = "$t4";
+    public static final String T5 = "$t5";
+    public static final String T6 = "$t6";
+    public static final String T7 = "$t7";
+    public static final String T8 = "$t8";
+    public static final String T9 = "$t9";
+    public static final String S0 = "$s0";
+    public static final String S1 = "$s1";
+    public static final String S2 = "$s2";
+    public static final String S3 = "$s3";
+    public static final String S4 = "$s4";
+    public static final String S5 = "$s5";
+    public static final String S6 = "$s6";
+    public static final String S7 = "$s7";
 
+    // registers carrying the first arguments of a call (the rest are
+    // pushed on the stack); the result comes back in V0
+    public static final String[] ARGREGS = { A0, A1, A2, A3 };
 
-    // for pretty printing generated code
-    private static final int MAXLEN = 4;
+    // registers available for holding expression values, in the order
+    // they are handed out
+    private static final String[] REGPOOL = {
+        T0, T1, T2, T3, T4, T5, T6, T7, T8, T9,
+        S0, S1, S2, S3, S4, S5, S6, S7
+    };
+
+    // which registers in REGPOOL currently hold a live value
+    private static boolean[] regInUse = new boolean[REGPOOL.length];
+
+
+    // register the frame slots are addressed from, and how far below FP
+    // it points (see setFrame)
+    private static String frameReg = FP;
+    private static int frameBias = 0;
+
+    // globals and string literals, written out by flush
+    private static DataSegment data = new DataSegment();
+
+    // instructions generated so far, written out by flush
+    private static List<Instr> code = new ArrayList<Instr>();
 
 
     // for generating labels
@@ -60,26 +120,11 @@ public class Codegen {
     // **********************************************************************
     // generateWithComment
     //    given:  op code, comment, and 0 to 3 string args
-    //    do:     write nicely formatted code (ending with new line)
+    //    do:     buffer the instruction (see flush)
     // **********************************************************************
     public static void generateWithComment(String opcode, String comment,
                                         String arg1, String arg2, String arg3) {
-        int space = MAXLEN - opcode.length() + 2;
-    
-        p.print("\t" + opcode);
-        if (arg1 != "") {
-            for (int k = 1; k <= space; k++) 
-                p.print(" ");
-            p.print(arg1);
-            if (arg2 != "") {
-                p.print(", " + arg2);
-                if (arg3 != "") 
-                    p.print(", " + arg3);
-            }
-        }
-        if (comment != "") 
-            p.print("\t\t#" + comment);
-        p.println();
+        emit(new Instr(opcode, comment, arg1, arg2, arg3));
     }
 
     public static void generateWithComment(String opcode, String comment,
@@ -99,24 +144,11 @@ public class Codegen {
     // **********************************************************************
     // generate
     //    given:  op code, and 0 to 3 string args
-    //    do:     write nicely formatted code (ending with new line)
+    //    do:     buffer the instruction (see flush)
     // **********************************************************************
     public static void generate(String opcode, String arg1, String arg2,
                                 String arg3) {
-        int space = MAXLEN - opcode.length() + 2;
-    
-        p.print("\t" + opcode);
-        if (arg1 != "") {
-            for (int k = 1; k <= space; k++) 
-                p.print(" ");
-            p.print(arg1);
-            if (arg2 != "") {
-                p.print(", " + arg2);
-                if (arg3 != "") 
-                    p.print(", " + arg3);
-            }
-        }
-        p.println();
+        emit(new Instr(opcode, "", arg1, arg2, arg3));
     }
 
     public static void generate(String opcode, String arg1, String arg2) {
@@ -134,50 +166,32 @@ public class Codegen {
     // **********************************************************************
     // generate (two string args, one int)
     //    given:  op code and args
-    //    do:     write nicely formatted code (ending with new line)
+    //    do:     buffer the instruction (see flush)
     // **********************************************************************
     public static void generate(String opcode, String arg1, String arg2,
                                 int arg3) {
-        int space = MAXLEN - opcode.length() + 2;
-    
-        p.print("\t" + opcode);
-        for (int k = 1; k <= space; k++) 
-            p.print(" ");
-        p.println(arg1 + ", " + arg2 + ", " + arg3);
+        generate(opcode, arg1, arg2, Integer.toString(arg3));
     }
     
     // **********************************************************************
     // generate (one string arg, one int)
     //    given:  op code and args
-    //    do:     write nicely formatted code (ending with new line)
+    //    do:     buffer the instruction (see flush)
     // **********************************************************************
     public static void generate(String opcode, String arg1, int arg2) {
-        int space = MAXLEN - opcode.length() + 2;
-    
-        p.print("\t" + opcode);
-        for (int k = 1; k <= space; k++) 
-            p.print(" ");
-        p.println(arg1 + ", " + arg2);
+        generate(opcode, arg1, Integer.toString(arg2), "");
     }
     
     // **********************************************************************
     // generateIndexed
     //    given:  op code, target register T1 (as string), indexed register T2
     //            (as string), - offset xx (int), and optional comment
-    //    do:     write nicely formatted code (ending with new line):
+    //    do:     buffer the instruction (see flush):
     //                 op T1, xx(T2) #comment
     // **********************************************************************
     public static void generateIndexed(String opcode, String arg1, String arg2,
                                        int arg3, String comment) {
-        int space = MAXLEN - opcode.length() + 2;
-    
-        p.print("\t" + opcode);
-        for (int k = 1; k <= space; k++) 
-            p.print(" ");
-        p.print(arg1 + ", " + arg3 + "(" + arg2 + ")");
-        if (comment != "") 
-            p.print("\t#" + comment);
-        p.println();
+        emit(Instr.indexed(opcode, comment, arg1, arg2, arg3));
     }
     
     public static void generateIndexed(String opcode, String arg1, String arg2,
@@ -188,22 +202,11 @@ public class Codegen {
     // **********************************************************************
     // generateLabeled (string args -- perhaps empty)
     //    given:  label, op code, comment, and arg
-    //    do:     write nicely formatted code (ending with new line)
+    //    do:     buffer the instruction (see flush)
     // **********************************************************************
     public static void generateLabeled(String label, String opcode,
                                        String comment, String arg1) {
-        int space = MAXLEN - opcode.length() + 2;
-    
-        p.print(label + ":");
-        p.print("\t" + opcode);
-        if (arg1 != "") {
-            for (int k = 1; k <= space; k++) 
-                p.print(" ");
-            p.print(arg1);
-        }
-        if (comment != "") 
-            p.print("\t# " + comment);
-        p.println();
+        emit(Instr.labeled(label, opcode, comment, arg1));
     }
 
     public static void generateLabeled(String label, String opcode,
@@ -235,16 +238,190 @@ public class Codegen {
     //   generate: L:    # comment
     // **********************************************************************
     public static void genLabel(String label, String comment) {
-        p.print(label + ":");
-        if (comment != "") 
-            p.print("\t\t" + "# " + comment);
-        p.println();
+        emit(Instr.label(label, comment));
     }
     
     public static void genLabel(String label) {
         genLabel(label, "");
     }
+
+    // **********************************************************************
+    // emit
+    //    add an instruction to the buffer
+    // **********************************************************************
+    public static void emit(Instr instr) {
+        code.add(instr);
+    }
+
+    // **********************************************************************
+    // flush
+    //    run the peephole optimizer over the buffered instructions, write
+    //    the data segment and them to p, and empty both
+    // **********************************************************************
+    public static void flush() {
+        Peephole.optimize(code);
+        Scheduler.schedule(code);
+        for (Instr instr : data.instrs())
+            p.println(instr);
+        for (Instr instr : code)
+            p.println(instr);
+        code.clear();
+        data.clear();
+    }
+
+    // **********************************************************************
+    // data
+    //    the data segment being built
+    // **********************************************************************
+    public static DataSegment data() {
+        return data;
+    }
     
+    // **********************************************************************
+    // **********************************************************************
+    // IR OPERANDS
+    // **********************************************************************
+    // **********************************************************************
+
+    // **********************************************************************
+    // setFrame
+    //    address the frame slots (whose offsets are distances below FP)
+    //    from base, which is bias bytes below where FP would point
+    // **********************************************************************
+    public static void setFrame(String base, int bias) {
+        frameReg = base;
+        frameBias = bias;
+    }
+
+    // **********************************************************************
+    // genFrameAccess
+    //    generate a load or store (op) of reg from or to the frame slot
+    //    offset bytes below FP
+    // **********************************************************************
+    private static void genFrameAccess(String op, String reg, int offset,
+                                       String comment) {
+        generateIndexed(op, reg, frameReg, frameBias - offset, comment);
+    }
+
+    // **********************************************************************
+    // genLoad
+    //    generate code to get the value of the given operand into a
+    //    register and return that register: a temp's own register, or
+    //    else the given scratch register
+    // **********************************************************************
+    public static String genLoad(Operand op, String scratch) {
+        if (op instanceof Temp) {
+            Temp t = (Temp)op;
+            if (t.reg() != null)
+                return t.reg();
+            genFrameAccess("lw", scratch, t.spillOffset(), "SPILL");
+        }
+        else if (op instanceof Const) {
+            generate("li", scratch, ((Const)op).value());
+        }
+        else {
+            Var v = (Var)op;
+            if (v.isGlobal())
+                generate("lw", scratch, v.label());
+            else
+                genFrameAccess("lw", scratch, v.frameOffset(), "");
+        }
+        return scratch;
+    }
+
+    // **********************************************************************
+    // genLoadInto
+    //    generate code to get the value of the given operand into reg
+    // **********************************************************************
+    public static void genLoadInto(Operand op, String reg) {
+        String from = genLoad(op, reg);
+        if (!from.equals(reg))
+            generate("move", reg, from);
+    }
+
+    // **********************************************************************
+    // destReg
+    //    return the register a value bound for dst should be computed
+    //    into: a temp's own register, or else the given scratch register
+    //    (followed by genStore)
+    // **********************************************************************
+    public static String destReg(Operand dst, String scratch) {
+        if (dst instanceof Temp && ((Temp)dst).reg() != null)
+            return ((Temp)dst).reg();
+        return scratch;
+    }
+
+    // **********************************************************************
+    // genStore
+    //    generate code to store the value in reg into dst (nothing if reg
+    //    already is dst's register)
+    // **********************************************************************
+    public static void genStore(Operand dst, String reg) {
+        if (dst instanceof Temp) {
+            Temp t = (Temp)dst;
+            if (t.reg() == null)
+                genFrameAccess("sw", reg, t.spillOffset(), "SPILL");
+            else if (!t.reg().equals(reg))
+                generate("move", t.reg(), reg);
+        }
+        else {
+            Var v = (Var)dst;
+            if (v.isGlobal())
+                generate("sw", reg, v.label());
+            else
+                genFrameAccess("sw", reg, v.frameOffset(), "");
+        }
+    }
+
+    // **********************************************************************
+    // **********************************************************************
+    // REGISTER POOL
+    // **********************************************************************
+    // **********************************************************************
+
+    // **********************************************************************
+    // getReg
+    //    return a free register from the pool and mark it in use; callers
+    //    must check numFreeRegs() and spill before the pool runs out
+    // **********************************************************************
+    public static String getReg() {
+        for (int k = 0; k < REGPOOL.length; k++) {
+            if (!regInUse[k]) {
+                regInUse[k] = true;
+                return REGPOOL[k];
+            }
+        }
+        System.err.println("register pool exhausted in Codegen.getReg");
+        System.exit(-1);
+        return null;
+    }
+
+    // **********************************************************************
+    // freeReg
+    //    return the given register to the pool
+    // **********************************************************************
+    public static void freeReg(String reg) {
+        for (int k = 0; k < REGPOOL.length; k++) {
+            if (REGPOOL[k].equals(reg)) {
+                regInUse[k] = false;
+                return;
+            }
+        }
+    }
+
+    // **********************************************************************
+    // numFreeRegs
+    //    return the number of pool registers not currently holding a value
+    // **********************************************************************
+    public static int numFreeRegs() {
+        int count = 0;
+        for (int k = 0; k < REGPOOL.length; k++) {
+            if (!regInUse[k])
+                count++;
+        }
+        return count;
+    }
+
     // **********************************************************************
     // Return a different label each time:
     //        L0 L1 L2, etc.
@@ -256,3 +433,160 @@ public class Codegen {
     }
 }
 
+// **********************************************************************
+// Instr is one buffered line of assembly: an instruction or directive
+// (opcode and up to 3 args, the second one possibly an indexed address
+// "offset(base)"), a label, or both.
+// **********************************************************************
+
+class Instr {
+    public Instr(String opcode, String comment, String arg1, String arg2,
+                 String arg3) {
+        myOpcode = opcode;
+        myComment = comment;
+        myArgs = new ArrayList<String>();
+        for (String arg : new String[] {arg1, arg2, arg3}) {
+            if (arg.equals(""))
+                break;
+            myArgs.add(arg);
+        }
+    }
+
+    // op arg1, offset(base) //
+    public static Instr indexed(String opcode, String comment, String arg1,
+                                String base, int offset) {
+        Instr instr = new Instr(opcode, comment, arg1, "", "");
+        instr.myBase = base;
+        instr.myOffset = offset;
+        return instr;
+    }
+
+    // label: //
+    public static Instr label(String label, String comment) {
+        Instr instr = new Instr("", comment, "", "", "");
+        instr.myLabel = label;
+        return instr;
+    }
+
+    // label: op arg1 //
+    public static Instr labeled(String label, String opcode, String comment,
+                                String arg1) {
+        Instr instr = new Instr(opcode, comment, arg1, "", "");
+        instr.myLabel = label;
+        return instr;
+    }
+
+    public String opcode() {
+        return myOpcode;
+    }
+
+    public String label() {
+        return myLabel;
+    }
+
+    public List<String> args() {
+        return myArgs;
+    }
+
+    public String arg(int k) {
+        return myArgs.get(k);
+    }
+
+    public int numArgs() {
+        return myArgs.size();
+    }
+
+    // a bare label (no instruction) //
+    public boolean isLabel() {
+        return myLabel != null && myOpcode.equals("");
+    }
+
+    public boolean isDirective() {
+        return myOpcode.startsWith(".");
+    }
+
+    // lw/sw-style instruction with an offset(base) address //
+    public boolean isIndexed() {
+        return myBase != null;
+    }
+
+    public String base() {
+        return myBase;
+    }
+
+    public int offset() {
+        return myOffset;
+    }
+
+    // the memory operand of a load or store, as written //
+    public String address() {
+        if (isIndexed())
+            return myOffset + "(" + myBase + ")";
+        return myArgs.get(1);
+    }
+
+    public boolean is(String opcode) {
+        return myOpcode.equals(opcode);
+    }
+
+    // branch or jump to a label - the target is the last arg //
+    public boolean isBranch() {
+        return myOpcode.equals("b") || myOpcode.equals("j") ||
+               (myOpcode.startsWith("b") && myOpcode.length() > 2 &&
+                !isIndexed());
+    }
+
+    public boolean isUnconditionalJump() {
+        return myOpcode.equals("b") || myOpcode.equals("j") ||
+               myOpcode.equals("jr");
+    }
+
+    public String target() {
+        return myArgs.get(myArgs.size() - 1);
+    }
+
+    public void setTarget(String label) {
+        myArgs.set(myArgs.size() - 1, label);
+    }
+
+    public void setOpcode(String opcode) {
+        myOpcode = opcode;
+    }
+
+    public String toString() {
+        String str = "";
+        if (myLabel != null)
+            str += myLabel + ":";
+        if (isLabel()) {
+            if (!myComment.equals(""))
+                str += "\t\t# " + myComment;
+            return str;
+        }
+
+        str += "\t" + myOpcode;
+        if (!myArgs.isEmpty() || isIndexed()) {
+            for (int k = 1; k <= MAXLEN - myOpcode.length() + 2; k++)
+                str += " ";
+            for (int k = 0; k < myArgs.size(); k++) {
+                if (k > 0)
+                    str += ", ";
+                str += myArgs.get(k);
+            }
+            if (isIndexed())
+                str += ", " + address();
+        }
+        if (!myComment.equals(""))
+            str += "\t\t#" + myComment;
+        return str;
+    }
+
+    // for pretty printing generated code
+    private static final int MAXLEN = 4;
+
+    private String myLabel;    // possibly null
+    private String myOpcode;   // "" for a bare label
+    private List<String> myArgs;
+    private String myBase;     // null unless indexed
+    private int myOffset;
+    private String myComment;
+}
@@ -0,0 +1,106 @@
+import java.util.*;
+
+// **********************************************************************
+// DataSegment collects what goes in the data segment - the globals and
+// the string literals - while code is generated, so it can be written
+// out ahead of the code (see Codegen.flush):
+//
+//     addGlobal       reserve space for a global (struct-sized)
+//     isSmall         whether a global is in the $gp area
+//     stringLabel     the label of a string literal; identical literals
+//                     share one label
+//     instrs          the directives of the whole segment
+//
+// Globals of up to SMALL bytes are declared with .extern rather than
+// given a .space in .data.  SPIM puts those in the 64K area at the
+// bottom of the data segment that $gp points into the middle of, and
+// assembles a lw / sw by label of one of them as one lw / sw off $gp
+// instead of a lui and a lw / sw.
+// **********************************************************************
+
+public class DataSegment {
+
+    // the largest global SPIM puts in the $gp area, and the size of it //
+    private static final int SMALL = 8;
+    private static final int SMALL_MAX = 0x10000;
+
+    // **********************************************************************
+    // addGlobal
+    //    reserve size bytes at label
+    // **********************************************************************
+    public void addGlobal(String label, int size) {
+        int words = (size + 3) / 4 * 4;
+        if (words <= SMALL && mySmallSize + words < SMALL_MAX) {
+            mySmallGlobals.put(label, words);
+            mySmallSize += words;
+        }
+        else
+            myGlobals.put(label, size);
+    }
+
+    // **********************************************************************
+    // isSmall
+    //    is the global at label in the $gp area (so that a load or store
+    //    of it by label is one instruction)?
+    // **********************************************************************
+    public boolean isSmall(String label) {
+        return mySmallGlobals.containsKey(label);
+    }
+
+    // **********************************************************************
+    // stringLabel
+    //    return the label of literal (as written in the source, quotes
+    //    and escapes included), adding it on first use
+    // **********************************************************************
+    public String stringLabel(String literal) {
+        String label = myStrings.get(literal);
+        if (label == null) {
+            label = Codegen.nextLabel();
+            myStrings.put(literal, label);
+        }
+        return label;
+    }
+
+    // **********************************************************************
+    // instrs
+    //    the segment: the .externs, then .data with the other globals
+    //    (each rounded up to whole words, so one alignment does) and the
+    //    strings.  SPIM lays .externs out one after the other without
+    //    aligning them, so their sizes are rounded up to whole words too
+    // **********************************************************************
+    public List<Instr> instrs() {
+        List<Instr> instrs = new ArrayList<Instr>();
+        for (Map.Entry<String, Integer> e : mySmallGlobals.entrySet())
+            instrs.add(new Instr(".extern " + e.getKey() + " " + e.getValue(),
+                                 "", "", "", ""));
+        if (myGlobals.isEmpty() && myStrings.isEmpty())
+            return instrs;
+
+        instrs.add(new Instr(".data", "", "", "", ""));
+        if (!myGlobals.isEmpty())
+            instrs.add(new Instr(".align 2", "", "", "", ""));
+        for (Map.Entry<String, Integer> e : myGlobals.entrySet())
+            instrs.add(Instr.labeled(e.getKey(), ".space ", "",
+                                     "" + (e.getValue() + 3) / 4 * 4));
+        for (Map.Entry<String, String> e : myStrings.entrySet())
+            instrs.add(Instr.labeled(e.getValue(), ".asciiz ", "",
+                                     e.getKey()));
+        return instrs;
+    }
+
+    public void clear() {
+        mySmallGlobals.clear();
+        mySmallSize = 0;
+        myGlobals.clear();
+        myStrings.clear();
+    }
+
+    // in order of addition //
+    private Map<String, Integer> mySmallGlobals =
+        new LinkedHashMap<String, Integer>();
+    private int mySmallSize = 0;
+    private Map<String, Integer> myGlobals =
+        new LinkedHashMap<String, Integer>();
+    private Map<String, String> myStrings =
+        new LinkedHashMap<String, String>();
+}
@@ -0,0 +1,527 @@
+import java.util.*;
+
+// **********************************************************************
+// Dataflow is a generic iterative solver for bit-vector dataflow
+// problems over a CFG.  A problem (subclass) gives:
+//
+//     the direction                forward or backward
+//     the meet                     union ("may") or intersection ("must")
+//     the boundary value           at the entry (forward) or the exits
+//                                  (backward)
+//     gen and kill of each quad    out = gen + (in - kill)
+//
+// The per-quad gen/kill sets are composed into per-block ones once, and
+// the block equations are solved with a worklist seeded in reverse
+// postorder (postorder for backward problems), so typical functions
+// converge in a couple of passes over the blocks.
+//
+// Here are the problems built on it:
+//
+//     Liveness          backward, union:  temps and variables that may
+//                       be read before being written again
+//     ReachingDefs      forward, union:   definitions that may reach a
+//                       point without being overwritten
+//     AvailableExprs    forward, intersection: expressions computed on
+//                       every path to a point whose operands have not
+//                       changed since
+// **********************************************************************
+
+abstract public class Dataflow {
+
+    protected Dataflow(CFG cfg, boolean forward) {
+        myCFG = cfg;
+        myForward = forward;
+    }
+
+    // **********************************************************************
+    // the problem
+    // **********************************************************************
+
+    // number of bits in the sets //
+    abstract protected int size();
+
+    // true for intersection, false for union //
+    abstract protected boolean isMust();
+
+    // value at the entry (forward) or exits (backward) //
+    abstract protected BitSet boundary();
+
+    abstract protected void gen(Quad q, BitSet gen);
+    abstract protected void kill(Quad q, BitSet kill);
+
+    // **********************************************************************
+    // solve
+    //    compute in and out of every block; subclasses call this at the
+    //    end of their constructor
+    // **********************************************************************
+    protected void solve() {
+        List<BasicBlock> blocks = myCFG.blocks();
+        int n = blocks.size();
+        myIn = new BitSet[n];
+        myOut = new BitSet[n];
+        BitSet[] blockGen = new BitSet[n];
+        BitSet[] blockKill = new BitSet[n];
+
+        for (BasicBlock b : blocks) {
+            BitSet gen = new BitSet(size());
+            BitSet kill = new BitSet(size());
+            for (Quad q : flowOrder(b)) {
+                BitSet qGen = new BitSet(size());
+                BitSet qKill = new BitSet(size());
+                gen(q, qGen);
+                kill(q, qKill);
+                gen.andNot(qKill);
+                gen.or(qGen);
+                kill.or(qKill);
+            }
+            blockGen[b.id()] = gen;
+            blockKill[b.id()] = kill;
+
+            myIn[b.id()] = new BitSet(size());
+            myOut[b.id()] = new BitSet(size());
+            if (isMust())
+                result(b).set(0, size());
+        }
+
+        List<BasicBlock> order = myCFG.reversePostorder();
+        if (!myForward)
+            Collections.reverse(order);
+        // unreachable blocks are solved too (after the others) //
+        boolean[] ordered = new boolean[n];
+        for (BasicBlock b : order)
+            ordered[b.id()] = true;
+        for (BasicBlock b : blocks) {
+            if (!ordered[b.id()])
+                order.add(b);
+        }
+
+        Deque<BasicBlock> worklist = new ArrayDeque<BasicBlock>(order);
+        boolean[] queued = new boolean[n];
+        Arrays.fill(queued, true);
+
+        while (!worklist.isEmpty()) {
+            BasicBlock b = worklist.poll();
+            queued[b.id()] = false;
+
+            // meet over the incoming edges //
+            List<BasicBlock> sources = myForward ? b.preds() : b.succs();
+            BitSet meet = new BitSet(size());
+            if (sources.isEmpty() || (myForward && b == myCFG.entry()))
+                meet = boundary();
+            else if (isMust())
+                meet.set(0, size());
+            for (BasicBlock src : sources) {
+                if (isMust())
+                    meet.and(result(src));
+                else
+                    meet.or(result(src));
+            }
+            if (myForward)
+                myIn[b.id()] = meet;
+            else
+                myOut[b.id()] = meet;
+
+            // transfer //
+            BitSet result = (BitSet)meet.clone();
+            result.andNot(blockKill[b.id()]);
+            result.or(blockGen[b.id()]);
+            if (result.equals(result(b)))
+                continue;
+            if (myForward)
+                myOut[b.id()] = result;
+            else
+                myIn[b.id()] = result;
+
+            for (BasicBlock dst : myForward ? b.succs() : b.preds()) {
+                if (!queued[dst.id()]) {
+                    queued[dst.id()] = true;
+                    worklist.add(dst);
+                }
+            }
+        }
+    }
+
+    // **********************************************************************
+    // results
+    // **********************************************************************
+
+    public BitSet in(BasicBlock b) {
+        return myIn[b.id()];
+    }
+
+    public BitSet out(BasicBlock b) {
+        return myOut[b.id()];
+    }
+
+    // **********************************************************************
+    // quadValues
+    //    the value just before each quad of b (forward problems), or just
+    //    after it (backward problems), in the order of b's quads
+    // **********************************************************************
+    public List<BitSet> quadValues(BasicBlock b) {
+        List<BitSet> values = new ArrayList<BitSet>();
+        BitSet curr = (BitSet)(myForward ? in(b) : out(b)).clone();
+        for (Quad q : flowOrder(b)) {
+            values.add((BitSet)curr.clone());
+            apply(q, curr);
+        }
+        if (!myForward)
+            Collections.reverse(values);
+        return values;
+    }
+
+    // set = gen(q) + (set - kill(q)) //
+    protected void apply(Quad q, BitSet set) {
+        BitSet kill = new BitSet(size());
+        BitSet gen = new BitSet(size());
+        kill(q, kill);
+        gen(q, gen);
+        set.andNot(kill);
+        set.or(gen);
+    }
+
+    public CFG cfg() {
+        return myCFG;
+    }
+
+    // the block's out (forward) or in (backward) //
+    private BitSet result(BasicBlock b) {
+        return myForward ? myOut[b.id()] : myIn[b.id()];
+    }
+
+    private List<Quad> flowOrder(BasicBlock b) {
+        if (myForward)
+            return b.quads();
+        List<Quad> quads = new ArrayList<Quad>(b.quads());
+        Collections.reverse(quads);
+        return quads;
+    }
+
+    // a call that may read or write globals (one not known to be pure) //
+    protected static boolean touchesGlobals(Quad q) {
+        return q instanceof CallQuad && !((CallQuad)q).isPure();
+    }
+
+    private CFG myCFG;
+    private boolean myForward;
+    private BitSet[] myIn;
+    private BitSet[] myOut;
+}
+
+// **********************************************************************
+// Locations numbers the temps and variables (struct fields separately)
+// of a function, for use as bit indices.
+// **********************************************************************
+
+class Locations {
+    public Locations(IRFunction fn) {
+        for (Quad q : fn.code()) {
+            for (Operand op : q.uses())
+                add(op);
+            add(q.def());
+        }
+    }
+
+    // index of op (-1 for constants and null) //
+    public int index(Operand op) {
+        Integer k = myIndices.get(op);
+        return k == null ? -1 : k;
+    }
+
+    public Operand get(int k) {
+        return myOperands.get(k);
+    }
+
+    public int size() {
+        return myOperands.size();
+    }
+
+    // the global variables of the function //
+    public BitSet globals() {
+        return myGlobals;
+    }
+
+    private void add(Operand op) {
+        if (!(op instanceof Temp || op instanceof Var) ||
+            myIndices.containsKey(op))
+            return;
+        if (op instanceof Var && ((Var)op).isGlobal())
+            myGlobals.set(myOperands.size());
+        myIndices.put(op, myOperands.size());
+        myOperands.add(op);
+    }
+
+    private Map<Operand, Integer> myIndices = new HashMap<Operand, Integer>();
+    private List<Operand> myOperands = new ArrayList<Operand>();
+    private BitSet myGlobals = new BitSet();
+}
+
+// **********************************************************************
+// Liveness: a location is live at a point if some path from there reads
+// it before writing it.  Globals are live at the exit and read by every
+// call that isn't pure.
+// **********************************************************************
+
+class Liveness extends Dataflow {
+    public Liveness(CFG cfg) {
+        super(cfg, false);
+        myLocations = new Locations(cfg.function());
+        solve();
+    }
+
+    public Locations locations() {
+        return myLocations;
+    }
+
+    public boolean isLive(BitSet set, Operand op) {
+        int k = myLocations.index(op);
+        return k >= 0 && set.get(k);
+    }
+
+    protected int size() {
+        return myLocations.size();
+    }
+
+    protected boolean isMust() {
+        return false;
+    }
+
+    protected BitSet boundary() {
+        return (BitSet)myLocations.globals().clone();
+    }
+
+    protected void gen(Quad q, BitSet gen) {
+        for (Operand op : q.uses()) {
+            int k = myLocations.index(op);
+            if (k >= 0)
+                gen.set(k);
+        }
+        if (touchesGlobals(q))
+            gen.or(myLocations.globals());
+    }
+
+    protected void kill(Quad q, BitSet kill) {
+        int k = myLocations.index(q.def());
+        if (k >= 0)
+            kill.set(k);
+    }
+
+    private Locations myLocations;
+}
+
+// **********************************************************************
+// ReachingDefs: the definitions (quads writing a location) that may
+// reach a point.  A call that isn't pure counts as a definition of
+// every global.
+// **********************************************************************
+
+class ReachingDefs extends Dataflow {
+    public ReachingDefs(CFG cfg) {
+        super(cfg, true);
+        myLocations = new Locations(cfg.function());
+
+        for (BasicBlock b : cfg.blocks()) {
+            for (Quad q : b.quads()) {
+                for (int loc : defined(q)) {
+                    BitSet defs = myDefsOf.get(loc);
+                    if (defs == null) {
+                        defs = new BitSet();
+                        myDefsOf.put(loc, defs);
+                    }
+                    defs.set(myDefs.size());
+                    BitSet own = myDefsBy.get(q);
+                    if (own == null) {
+                        own = new BitSet();
+                        myDefsBy.put(q, own);
+                    }
+                    own.set(myDefs.size());
+                    myDefs.add(q);
+                    myDefLocs.add(loc);
+                }
+            }
+        }
+        solve();
+    }
+
+    public Locations locations() {
+        return myLocations;
+    }
+
+    // the quad of definition k //
+    public Quad def(int k) {
+        return myDefs.get(k);
+    }
+
+    // the location written by definition k //
+    public Operand defLocation(int k) {
+        return myLocations.get(myDefLocs.get(k));
+    }
+
+    // the definitions of op (an empty set if none) //
+    public BitSet defsOf(Operand op) {
+        BitSet defs = myDefsOf.get(myLocations.index(op));
+        return defs == null ? new BitSet() : defs;
+    }
+
+    protected int size() {
+        return myDefs.size();
+    }
+
+    protected boolean isMust() {
+        return false;
+    }
+
+    protected BitSet boundary() {
+        return new BitSet();
+    }
+
+    protected void gen(Quad q, BitSet gen) {
+        BitSet own = myDefsBy.get(q);
+        if (own != null)
+            gen.or(own);
+    }
+
+    protected void kill(Quad q, BitSet kill) {
+        for (int loc : defined(q))
+            kill.or(myDefsOf.get(loc));
+    }
+
+    // location indices q writes //
+    private List<Integer> defined(Quad q) {
+        List<Integer> locs = new ArrayList<Integer>();
+        int k = myLocations.index(q.def());
+        if (k >= 0)
+            locs.add(k);
+        if (touchesGlobals(q)) {
+            BitSet globals = myLocations.globals();
+            for (int g = globals.nextSetBit(0); g >= 0;
+                 g = globals.nextSetBit(g + 1))
+                locs.add(g);
+        }
+        return locs;
+    }
+
+    private Locations myLocations;
+    private List<Quad> myDefs = new ArrayList<Quad>();
+    private List<Integer> myDefLocs = new ArrayList<Integer>();
+    private Map<Integer, BitSet> myDefsOf = new HashMap<Integer, BitSet>();
+    private Map<Quad, BitSet> myDefsBy = new IdentityHashMap<Quad, BitSet>();
+}
+
+// **********************************************************************
+// AvailableExprs: the expressions (the right-hand sides of BinOpQuads and
+// UnOpQuads, and pure calls) computed on every path to a point with none
+// of their operands written since.  A call that isn't pure kills the
+// expressions reading globals.
+// **********************************************************************
+
+class AvailableExprs extends Dataflow {
+    public AvailableExprs(CFG cfg) {
+        super(cfg, true);
+        myLocations = new Locations(cfg.function());
+
+        for (BasicBlock b : cfg.blocks()) {
+            for (Quad q : b.quads()) {
+                String key = key(q);
+                if (key == null || myIndices.containsKey(key))
+                    continue;
+                int k = myExprs.size();
+                myIndices.put(key, k);
+                myExprs.add(q);
+                for (Operand op : q.uses()) {
+                    int loc = myLocations.index(op);
+                    if (loc < 0)
+                        continue;
+                    BitSet users = myUsers.get(loc);
+                    if (users == null) {
+                        users = new BitSet();
+                        myUsers.put(loc, users);
+                    }
+                    users.set(k);
+                    if (myLocations.globals().get(loc))
+                        myGlobalUsers.set(k);
+                }
+            }
+        }
+        solve();
+    }
+
+    // **********************************************************************
+    // key
+    //    a string identifying the expression q computes (null if q is
+    //    not a BinOpQuad, UnOpQuad or pure call with a result), e.g.,
+    //    "0 L3 #1" for loc3 + 1
+    // **********************************************************************
+    public String key(Quad q) {
+        if (q instanceof CallQuad) {
+            CallQuad call = (CallQuad)q;
+            if (!call.isPure() || call.dst() == null)
+                return null;
+            String key = "call " + call.name();
+            for (Operand arg : call.args())
+                key += " " + operandKey(arg);
+            return key;
+        }
+        if (q instanceof BinOpQuad) {
+            BinOpQuad b = (BinOpQuad)q;
+            return b.op() + " " + operandKey(b.src1()) + " " +
+                   operandKey(b.src2());
+        }
+        if (q instanceof UnOpQuad) {
+            UnOpQuad u = (UnOpQuad)q;
+            return u.op() + " " + operandKey(u.src());
+        }
+        return null;
+    }
+
+    // temps and variables by location, constants by value //
+    private String operandKey(Operand op) {
+        if (op instanceof Const)
+            return "#" + ((Const)op).value();
+        return "L" + myLocations.index(op);
+    }
+
+    // index of q's expression (-1 if none) //
+    public int index(Quad q) {
+        Integer k = myIndices.get(key(q));
+        return k == null ? -1 : k;
+    }
+
+    // the first quad computing expression k //
+    public Quad expr(int k) {
+        return myExprs.get(k);
+    }
+
+    protected int size() {
+        return myExprs.size();
+    }
+
+    protected boolean isMust() {
+        return true;
+    }
+
+    protected BitSet boundary() {
+        return new BitSet();
+    }
+
+    protected void gen(Quad q, BitSet gen) {
+        int k = index(q);
+        // x = x + 1 doesn't leave x + 1 available //
+        if (k >= 0 && !q.uses().contains(q.def()))
+            gen.set(k);
+    }
+
+    protected void kill(Quad q, BitSet kill) {
+        BitSet users = myUsers.get(myLocations.index(q.def()));
+        if (users != null)
+            kill.or(users);
+        if (touchesGlobals(q))
+            kill.or(myGlobalUsers);
+    }
+
+    private Locations myLocations;
+    private Map<String, Integer> myIndices = new HashMap<String, Integer>();
+    private List<Quad> myExprs = new ArrayList<Quad>();
+    private Map<Integer, BitSet> myUsers = new HashMap<Integer, BitSet>();
+    private BitSet myGlobalUsers = new BitSet();
+}
@@ -0,0 +1,186 @@
+import java.util.*;
+
+// **********************************************************************
+// DeadCode removes code whose execution can't matter:
+//
+//   - conditional jumps on constants become plain jumps (or go away),
+//     so e.g. the body of if (false) is left unreachable
+//   - blocks not reachable from the function's entry (including code
+//     after a return) are dropped
+//   - jumps to the label right after them, and unused labels, are
+//     dropped
+//   - quads computing a value into a temp or local that is not live
+//     afterwards are dropped (dead stores), safe calls (see CallGraph)
+//     included
+//   - functions not reachable through calls from main are dropped
+// **********************************************************************
+
+public class DeadCode {
+
+    // **********************************************************************
+    // removeUncalled
+    //    drop the functions main can never call
+    // **********************************************************************
+    public static void removeUncalled(IRProgram prog) {
+        Map<String, IRFunction> byName = new HashMap<String, IRFunction>();
+        for (IRFunction fn : prog.functions())
+            byName.put(fn.name(), fn);
+        if (!byName.containsKey("main"))
+            return;
+
+        Set<String> called = new HashSet<String>();
+        Deque<String> worklist = new ArrayDeque<String>();
+        called.add("main");
+        worklist.add("main");
+        while (!worklist.isEmpty()) {
+            IRFunction fn = byName.get(worklist.poll());
+            for (Quad q : fn.code()) {
+                if (!(q instanceof CallQuad))
+                    continue;
+                String name = ((CallQuad)q).name();
+                if (byName.containsKey(name) && called.add(name))
+                    worklist.add(name);
+            }
+        }
+
+        Iterator<IRFunction> it = prog.functions().iterator();
+        while (it.hasNext()) {
+            if (!called.contains(it.next().name()))
+                it.remove();
+        }
+    }
+
+    // **********************************************************************
+    // optimize
+    //    remove the dead code of fn
+    // **********************************************************************
+    public static void optimize(IRFunction fn) {
+        boolean changed = true;
+        while (changed) {
+            changed = foldBranches(fn);
+            changed |= removeUnreachable(fn);
+            changed |= removeDeadStores(fn);
+        }
+    }
+
+    // **********************************************************************
+    // foldBranches
+    //    resolve conditional jumps comparing constants, and drop jumps
+    //    to the next quad and labels nothing jumps to
+    // **********************************************************************
+    private static boolean foldBranches(IRFunction fn) {
+        boolean changed = false;
+        List<Quad> code = new ArrayList<Quad>();
+
+        for (Quad q : fn.code()) {
+            if (q instanceof CondJumpQuad) {
+                CondJumpQuad cj = (CondJumpQuad)q;
+                if (cj.src1() instanceof Const && cj.src2() instanceof Const) {
+                    changed = true;
+                    if (Quad.evaluate(cj.op(), ((Const)cj.src1()).value(),
+                                      ((Const)cj.src2()).value()) != 1)
+                        continue;
+                    q = new JumpQuad(cj.target());
+                }
+            }
+            code.add(q);
+        }
+
+        // goto L; L: //
+        for (int k = 0; k + 1 < code.size(); k++) {
+            Quad q = code.get(k);
+            Quad next = code.get(k + 1);
+            if (q.target() != null && next instanceof LabelQuad &&
+                q.target().equals(((LabelQuad)next).label())) {
+                code.remove(k);
+                k = Math.max(k - 2, -1);
+                changed = true;
+            }
+        }
+
+        // labels nothing jumps to //
+        Set<String> targets = new HashSet<String>();
+        for (Quad q : code) {
+            if (q.target() != null)
+                targets.add(q.target());
+        }
+        Iterator<Quad> it = code.iterator();
+        while (it.hasNext()) {
+            Quad q = it.next();
+            if (q instanceof LabelQuad &&
+                !targets.contains(((LabelQuad)q).label())) {
+                it.remove();
+                changed = true;
+            }
+        }
+
+        fn.setCode(code);
+        return changed;
+    }
+
+    // **********************************************************************
+    // removeUnreachable
+    //    drop the blocks no path from the entry reaches
+    // **********************************************************************
+    private static boolean removeUnreachable(IRFunction fn) {
+        CFG cfg = new CFG(fn);
+        List<BasicBlock> reachable = cfg.reversePostorder();
+        if (reachable.size() == cfg.blocks().size())
+            return false;
+
+        boolean[] keep = new boolean[cfg.blocks().size()];
+        for (BasicBlock b : reachable)
+            keep[b.id()] = true;
+
+        // keep the surviving blocks in their original order //
+        List<Quad> code = new ArrayList<Quad>();
+        for (BasicBlock b : cfg.blocks()) {
+            if (keep[b.id()])
+                code.addAll(b.quads());
+        }
+        fn.setCode(code);
+        return true;
+    }
+
+    // **********************************************************************
+    // removeDeadStores
+    //    drop side-effect-free quads whose result is never read
+    // **********************************************************************
+    private static boolean removeDeadStores(IRFunction fn) {
+        Liveness live = new Liveness(new CFG(fn));
+        boolean changed = false;
+        List<Quad> code = new ArrayList<Quad>();
+
+        for (BasicBlock b : live.cfg().blocks()) {
+            List<BitSet> liveOut = live.quadValues(b);
+            for (int k = 0; k < b.quads().size(); k++) {
+                Quad q = b.quads().get(k);
+                if (isRemovable(q) && !live.isLive(liveOut.get(k), q.def())) {
+                    changed = true;
+                    continue;
+                }
+                code.add(q);
+            }
+        }
+        fn.setCode(code);
+        return changed;
+    }
+
+    // a quad that only computes its result (into a temp or local) //
+    private static boolean isRemovable(Quad q) {
+        if (!(q instanceof MoveQuad || q instanceof BinOpQuad ||
+              q instanceof UnOpQuad || q instanceof LoadStrQuad ||
+              q instanceof ArgQuad ||
+              (q instanceof CallQuad && ((CallQuad)q).isSafe() &&
+               !q.isUnconditionalJump())))
+            return false;
+        if (q.def() instanceof Var && ((Var)q.def()).isGlobal())
+            return false;
+        // keep a division that could trap //
+        if (q instanceof BinOpQuad && ((BinOpQuad)q).op() == Quad.DIV) {
+            Operand divisor = ((BinOpQuad)q).src2();
+            return divisor instanceof Const && ((Const)divisor).value() != 0;
+        }
+        return true;
+    }
+}
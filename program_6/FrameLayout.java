@@ -0,0 +1,152 @@
+import java.util.*;
+
+// **********************************************************************
+// FrameLayout gives the locals of a function their frame slots once the
+// IR is optimized, replacing the one-slot-per-declaration layout from
+// name analysis:
+//
+//   - locals the code no longer mentions get no slot at all
+//   - two locals share space unless they interfere, i.e., one is live
+//     where the other is written, or both are live at the same point
+//     (so variables of disjoint scopes, or with disjoint live ranges,
+//     overlap)
+//
+// Slots are handed out first-fit, biggest variables (structs) first.
+// Every field of a struct counts as the struct itself.
+// **********************************************************************
+
+public class FrameLayout {
+
+    // **********************************************************************
+    // assignSlots
+    //    set the offsets of fn's locals and the size of its frame
+    // **********************************************************************
+    public static void assignSlots(IRFunction fn) {
+        List<SemSym> locals = locals(fn);
+        Map<SemSym, Set<SemSym>> conflicts = conflicts(fn);
+
+        // biggest first (stable, so the layout follows the code) //
+        Collections.sort(locals, new Comparator<SemSym>() {
+            public int compare(SemSym a, SemSym b) {
+                return size(b) - size(a);
+            }
+        });
+
+        Map<SemSym, Integer> starts = new HashMap<SemSym, Integer>();
+        int frameSize = 0;
+        for (SemSym sym : locals) {
+            int start = firstFit(sym, conflicts.get(sym), starts);
+            starts.put(sym, start);
+            frameSize = Math.max(frameSize, start + size(sym));
+
+            // a local points at its lowest word (see VarDeclNode) //
+            sym.setOffset(fn.formalsSize() + 8 + start + size(sym) - 4);
+        }
+        fn.setLocalsSize(frameSize);
+    }
+
+    // lowest start (in bytes past the first local slot) for sym that
+    // doesn't overlap the space of a conflicting local //
+    private static int firstFit(SemSym sym, Set<SemSym> conflicts,
+                                Map<SemSym, Integer> starts) {
+        int start = 0;
+        boolean moved = true;
+        while (moved) {
+            moved = false;
+            for (SemSym other : conflicts) {
+                Integer otherStart = starts.get(other);
+                if (otherStart == null)
+                    continue;
+                int otherEnd = otherStart + size(other);
+                if (start < otherEnd && otherStart < start + size(sym)) {
+                    start = otherEnd;
+                    moved = true;
+                }
+            }
+        }
+        return start;
+    }
+
+    // **********************************************************************
+    // conflicts
+    //    the locals each local interferes with
+    // **********************************************************************
+    private static Map<SemSym, Set<SemSym>> conflicts(IRFunction fn) {
+        Map<SemSym, Set<SemSym>> conflicts =
+            new HashMap<SemSym, Set<SemSym>>();
+        for (SemSym sym : locals(fn))
+            conflicts.put(sym, new HashSet<SemSym>());
+
+        Liveness live = new Liveness(new CFG(fn));
+        List<BasicBlock> blocks = live.cfg().blocks();
+        if (!blocks.isEmpty()) {
+            // read before being written (never initialized) //
+            addAll(conflicts,
+                   localsIn(fn, live, live.in(live.cfg().entry()), null));
+        }
+        for (BasicBlock b : blocks) {
+            List<BitSet> liveOut = live.quadValues(b);
+            for (int k = 0; k < b.quads().size(); k++) {
+                addAll(conflicts, localsIn(fn, live, liveOut.get(k),
+                                           b.quads().get(k).def()));
+            }
+        }
+        return conflicts;
+    }
+
+    // every two of syms conflict //
+    private static void addAll(Map<SemSym, Set<SemSym>> conflicts,
+                               Set<SemSym> syms) {
+        for (SemSym a : syms) {
+            for (SemSym b : syms) {
+                if (a != b)
+                    conflicts.get(a).add(b);
+            }
+        }
+    }
+
+    // the locals live in set, plus the one written (if def is a local) //
+    private static Set<SemSym> localsIn(IRFunction fn, Liveness live,
+                                        BitSet set, Operand def) {
+        Set<SemSym> syms = new HashSet<SemSym>();
+        for (int k = set.nextSetBit(0); k >= 0; k = set.nextSetBit(k + 1)) {
+            Operand op = live.locations().get(k);
+            if (isLocal(fn, op))
+                syms.add(((Var)op).sym());
+        }
+        if (isLocal(fn, def))
+            syms.add(((Var)def).sym());
+        return syms;
+    }
+
+    // **********************************************************************
+    // helpers
+    // **********************************************************************
+
+    // the locals mentioned in fn, in order of appearance //
+    private static List<SemSym> locals(IRFunction fn) {
+        Set<SemSym> locals = new LinkedHashSet<SemSym>();
+        for (Quad q : fn.code()) {
+            List<Operand> ops = q.uses();
+            ops.add(q.def());
+            for (Operand op : ops) {
+                if (isLocal(fn, op))
+                    locals.add(((Var)op).sym());
+            }
+        }
+        return new ArrayList<SemSym>(locals);
+    }
+
+    // a variable in fn's frame that is not a formal //
+    private static boolean isLocal(IRFunction fn, Operand op) {
+        if (!(op instanceof Var) || ((Var)op).isGlobal())
+            return false;
+        return fn.formalIndex(((Var)op).sym().getOffset()) < 0;
+    }
+
+    private static int size(SemSym sym) {
+        if (sym instanceof StructSym)
+            return ((StructSym)sym).getSize();
+        return 4;
+    }
+}
@@ -0,0 +1,232 @@
+// **********************************************************************
+// IORuntime is the small library of MIPS routines that cin and cout go
+// through, emitted (by generate) into programs that read or write:
+//
+//     _rt_putint      append the int in $a0, in decimal, to the output
+//                     buffer
+//     _rt_putstr      append the string at $a0 to the output buffer
+//     _rt_flush       print the output buffer and empty it
+//     _rt_getint      return the next int of the input in $v0
+//
+// Output is collected in a buffer and printed (one syscall) when a
+// newline is written, when the buffer fills up, before reading input
+// (so prompts appear), and at the end of main.  Input is read a line
+// (up to INSIZE - 1 chars) at a time and ints are parsed out of it; a
+// number split across two reads of a very long line is read as two.
+// The char that ends a number is skipped, so "12,5" reads as 12 and 5,
+// and a stray char reads as 0 (input goes on after it).  At the end of
+// the input, _rt_getint returns 0.
+//
+// The routines only use $v0, $v1 and $a0 - $a3, which never hold temps,
+// so callers save nothing around them (but they do clobber $ra).
+// **********************************************************************
+
+public class IORuntime {
+
+    public static final String PUTINT = "_rt_putint";
+    public static final String PUTSTR = "_rt_putstr";
+    public static final String FLUSH = "_rt_flush";
+    public static final String GETINT = "_rt_getint";
+
+    // buffer sizes in bytes //
+    private static final int OUTSIZE = 1024;
+    private static final int INSIZE = 256;
+
+    private static final String OUTBUF = "_rt_outbuf";
+    private static final String OUTPOS = "_rt_outpos";
+    private static final String NUMBUF = "_rt_numbuf";
+    private static final String INBUF = "_rt_inbuf";
+    private static final String INPOS = "_rt_inpos";
+
+    private static boolean generated = false;
+
+    private static final String ZERO = "$zero";
+    private static final String V0 = Codegen.V0;
+    private static final String V1 = Codegen.V1;
+    private static final String A0 = Codegen.A0;
+    private static final String A1 = Codegen.A1;
+    private static final String A2 = Codegen.A2;
+    private static final String A3 = Codegen.A3;
+
+    // **********************************************************************
+    // generate
+    //    emit the routines and reserve their buffers
+    // **********************************************************************
+    public static void generate() {
+        generated = true;
+        DataSegment data = Codegen.data();
+        data.addGlobal(OUTBUF, OUTSIZE);
+        data.addGlobal(OUTPOS, 4);
+        data.addGlobal(NUMBUF, 12);
+        data.addGlobal(INBUF, INSIZE);
+        data.addGlobal(INPOS, 4);
+
+        Codegen.generate(".text");
+        genPutInt();
+        genPutStr();
+        genFlush();
+        genGetInt();
+    }
+
+    // has generate been called (so the routines are there)? //
+    public static boolean isGenerated() {
+        return generated;
+    }
+
+    // **********************************************************************
+    // _rt_putint
+    //    digits are made from -|n| (so the most negative int works),
+    //    last digit first, at the end of NUMBUF; then on to _rt_putstr
+    // **********************************************************************
+    private static void genPutInt() {
+        String loop = Codegen.nextLabel();
+        String positive = Codegen.nextLabel();
+
+        Codegen.genLabel(PUTINT);
+        Codegen.generate("la", A2, NUMBUF + "+11");
+        Codegen.generateIndexed("sb", ZERO, A2, 0);
+        Codegen.generate("move", A1, A0);
+        Codegen.generate("bltz", A1, loop);
+        Codegen.generate("negu", A1, A1);
+        Codegen.genLabel(loop);
+        Codegen.generate("div", V0, A1, "10");
+        Codegen.generate("mul", V1, V0, "10");
+        Codegen.generate("subu", V1, V1, A1);        // next digit //
+        Codegen.generate("addu", V1, V1, "48");      // '0' //
+        Codegen.generate("subu", A2, A2, "1");
+        Codegen.generateIndexed("sb", V1, A2, 0);
+        Codegen.generate("move", A1, V0);
+        Codegen.generate("bnez", A1, loop);
+        Codegen.generate("bgez", A0, positive);
+        Codegen.generate("li", V1, 45);              // '-' //
+        Codegen.generate("subu", A2, A2, "1");
+        Codegen.generateIndexed("sb", V1, A2, 0);
+        Codegen.genLabel(positive);
+        Codegen.generate("move", A0, A2);
+        Codegen.generate("j", PUTSTR);
+    }
+
+    // **********************************************************************
+    // _rt_putstr
+    //    copy chars into OUTBUF (A1 = fill, A2 = next char, A3 = OUTBUF),
+    //    printing it after a newline or when only the space for the
+    //    terminating 0 is left
+    // **********************************************************************
+    private static void genPutStr() {
+        String loop = Codegen.nextLabel();
+        String print = Codegen.nextLabel();
+        String done = Codegen.nextLabel();
+
+        Codegen.genLabel(PUTSTR);
+        Codegen.generate("move", A2, A0);
+        Codegen.generate("la", A3, OUTBUF);
+        Codegen.generate("lw", A1, OUTPOS);
+        Codegen.genLabel(loop);
+        Codegen.generateIndexed("lbu", V1, A2, 0);
+        Codegen.generate("beqz", V1, done);
+        Codegen.generate("addu", V0, A3, A1);
+        Codegen.generateIndexed("sb", V1, V0, 0);
+        Codegen.generate("addu", A1, A1, "1");
+        Codegen.generate("addu", A2, A2, "1");
+        Codegen.generate("beq", V1, "10", print);    // '\n' //
+        Codegen.generate("blt", A1, "" + (OUTSIZE - 1), loop);
+        Codegen.genLabel(print);
+        genPrintBuffer();
+        Codegen.generate("li", A1, 0);
+        Codegen.generate("b", loop);
+        Codegen.genLabel(done);
+        Codegen.generate("sw", A1, OUTPOS);
+        Codegen.generate("jr", Codegen.RA);
+    }
+
+    // **********************************************************************
+    // _rt_flush
+    // **********************************************************************
+    private static void genFlush() {
+        Codegen.genLabel(FLUSH);
+        Codegen.generate("la", A3, OUTBUF);
+        Codegen.generate("lw", A1, OUTPOS);
+        genPrintBuffer();
+        Codegen.generate("sw", ZERO, OUTPOS);
+        Codegen.generate("jr", Codegen.RA);
+    }
+
+    // print the A1 chars of the buffer at A3 //
+    private static void genPrintBuffer() {
+        Codegen.generate("addu", V0, A3, A1);
+        Codegen.generateIndexed("sb", ZERO, V0, 0);
+        Codegen.generate("move", A0, A3);
+        Codegen.generate("li", V0, 4);
+        Codegen.generate("syscall");
+    }
+
+    // **********************************************************************
+    // _rt_getint
+    //    skip blanks (reading more input when the line runs out), then an
+    //    optional '-' and digits, and the char after them (A2 = next
+    //    char, A3 = 1 if negative)
+    // **********************************************************************
+    private static void genGetInt() {
+        String read = Codegen.nextLabel();
+        String skip = Codegen.nextLabel();
+        String sign = Codegen.nextLabel();
+        String digits = Codegen.nextLabel();
+        String done = Codegen.nextLabel();
+        String store = Codegen.nextLabel();
+        String ret = Codegen.nextLabel();
+        String eof = Codegen.nextLabel();
+
+        Codegen.genLabel(GETINT);
+        Codegen.generate("lw", A2, INPOS);
+        Codegen.generate("bnez", A2, skip);
+        Codegen.genLabel(read);
+        // show what was written so far (e.g., a prompt) first //
+        Codegen.generate("la", A3, OUTBUF);
+        Codegen.generate("lw", A1, OUTPOS);
+        genPrintBuffer();
+        Codegen.generate("sw", ZERO, OUTPOS);
+        Codegen.generate("la", A0, INBUF);
+        Codegen.generate("li", A1, INSIZE);
+        Codegen.generate("li", V0, 8);
+        Codegen.generate("syscall");
+        Codegen.generate("la", A2, INBUF);
+        Codegen.generate("lbu", V1, INBUF);
+        Codegen.generate("beqz", V1, eof);
+        Codegen.genLabel(skip);
+        Codegen.generateIndexed("lbu", V1, A2, 0);
+        Codegen.generate("beqz", V1, read);
+        Codegen.generate("bgt", V1, "32", sign);     // past ' ' //
+        Codegen.generate("addu", A2, A2, "1");
+        Codegen.generate("b", skip);
+        Codegen.genLabel(sign);
+        Codegen.generate("li", A3, 0);
+        Codegen.generate("li", V0, 0);
+        Codegen.generate("bne", V1, "45", digits);   // '-' //
+        Codegen.generate("li", A3, 1);
+        Codegen.generate("addu", A2, A2, "1");
+        Codegen.genLabel(digits);
+        Codegen.generateIndexed("lbu", V1, A2, 0);
+        Codegen.generate("blt", V1, "48", done);     // '0' //
+        Codegen.generate("bgt", V1, "57", done);     // '9' //
+        Codegen.generate("mul", V0, V0, "10");
+        Codegen.generate("subu", V1, V1, "48");
+        Codegen.generate("addu", V0, V0, V1);
+        Codegen.generate("addu", A2, A2, "1");
+        Codegen.generate("b", digits);
+        Codegen.genLabel(done);
+        // past the char that ended the number, but not the line's end //
+        Codegen.generate("beqz", V1, store);
+        Codegen.generate("addu", A2, A2, "1");
+        Codegen.genLabel(store);
+        Codegen.generate("sw", A2, INPOS);
+        Codegen.generate("beqz", A3, ret);
+        Codegen.generate("negu", V0, V0);
+        Codegen.genLabel(ret);
+        Codegen.generate("jr", Codegen.RA);
+        // no more input //
+        Codegen.genLabel(eof);
+        Codegen.generate("sw", ZERO, INPOS);
+        Codegen.generate("li", V0, 0);
+        Codegen.generate("jr", Codegen.RA);
+    }
+}
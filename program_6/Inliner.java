@@ -0,0 +1,160 @@
+import java.util.*;
+
+// **********************************************************************
+// Inliner replaces calls to small functions by copies of their bodies.
+//
+// A callee can be inlined if it is not main, is not (mutually)
+// recursive, has at most MAX_CALLEE quads, and has no struct locals.
+// Its formals and locals become new temps of the caller (initialized
+// from the arguments), its temps and labels are renamed, and each
+// return becomes a move into the call's result and a jump past the
+// copy.  A caller stops taking inlined bodies once it has grown to
+// MAX_CALLER quads.
+//
+// With a profile (see Profile), a call that ran at least HOT_CALLS
+// times may take a callee of up to MAX_HOT_CALLEE quads, and a call
+// that never ran is left alone.
+//
+// Functions are handled bottom-up in the CallGraph (callees first), so
+// a function's body has already had its own calls inlined by the time
+// it is copied into its callers.
+// **********************************************************************
+
+public class Inliner {
+
+    // largest function body that is copied into callers //
+    private static final int MAX_CALLEE = 40;
+    // size a caller may grow to through inlining //
+    private static final int MAX_CALLER = 1000;
+    // profiled calls this frequent may take bigger callees //
+    private static final int HOT_CALLS = 100;
+    private static final int MAX_HOT_CALLEE = 120;
+
+    // **********************************************************************
+    // inline
+    //    inline calls throughout prog
+    // **********************************************************************
+    public static void inline(IRProgram prog) {
+        CallGraph graph = new CallGraph(prog);
+        for (IRFunction fn : graph.bottomUp())
+            inlineCalls(fn, graph);
+    }
+
+    // **********************************************************************
+    // inlineCalls
+    //    inline the calls in fn to functions that qualify
+    // **********************************************************************
+    private static void inlineCalls(IRFunction fn, CallGraph graph) {
+        List<Quad> code = new ArrayList<Quad>();
+        int size = fn.code().size();
+
+        for (Quad q : fn.code()) {
+            IRFunction callee = null;
+            if (q instanceof CallQuad)
+                callee = graph.function(((CallQuad)q).name());
+
+            if (callee == null || callee == fn ||
+                graph.isRecursive(callee.name()) ||
+                !canInline(callee, maxCallee((CallQuad)q)) ||
+                size + callee.code().size() > MAX_CALLER) {
+                code.add(q);
+                continue;
+            }
+            List<Quad> body = copyBody(fn, callee, (CallQuad)q);
+            size += body.size() - 1;
+            code.addAll(body);
+        }
+        fn.setCode(code);
+    }
+
+    // largest callee to inline at call (by its profiled count) //
+    private static int maxCallee(CallQuad call) {
+        if (call.count() == 0)
+            return 0;
+        if (call.count() >= HOT_CALLS)
+            return MAX_HOT_CALLEE;
+        return MAX_CALLEE;
+    }
+
+    // small enough, and every formal and local is a scalar //
+    private static boolean canInline(IRFunction callee, int maxSize) {
+        if (callee.name().equals("main") ||
+            callee.code().size() > maxSize)
+            return false;
+        for (Quad q : callee.code()) {
+            List<Operand> ops = q.uses();
+            ops.add(q.def());
+            for (Operand op : ops) {
+                if (op instanceof Var && !((Var)op).isGlobal() &&
+                    (((Var)op).fieldOffset() != 0 ||
+                     ((Var)op).sym().getType().isStructType()))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    // **********************************************************************
+    // copyBody
+    //    the quads replacing call (in caller) by the body of callee
+    // **********************************************************************
+    private static List<Quad> copyBody(IRFunction caller, IRFunction callee,
+                                       CallQuad call) {
+        List<Quad> body = new ArrayList<Quad>();
+        Map<Operand, Operand> renamed = new HashMap<Operand, Operand>();
+        Map<String, String> labels = new HashMap<String, String>();
+        String end = caller.newLabel();
+
+        // formals, from the actuals //
+        for (Quad q : callee.code()) {
+            List<Operand> ops = q.uses();
+            ops.add(q.def());
+            for (Operand op : ops) {
+                if (op instanceof Var && !((Var)op).isGlobal() &&
+                    !renamed.containsKey(op)) {
+                    Temp t = caller.newTemp();
+                    renamed.put(op, t);
+                    int k = callee.formalIndex(((Var)op).sym().getOffset());
+                    if (k >= 0)
+                        body.add(new MoveQuad(t, call.args().get(k)));
+                }
+                else if (op instanceof Temp && !renamed.containsKey(op))
+                    renamed.put(op, caller.newTemp());
+            }
+            if (q instanceof LabelQuad)
+                labels.put(((LabelQuad)q).label(), caller.newLabel());
+        }
+
+        for (Quad q : callee.code()) {
+            if (q instanceof ArgQuad) {
+                body.add(new MoveQuad(renamed.get(q.def()),
+                                      call.args().get(((ArgQuad)q).index())));
+                continue;
+            }
+            if (q instanceof ReturnQuad) {
+                Operand src = ((ReturnQuad)q).src();
+                if (src != null && call.dst() != null)
+                    body.add(new MoveQuad(call.dst(), rename(src, renamed)));
+                body.add(new JumpQuad(end));
+                continue;
+            }
+
+            Quad copy = q.copy();
+            for (Operand op : q.uses()) {
+                if (renamed.containsKey(op))
+                    copy.replaceUse(op, renamed.get(op));
+            }
+            if (renamed.containsKey(q.def()))
+                copy.replaceDef(renamed.get(q.def()));
+            for (Map.Entry<String, String> e : labels.entrySet())
+                copy.replaceLabel(e.getKey(), e.getValue());
+            body.add(copy);
+        }
+        body.add(new LabelQuad(end));
+        return body;
+    }
+
+    private static Operand rename(Operand op, Map<Operand, Operand> renamed) {
+        return renamed.containsKey(op) ? renamed.get(op) : op;
+    }
+}
@@ -0,0 +1,438 @@
+// **********************************************************************
+// InstrSelect generates the MIPS instructions for the operations of the
+// IR on values already in registers (Burs decides which of these to use
+// and gets the operands there), using cheaper forms when an operand is a
+// constant:
+//
+//   - immediate forms (addi, andi, ori, slti, xori, ...) instead of
+//     loading the constant into a register first
+//   - x * 2^k as a shift, x * (2^a +- 2^b) as two shifts and an add or
+//     subtract, other constant multipliers as mul with an immediate
+//   - x / 2^k as an arithmetic shift (rounded toward zero), x / c as a
+//     multiply by a "magic number" that keeps the high word (see Hacker's
+//     Delight, 10-4)
+//   - relational values with slt / sltu / xori rather than a branch
+//     around loading 0 or 1
+//   - branches compare with a constant directly (bltz etc. for 0)
+//
+// Each gen method has a matching cost method giving the rough number of
+// cycles (on an R2000) of what it generates; $v0 is the scratch register
+// for the longer sequences, so it can't be an operand there.
+// **********************************************************************
+
+public class InstrSelect {
+
+    public static final String ZERO = "$zero";
+    private static final String V0 = Codegen.V0;
+
+    // cycles of a multiply and a divide //
+    private static final int MUL_COST = 10;
+    private static final int DIV_COST = 35;
+
+    // branches comparing with zero //
+    private static final String[] ZERO_BRANCHES = {
+        "", "", "", "", "", "", "beqz", "bnez", "bltz", "bgtz", "blez", "bgez"
+    };
+
+    // **********************************************************************
+    // genOp
+    //    generate to = reg1 op reg2 (an add or subtract that wraps with
+    //    addu or subu, see BinOpQuad.wraps)
+    // **********************************************************************
+    public static void genOp(int op, boolean wraps, String to, String reg1,
+                             String reg2) {
+        switch (op) {
+        case Quad.ADD:
+            Codegen.generate(wraps ? "addu" : "add", to, reg1, reg2);
+            break;
+        case Quad.SUB:
+            Codegen.generate(wraps ? "subu" : "sub", to, reg1, reg2);
+            break;
+        case Quad.MUL:
+            Codegen.generate("mul", to, reg1, reg2);
+            break;
+        case Quad.DIV:
+            Codegen.generate("div", to, reg1, reg2);
+            break;
+        case Quad.AND:
+            Codegen.generate("and", to, reg1, reg2);
+            break;
+        case Quad.OR:
+            Codegen.generate("or", to, reg1, reg2);
+            break;
+        default:
+            genCompare(op, to, reg1, reg2);
+        }
+    }
+
+    public static int opCost(int op) {
+        switch (op) {
+        case Quad.MUL:
+            return MUL_COST;
+        case Quad.DIV:
+            return DIV_COST;
+        case Quad.EQ:
+        case Quad.NE:
+        case Quad.LE:
+        case Quad.GE:
+            return 2;
+        }
+        return 1;
+    }
+
+    // **********************************************************************
+    // genUnOp
+    //    generate to = op reg
+    // **********************************************************************
+    public static void genUnOp(int op, String to, String reg) {
+        if (op == Quad.NEG)
+            Codegen.generate("neg", to, reg);
+        else
+            Codegen.generate("xori", to, reg, Codegen.TRUE);
+    }
+
+    // **********************************************************************
+    // genBranch
+    //    generate a jump to label if reg1 op reg2
+    // **********************************************************************
+    public static void genBranch(int op, String reg1, String reg2,
+                                 String label) {
+        Codegen.generate(Quad.BRANCHES[op], reg1, reg2, label);
+    }
+
+    // **********************************************************************
+    // genBranchImmediate
+    //    generate a jump to label if reg op c
+    // **********************************************************************
+    public static void genBranchImmediate(int op, String reg, int c,
+                                          String label) {
+        if (c == 0)
+            Codegen.generate(ZERO_BRANCHES[op], reg, label);
+        else
+            Codegen.generate(Quad.BRANCHES[op], reg, "" + c, label);
+    }
+
+    public static int branchCost(int op) {
+        // but for beq and bne, an slt first //
+        return op == Quad.EQ || op == Quad.NE ? 1 : 2;
+    }
+
+    public static int branchImmediateCost(int op, int c) {
+        // a compare with a constant (but 0) is an slti or li first //
+        return c == 0 ? 1 : 2;
+    }
+
+    // **********************************************************************
+    // genOpImmediate
+    //    generate to = reg op c without loading c into a register; only
+    //    for the op and c that immediateCost allows
+    // **********************************************************************
+    public static void genOpImmediate(int op, boolean wraps, String to,
+                                      String reg, int c) {
+        switch (op) {
+        case Quad.ADD:
+        case Quad.SUB:
+            if (op == Quad.SUB)
+                c = -c;
+            if (c == 0)
+                Codegen.generate("move", to, reg);
+            else
+                Codegen.generate(wraps ? "addiu" : "addi", to, reg, "" + c);
+            break;
+        case Quad.MUL:
+            genMultiply(to, reg, c);
+            break;
+        case Quad.DIV:
+            genDivide(to, reg, c);
+            break;
+        case Quad.AND:
+            Codegen.generate("andi", to, reg, "" + c);
+            break;
+        case Quad.OR:
+            Codegen.generate("ori", to, reg, "" + c);
+            break;
+        case Quad.EQ:
+        case Quad.NE:
+            String diff = reg;
+            if (c != 0) {
+                Codegen.generate("xori", to, reg, "" + c);
+                diff = to;
+            }
+            if (op == Quad.EQ)
+                Codegen.generate("sltiu", to, diff, "1");
+            else
+                Codegen.generate("sltu", to, ZERO, diff);
+            break;
+        case Quad.LT:
+        case Quad.GE:
+            Codegen.generate("slti", to, reg, "" + c);
+            if (op == Quad.GE)
+                Codegen.generate("xori", to, to, Codegen.TRUE);
+            break;
+        case Quad.LE:
+        case Quad.GT:
+            // x <= c is x < c + 1 //
+            Codegen.generate("slti", to, reg, "" + (c + 1));
+            if (op == Quad.GT)
+                Codegen.generate("xori", to, to, Codegen.TRUE);
+            break;
+        }
+    }
+
+    // the cost of genOpImmediate(op, _, _, c), or -1 if it can't do it //
+    public static int immediateCost(int op, int c) {
+        switch (op) {
+        case Quad.ADD:
+            return isSigned16(c) ? 1 : -1;
+        case Quad.SUB:
+            return c != Integer.MIN_VALUE && isSigned16(-c) ? 1 : -1;
+        case Quad.MUL:
+            return multiplyCost(c);
+        case Quad.DIV:
+            return divideCost(c);
+        case Quad.AND:
+        case Quad.OR:
+            return isUnsigned16(c) ? 1 : -1;
+        case Quad.EQ:
+        case Quad.NE:
+            if (c == 0)
+                return 1;
+            return isUnsigned16(c) ? 2 : -1;
+        case Quad.LT:
+        case Quad.GE:
+            if (!isSigned16(c))
+                return -1;
+            return op == Quad.LT ? 1 : 2;
+        case Quad.LE:
+        case Quad.GT:
+            if (c == Integer.MAX_VALUE || !isSigned16(c + 1))
+                return -1;
+            return op == Quad.LE ? 1 : 2;
+        }
+        return -1;
+    }
+
+    // **********************************************************************
+    // relational values
+    // **********************************************************************
+
+    // generate to = reg1 op reg2 (0 or 1) //
+    private static void genCompare(int op, String to, String reg1,
+                                   String reg2) {
+        switch (op) {
+        case Quad.EQ:
+            Codegen.generate("xor", to, reg1, reg2);
+            Codegen.generate("sltiu", to, to, "1");
+            break;
+        case Quad.NE:
+            Codegen.generate("xor", to, reg1, reg2);
+            Codegen.generate("sltu", to, ZERO, to);
+            break;
+        case Quad.LT:
+            Codegen.generate("slt", to, reg1, reg2);
+            break;
+        case Quad.GT:
+            Codegen.generate("slt", to, reg2, reg1);
+            break;
+        case Quad.LE:
+            Codegen.generate("slt", to, reg2, reg1);
+            Codegen.generate("xori", to, to, Codegen.TRUE);
+            break;
+        case Quad.GE:
+            Codegen.generate("slt", to, reg1, reg2);
+            Codegen.generate("xori", to, to, Codegen.TRUE);
+            break;
+        }
+    }
+
+    // **********************************************************************
+    // multiplication by a constant
+    // **********************************************************************
+
+    // generate to = reg * c //
+    private static void genMultiply(String to, String reg, int c) {
+        if (c == 0) {
+            Codegen.generate("move", to, ZERO);
+            return;
+        }
+        if (c == 1) {
+            Codegen.generate("move", to, reg);
+            return;
+        }
+        // subu, not neg: neg traps on -2^31, which mul does not //
+        if (c == -1) {
+            Codegen.generate("subu", to, ZERO, reg);
+            return;
+        }
+        if (isPowerOf2(c)) {
+            Codegen.generate("sll", to, reg, "" + log2(c));
+            return;
+        }
+        int[] pair = shiftPair(c);
+        if (pair != null) {
+            genShiftPair(pair[0] > 0 ? "addu" : "subu", to, reg,
+                         pair[1], pair[2]);
+            return;
+        }
+        Codegen.generate("mul", to, reg, "" + c);
+    }
+
+    private static int multiplyCost(int c) {
+        if (c == 0 || c == 1 || c == -1 || isPowerOf2(c))
+            return 1;
+        int[] pair = shiftPair(c);
+        if (pair != null)
+            return pair[2] == 0 ? 2 : 3;
+        return 1 + MUL_COST;
+    }
+
+    // {1, a, b} if c = 2^a + 2^b, {-1, a, b} if c = 2^a - 2^b, else null //
+    private static int[] shiftPair(int c) {
+        if (c <= 0 || c >= (1 << 30))
+            return null;
+        int low = Integer.lowestOneBit(c);
+        if (isPowerOf2(c - low))
+            return new int[] {1, log2(c - low), log2(low)};
+        if (isPowerOf2(c + low))
+            return new int[] {-1, log2(c + low), log2(low)};
+        return null;
+    }
+
+    // generate to = (reg << a) op (reg << b), for op addu or subu //
+    private static void genShiftPair(String op, String to, String reg,
+                                     int a, int b) {
+        Codegen.generate("sll", V0, reg, "" + a);
+        if (b == 0) {
+            Codegen.generate(op, to, V0, reg);
+            return;
+        }
+        Codegen.generate("sll", to, reg, "" + b);
+        Codegen.generate(op, to, V0, to);
+    }
+
+    // **********************************************************************
+    // division by a constant
+    // **********************************************************************
+
+    // generate to = reg / c (rounded toward zero) //
+    private static void genDivide(String to, String reg, int c) {
+        if (c == 1) {
+            Codegen.generate("move", to, reg);
+            return;
+        }
+        // subu, not neg, as div does not trap on -2^31 / -1 //
+        if (c == -1) {
+            Codegen.generate("subu", to, ZERO, reg);
+            return;
+        }
+
+        int abs = Math.abs(c);
+        if (isPowerOf2(abs)) {
+            // add 2^k - 1 to a negative dividend so the shift rounds up //
+            int k = log2(abs);
+            if (k == 1) {
+                Codegen.generate("srl", V0, reg, "31");
+            }
+            else {
+                Codegen.generate("sra", V0, reg, "31");
+                Codegen.generate("srl", V0, V0, "" + (32 - k));
+            }
+            Codegen.generate("addu", V0, reg, V0);
+            Codegen.generate("sra", to, V0, "" + k);
+            if (c < 0)
+                Codegen.generate("subu", to, ZERO, to);
+            return;
+        }
+
+        // q = hi(M * n) (+ n or - n), shifted, plus 1 if negative //
+        long[] magic = magic(c);
+        int m = (int)magic[0];
+        int shift = (int)magic[1];
+        Codegen.generate("li", V0, "" + m);
+        Codegen.generate("mult", reg, V0);
+        Codegen.generate("mfhi", V0);
+        if (c > 0 && m < 0)
+            Codegen.generate("addu", V0, V0, reg);
+        else if (c < 0 && m > 0)
+            Codegen.generate("subu", V0, V0, reg);
+        if (shift > 0)
+            Codegen.generate("sra", V0, V0, "" + shift);
+        Codegen.generate("srl", to, V0, "31");
+        Codegen.generate("addu", to, to, V0);
+    }
+
+    // a div is left for 0 and for divisors too big to negate //
+    private static int divideCost(int c) {
+        if (c == 0 || c == Integer.MIN_VALUE)
+            return -1;
+        if (c == 1 || c == -1)
+            return 1;
+        int abs = Math.abs(c);
+        if (isPowerOf2(abs))
+            return (abs == 2 ? 3 : 4) + (c < 0 ? 1 : 0);
+        long[] magic = magic(c);
+        int m = (int)magic[0];
+        int cost = 4 + MUL_COST;
+        if ((c > 0 && m < 0) || (c < 0 && m > 0))
+            cost++;
+        if (magic[1] > 0)
+            cost++;
+        return cost;
+    }
+
+    // the magic multiplier and shift for signed division by d, where
+    // 2 <= |d| < 2^31 (Hacker's Delight, figure 10-1) //
+    private static long[] magic(int d) {
+        final long two31 = 0x80000000L;
+        long ad = Math.abs((long)d);
+        long t = two31 + ((d >>> 31) & 1);
+        long anc = t - 1 - t % ad;        // |nc| //
+        int p = 31;
+        long q1 = two31 / anc;
+        long r1 = two31 - q1 * anc;
+        long q2 = two31 / ad;
+        long r2 = two31 - q2 * ad;
+        long delta;
+        do {
+            p++;
+            q1 = 2 * q1;
+            r1 = 2 * r1;
+            if (r1 >= anc) {
+                q1++;
+                r1 -= anc;
+            }
+            q2 = 2 * q2;
+            r2 = 2 * r2;
+            if (r2 >= ad) {
+                q2++;
+                r2 -= ad;
+            }
+            delta = ad - r2;
+        } while (q1 < delta || (q1 == delta && r1 == 0));
+
+        long m = (int)(q2 + 1);
+        if (d < 0)
+            m = (int)-m;
+        return new long[] {m, p - 32};
+    }
+
+    // **********************************************************************
+    // helpers
+    // **********************************************************************
+
+    public static boolean isSigned16(int c) {
+        return c >= -32768 && c <= 32767;
+    }
+
+    private static boolean isUnsigned16(int c) {
+        return c >= 0 && c <= 65535;
+    }
+
+    private static boolean isPowerOf2(int c) {
+        return c > 0 && (c & (c - 1)) == 0;
+    }
+
+    private static int log2(int c) {
+        return Integer.numberOfTrailingZeros(c);
+    }
+}
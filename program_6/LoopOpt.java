@@ -0,0 +1,356 @@
+import java.util.*;
+
+// **********************************************************************
+// LoopOpt improves the loops of an IRFunction.  A loop is a label L and
+// a later jump back to it; the quads from L to that jump are the loop
+// body.  Loops whose only way in is falling through into L (which is the
+// shape WhileStmtNode lowers to) get a preheader just before L, and
+//
+//   - loop-invariant computations into temps (whose operands are
+//     constants, or variables and temps not changed in the loop) are
+//     hoisted into the preheader - pure calls too (see CallGraph) - but
+//     never a divide, and a call that isn't safe or an add, subtract or
+//     negate that may overflow only if it would run on entering the loop
+//     anyway (or it could trap on a path that never ran it) - and
+//
+//   - multiplications v * c of an induction variable v (a local only
+//     changed in the loop by v = v +/- k) by a constant are replaced by
+//     a new temp s: s = v * c in the preheader and s = s +/- c * k after
+//     every change to v (an add that wraps around like the multiply
+//     did, see BinOpQuad.wraps).
+//
+// Loops are done innermost first, so code hoisted out of an inner loop
+// can then be hoisted further out of the enclosing one.
+// **********************************************************************
+
+public class LoopOpt {
+
+    // **********************************************************************
+    // optimize
+    //    optimize every loop of fn
+    // **********************************************************************
+    public static void optimize(IRFunction fn) {
+        // quads added by (or already handled by) strength reduction //
+        Set<Quad> done = new HashSet<Quad>();
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Loop loop : findLoops(fn.code())) {
+                if (!canOptimize(fn.code(), loop))
+                    continue;
+                if (hoistInvariants(fn, loop) ||
+                    reduceStrength(fn, loop, done)) {
+                    changed = true;
+                    break; // indices are stale - find the loops again //
+                }
+            }
+        }
+    }
+
+    // **********************************************************************
+    // findLoops
+    //    every backward jump, innermost (shortest) loops first
+    // **********************************************************************
+    private static List<Loop> findLoops(List<Quad> code) {
+        Map<String, Integer> labels = labelIndices(code);
+        List<Loop> loops = new ArrayList<Loop>();
+
+        for (int k = 0; k < code.size(); k++) {
+            String target = code.get(k).target();
+            if (target == null || !labels.containsKey(target))
+                continue;
+            int head = labels.get(target);
+            if (head < k)
+                loops.add(new Loop(head, k));
+        }
+        Collections.sort(loops, new Comparator<Loop>() {
+            public int compare(Loop a, Loop b) {
+                return (a.end - a.head) - (b.end - b.head);
+            }
+        });
+        return loops;
+    }
+
+    // **********************************************************************
+    // canOptimize
+    //    the loop is entered only by falling into its head, so code put
+    //    right before the head runs exactly once each time the loop is
+    //    entered
+    // **********************************************************************
+    private static boolean canOptimize(List<Quad> code, Loop loop) {
+        if (loop.head == 0 || code.get(loop.head - 1).isUnconditionalJump())
+            return false;
+
+        Set<String> inside = new HashSet<String>();
+        for (int k = loop.head; k <= loop.end; k++) {
+            if (code.get(k) instanceof LabelQuad)
+                inside.add(((LabelQuad)code.get(k)).label());
+        }
+        for (int k = 0; k < code.size(); k++) {
+            if (k >= loop.head && k <= loop.end)
+                continue;
+            String target = code.get(k).target();
+            if (target != null && inside.contains(target))
+                return false;
+        }
+        return true;
+    }
+
+    // **********************************************************************
+    // hoistInvariants
+    //    move invariant quads of the loop into its preheader
+    // **********************************************************************
+    private static boolean hoistInvariants(IRFunction fn, Loop loop) {
+        List<Quad> code = fn.code();
+        Map<Temp, Integer> defCounts = defCounts(code);
+        List<Quad> hoisted = new ArrayList<Quad>();
+
+        // hoisting one quad can make others invariant //
+        boolean found = true;
+        while (found) {
+            found = false;
+            LoopInfo info = new LoopInfo(code, loop, hoisted);
+            for (int k = loop.head; k <= loop.end; k++) {
+                Quad q = code.get(k);
+                if (hoisted.contains(q) || !isInvariant(q, info, defCounts))
+                    continue;
+                if (((q instanceof CallQuad && !((CallQuad)q).isSafe()) ||
+                     canOverflow(q)) &&
+                    !runsOnEntry(code, loop, k, hoisted))
+                    continue;
+                hoisted.add(q);
+                found = true;
+            }
+        }
+        if (hoisted.isEmpty())
+            return false;
+
+        // hoisted quads keep their order //
+        code.removeAll(hoisted);
+        code.addAll(loop.head, hoisted);
+        return true;
+    }
+
+    // a quad computing into a temp from operands the loop doesn't change //
+    private static boolean isInvariant(Quad q, LoopInfo info,
+                                       Map<Temp, Integer> defCounts) {
+        if (!(q instanceof MoveQuad || q instanceof UnOpQuad ||
+              q instanceof BinOpQuad ||
+              (q instanceof CallQuad && ((CallQuad)q).isPure())))
+            return false;
+        // division might trap on a path that would not have run it //
+        if (q instanceof BinOpQuad && ((BinOpQuad)q).op() == Quad.DIV)
+            return false;
+        if (!(q.def() instanceof Temp) ||
+            defCounts.get((Temp)q.def()) != 1)
+            return false;
+
+        for (Operand op : q.uses()) {
+            if (!info.isInvariant(op))
+                return false;
+        }
+        return true;
+    }
+
+    // an add, subtract or negate that traps on overflow //
+    private static boolean canOverflow(Quad q) {
+        if (q instanceof UnOpQuad)
+            return ((UnOpQuad)q).op() == Quad.NEG;
+        if (!(q instanceof BinOpQuad))
+            return false;
+        BinOpQuad bin = (BinOpQuad)q;
+        return (bin.op() == Quad.ADD || bin.op() == Quad.SUB) && !bin.wraps();
+    }
+
+    // is the quad at k sure to run (and first thing, but for quads that
+    // can't trap) once the loop is entered? //
+    private static boolean runsOnEntry(List<Quad> code, Loop loop, int k,
+                                       List<Quad> hoisted) {
+        for (int j = loop.head + 1; j < k; j++) {
+            Quad q = code.get(j);
+            if (hoisted.contains(q))
+                continue;
+            if (!(q instanceof MoveQuad || q instanceof UnOpQuad ||
+                  q instanceof BinOpQuad) ||
+                (q instanceof BinOpQuad && ((BinOpQuad)q).op() == Quad.DIV))
+                return false;
+        }
+        return true;
+    }
+
+    // **********************************************************************
+    // reduceStrength
+    //    replace induction variable * constant with a running temp
+    // **********************************************************************
+    private static boolean reduceStrength(IRFunction fn, Loop loop,
+                                          Set<Quad> done) {
+        List<Quad> code = fn.code();
+        LoopInfo info = new LoopInfo(code, loop, new ArrayList<Quad>());
+
+        for (int k = loop.head; k <= loop.end; k++) {
+            Quad q = code.get(k);
+            if (!(q instanceof BinOpQuad) || done.contains(q))
+                continue;
+            BinOpQuad mul = (BinOpQuad)q;
+            if (mul.op() != Quad.MUL || !(mul.dst() instanceof Temp))
+                continue;
+
+            Operand iv = mul.src1();
+            Operand factor = mul.src2();
+            if (iv instanceof Const) {
+                iv = mul.src2();
+                factor = mul.src1();
+            }
+            if (!(factor instanceof Const) || !(iv instanceof Var) ||
+                !isInductionVar((Var)iv, info))
+                continue;
+            int c = ((Const)factor).value();
+
+            // s = iv * c; each iv = iv +/- k gets s = s +/- c * k //
+            Temp s = fn.newTemp();
+            List<Quad> newCode = new ArrayList<Quad>();
+            for (int j = 0; j < code.size(); j++) {
+                Quad curr = code.get(j);
+                if (j == loop.head) {
+                    Quad init = new BinOpQuad(s, Quad.MUL, iv, factor);
+                    done.add(init);
+                    newCode.add(init);
+                }
+                if (j < loop.head || j > loop.end) {
+                    newCode.add(curr);
+                    continue;
+                }
+                if (curr instanceof BinOpQuad && !done.contains(curr) &&
+                    sameMul((BinOpQuad)curr, iv, c)) {
+                    newCode.add(new MoveQuad(((BinOpQuad)curr).dst(), s));
+                    continue;
+                }
+                newCode.add(curr);
+                if (iv.equals(curr.def())) {
+                    BinOpQuad step = (BinOpQuad)curr;
+                    Operand k2 = step.src2() instanceof Const ? step.src2()
+                                                               : step.src1();
+                    int delta = c * ((Const)k2).value();
+                    BinOpQuad update = new BinOpQuad(s, step.op(), s,
+                                                     new Const(delta));
+                    update.setWraps(true);
+                    done.add(update);
+                    newCode.add(update);
+                }
+            }
+            fn.setCode(newCode);
+            return true;
+        }
+        return false;
+    }
+
+    // dst = iv * c or dst = c * iv into a temp //
+    private static boolean sameMul(BinOpQuad q, Operand iv, int c) {
+        if (q.op() != Quad.MUL || !(q.dst() instanceof Temp))
+            return false;
+        Const factor = new Const(c);
+        return (iv.equals(q.src1()) && factor.equals(q.src2())) ||
+               (factor.equals(q.src1()) && iv.equals(q.src2()));
+    }
+
+    // a local whose every change in the loop is v = v +/- const //
+    private static boolean isInductionVar(Var v, LoopInfo info) {
+        if (v.isGlobal() || !info.assignedVars.contains(v.sym()))
+            return false;
+        for (Quad q : info.varDefs) {
+            Operand dst = q.def();
+            if (!(dst instanceof Var) || ((Var)dst).sym() != v.sym())
+                continue;
+            if (!dst.equals(v) || !(q instanceof BinOpQuad))
+                return false;
+            BinOpQuad step = (BinOpQuad)q;
+            if (step.op() == Quad.ADD &&
+                ((v.equals(step.src1()) && step.src2() instanceof Const) ||
+                 (v.equals(step.src2()) && step.src1() instanceof Const)))
+                continue;
+            if (step.op() == Quad.SUB && v.equals(step.src1()) &&
+                step.src2() instanceof Const)
+                continue;
+            return false;
+        }
+        return true;
+    }
+
+    // **********************************************************************
+    // helpers
+    // **********************************************************************
+
+    private static Map<String, Integer> labelIndices(List<Quad> code) {
+        Map<String, Integer> labels = new HashMap<String, Integer>();
+        for (int k = 0; k < code.size(); k++) {
+            if (code.get(k) instanceof LabelQuad)
+                labels.put(((LabelQuad)code.get(k)).label(), k);
+        }
+        return labels;
+    }
+
+    // number of quads writing each temp //
+    private static Map<Temp, Integer> defCounts(List<Quad> code) {
+        Map<Temp, Integer> counts = new HashMap<Temp, Integer>();
+        for (Quad q : code) {
+            if (q.def() instanceof Temp) {
+                Temp t = (Temp)q.def();
+                Integer n = counts.get(t);
+                counts.put(t, n == null ? 1 : n + 1);
+            }
+        }
+        return counts;
+    }
+
+    private static class Loop {
+        Loop(int head, int end) {
+            this.head = head;
+            this.end = end;
+        }
+
+        int head;   // index of the loop's label
+        int end;    // index of the jump back to it
+    }
+
+    // **********************************************************************
+    // LoopInfo records what the quads of a loop (other than the ones
+    // being hoisted out) write.
+    // **********************************************************************
+    private static class LoopInfo {
+        LoopInfo(List<Quad> code, Loop loop, List<Quad> hoisted) {
+            for (int k = loop.head; k <= loop.end; k++) {
+                Quad q = code.get(k);
+                if (q instanceof CallQuad && !((CallQuad)q).isPure())
+                    hasCall = true;
+                if (hoisted.contains(q))
+                    continue;
+                Operand dst = q.def();
+                if (dst instanceof Temp)
+                    assignedTemps.add((Temp)dst);
+                else if (dst instanceof Var) {
+                    assignedVars.add(((Var)dst).sym());
+                    varDefs.add(q);
+                }
+            }
+        }
+
+        // does op have the same value everywhere in the loop? //
+        boolean isInvariant(Operand op) {
+            if (op instanceof Const)
+                return true;
+            if (op instanceof Temp)
+                return !assignedTemps.contains(op);
+            Var v = (Var)op;
+            // a call (other than a pure one) may change any global //
+            if (v.isGlobal() && hasCall)
+                return false;
+            return !assignedVars.contains(v.sym());
+        }
+
+        boolean hasCall = false;
+        Set<Temp> assignedTemps = new HashSet<Temp>();
+        Set<SemSym> assignedVars = new HashSet<SemSym>();
+        List<Quad> varDefs = new ArrayList<Quad>();
+    }
+}
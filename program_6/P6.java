@@ -16,6 +16,7 @@ public class P6 {
 	FileReader inFile;
 	private PrintWriter outFile;
 	private PrintWriter spimFile;
+	private PrintWriter irFile;
 	private static PrintStream outStream = System.err;
 	
 	public static final int RESULT_CORRECT = 0;
@@ -35,7 +36,10 @@ public class P6 {
 	 * is the command line to use. It shouldn't be invoked from
 	 * outside the class (hence the private constructor) because
 	 * it 
-	 * @param args command line args array for [<infile> <outfile> <spimfile>]
+	 * @param args command line args array for
+	 *        [<infile> <outfile> <spimfile> [-ir <irfile>] [-delayed]
+	 *         [-profile-gen | -profile-use <profile>]
+	 *         [-unroll-budget <quads>]]
 	 */
 	private P6(String[] args){
     	//Parse arguments    	
@@ -50,6 +54,22 @@ public class P6 {
 			setInfile(args[0]);
 			setOutfile(args[1]);
 			setSpimfile(args[2]);
+
+			// Options //
+			for(int k = 3; k < args.length; k++){
+				if(args[k].equals("-ir") && k + 1 < args.length)
+					setIrfile(args[++k]);
+				else if(args[k].equals("-delayed"))
+					Scheduler.setDelaySlots(true); // for SPIM -delayed_branches -delayed_loads
+				else if(args[k].equals("-profile-gen"))
+					Profile.setGenerating(true); // counts dumped at exit
+				else if(args[k].equals("-profile-use") && k + 1 < args.length)
+					loadProfile(args[++k]);
+				else if(args[k].equals("-unroll-budget") && k + 1 < args.length)
+					setUnrollBudget(args[++k]);
+				else
+					pukeAndDie("unknown option " + args[k]);
+			}
 		} catch(BadInfileException e){
             pukeAndDie(e.getMessage());			
 		} catch(BadOutfileException e){
@@ -93,7 +113,43 @@ public class P6 {
         }
 	}
 
+
+	/**
+	 * Three-address code (IR) dump, optional
+	 * @param filename path to destination file
+	 */
+	public void setIrfile(String filename) throws BadOutfileException{
+        try {
+            irFile = new PrintWriter(filename);
+        } catch (FileNotFoundException ex) {
+        	throw new BadOutfileException(ex, filename);
+        }
+	}
 	
+	/**
+	 * Counts from a -profile-gen run (its output), optional
+	 * @param filename path to the profile
+	 */
+	public void loadProfile(String filename) {
+		try {
+			Profile.load(filename);
+		} catch (IOException ex) {
+			pukeAndDie("cannot read profile " + filename);
+		}
+	}
+
+	/**
+	 * Quads each function may grow by through loop unrolling, optional
+	 * @param quads the budget (0 turns unrolling off)
+	 */
+	public void setUnrollBudget(String quads) {
+		try {
+			Unroller.setBudget(Integer.parseInt(quads));
+		} catch (NumberFormatException ex) {
+			pukeAndDie("bad unroll budget " + quads);
+		}
+	}
+
 	/**
 	 * Perform cleanup at the end of parsing. This should be called
 	 * after both good and bad input so that the files are all in a
@@ -120,6 +176,11 @@ public class P6 {
 			spimFile.flush();
 			spimFile.close();
 		}
+
+		if (irFile != null){
+			irFile.flush();
+			irFile.close();
+		}
 	}
 	
 	/** 
@@ -173,9 +234,18 @@ public class P6 {
 		
 		astRoot.unparse(outFile, 0); // unparse the tree
 
+		astRoot.fold(); // constant folding and propagation
+
+		// Lower to three-address code //
+		IRProgram ir = astRoot.lower();
+		ir.optimize();
+		if (irFile != null)
+			ir.print(irFile);
+
 		// Code Generation //
 		Codegen.p = spimFile;//TODO if this doesn't work, may need a new one
-		astRoot.codeGen(); // perform code generation
+		ir.codeGen(); // perform code generation
+		Codegen.flush(); // peephole pass, then write the code out
 		Codegen.p.close();
 
 		return P6.RESULT_CORRECT;
@@ -0,0 +1,326 @@
+import java.util.*;
+
+// **********************************************************************
+// Peephole cleans up the buffered instruction stream before Codegen
+// writes it out.  It repeatedly applies these rewrites until none fires:
+//
+//     push X / pop Y                 ==> move Y, X
+//     move r, r                      ==> (nothing)
+//     addu r, r, 0                   ==> (nothing)
+//     move a, b / move b, a          ==> move a, b
+//     sw r, A / lw s, A              ==> sw r, A / move s, r
+//     lw r, A / sw r, A              ==> lw r, A
+//     b L / L:                       ==> L:
+//     b L ... L: b M                 ==> b M ... L: b M
+//     bcc L1 / b L2 / L1:            ==> b!cc L2 / L1:
+//     b L / (code up to a label)     ==> b L
+//     unreferenced local labels      ==> (nothing)
+//
+// Only the text segment is touched; anything between a .data and the
+// next .text directive is left as it is.
+// **********************************************************************
+
+public class Peephole {
+
+    // **********************************************************************
+    // optimize
+    //    rewrite code in place
+    // **********************************************************************
+    public static void optimize(List<Instr> code) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            changed |= window(code);
+            changed |= threadJumps(code);
+            changed |= removeUnreachable(code);
+            changed |= removeDeadLabels(code);
+        }
+    }
+
+    // **********************************************************************
+    // window
+    //    the rewrites that look at a few adjacent instructions
+    // **********************************************************************
+    private static boolean window(List<Instr> code) {
+        boolean changed = false;
+        boolean[] text = textMask(code);
+
+        for (int k = 0; k < code.size(); k++) {
+            if (!text[k])
+                continue;
+            Instr curr = code.get(k);
+            Instr next = inText(code, text, k + 1);
+
+            // move r, r //
+            if (curr.is("move") && curr.arg(0).equals(curr.arg(1))) {
+                code.remove(k);
+                text = textMask(code);
+                k = Math.max(k - 2, -1);
+                changed = true;
+                continue;
+            }
+
+            // push X / pop Y //
+            if (isPush(code, text, k) && isPop(code, text, k + 2)) {
+                String from = curr.arg(0);
+                String to = code.get(k + 2).arg(0);
+                for (int j = 0; j < 4; j++)
+                    code.remove(k);
+                if (!from.equals(to))
+                    code.add(k, new Instr("move", "", to, from, ""));
+                text = textMask(code);
+                k = Math.max(k - 2, -1);
+                changed = true;
+                continue;
+            }
+
+            // addu r, r, 0 (or subu) //
+            if ((curr.is("addu") || curr.is("subu")) && curr.numArgs() == 3 &&
+                curr.arg(0).equals(curr.arg(1)) && curr.arg(2).equals("0")) {
+                code.remove(k);
+                text = textMask(code);
+                k = Math.max(k - 2, -1);
+                changed = true;
+                continue;
+            }
+
+            // b L / L: //
+            if (curr.isBranch() &&
+                labelsAfter(code, k).contains(curr.target())) {
+                code.remove(k);
+                text = textMask(code);
+                k = Math.max(k - 2, -1);
+                changed = true;
+                continue;
+            }
+
+            if (next == null)
+                continue;
+
+            // move a, b / move b, a //
+            if (curr.is("move") && next.is("move") &&
+                curr.arg(0).equals(next.arg(1)) &&
+                curr.arg(1).equals(next.arg(0))) {
+                code.remove(k + 1);
+                text = textMask(code);
+                k--;
+                changed = true;
+                continue;
+            }
+
+            // sw r, A / lw s, A //
+            if (curr.is("sw") && next.is("lw") &&
+                curr.address().equals(next.address())) {
+                String from = curr.arg(0);
+                String to = next.arg(0);
+                code.remove(k + 1);
+                if (!from.equals(to))
+                    code.add(k + 1, new Instr("move", "", to, from, ""));
+                text = textMask(code);
+                k--;
+                changed = true;
+                continue;
+            }
+
+            // lw r, A / sw r, A //
+            if (curr.is("lw") && next.is("sw") &&
+                curr.arg(0).equals(next.arg(0)) &&
+                curr.address().equals(next.address()) &&
+                !(curr.isIndexed() && curr.base().equals(curr.arg(0)))) {
+                code.remove(k + 1);
+                text = textMask(code);
+                k--;
+                changed = true;
+                continue;
+            }
+
+            if (!curr.isBranch())
+                continue;
+
+            // bcc L1 / b L2 / L1: //
+            String negated = NEGATE.get(curr.opcode());
+            if (negated != null && next.is("b") &&
+                labelsAfter(code, k + 1).contains(curr.target())) {
+                curr.setOpcode(negated);
+                curr.setTarget(next.target());
+                code.remove(k + 1);
+                text = textMask(code);
+                k--;
+                changed = true;
+                continue;
+            }
+        }
+        return changed;
+    }
+
+    // **********************************************************************
+    // threadJumps
+    //    retarget branches to a label that is immediately followed by an
+    //    unconditional branch
+    // **********************************************************************
+    private static boolean threadJumps(List<Instr> code) {
+        boolean changed = false;
+        Map<String, Integer> labels = labelIndices(code);
+
+        for (Instr instr : code) {
+            if (!instr.isBranch())
+                continue;
+            // follow the chain, stopping at the first label seen twice //
+            Set<String> seen = new HashSet<String>();
+            String target = instr.target();
+            while (seen.add(target)) {
+                Instr dest = firstAfterLabel(code, labels.get(target));
+                if (dest == null || !dest.is("b"))
+                    break;
+                target = dest.target();
+            }
+            if (!target.equals(instr.target())) {
+                instr.setTarget(target);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // **********************************************************************
+    // removeUnreachable
+    //    drop instructions between an unconditional jump and the next label
+    // **********************************************************************
+    private static boolean removeUnreachable(List<Instr> code) {
+        boolean changed = false;
+        boolean[] text = textMask(code);
+        boolean dead = false;
+        List<Instr> kept = new ArrayList<Instr>();
+
+        for (int k = 0; k < code.size(); k++) {
+            Instr instr = code.get(k);
+            if (!text[k] || instr.label() != null || instr.isDirective())
+                dead = false;
+            if (dead) {
+                changed = true;
+                continue;
+            }
+            kept.add(instr);
+            if (text[k] && instr.isUnconditionalJump())
+                dead = true;
+        }
+        code.clear();
+        code.addAll(kept);
+        return changed;
+    }
+
+    // **********************************************************************
+    // removeDeadLabels
+    //    drop the compiler-generated labels (.L#) nothing refers to
+    // **********************************************************************
+    private static boolean removeDeadLabels(List<Instr> code) {
+        Set<String> used = new HashSet<String>();
+        for (Instr instr : code)
+            used.addAll(instr.args());
+
+        boolean changed = false;
+        Iterator<Instr> it = code.iterator();
+        while (it.hasNext()) {
+            Instr instr = it.next();
+            if (instr.isLabel() && instr.label().startsWith(".L") &&
+                !used.contains(instr.label())) {
+                it.remove();
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    // **********************************************************************
+    // helpers
+    // **********************************************************************
+
+    // text[k] is true if code[k] is an instruction in the text segment //
+    private static boolean[] textMask(List<Instr> code) {
+        boolean[] text = new boolean[code.size()];
+        boolean inText = true;
+        for (int k = 0; k < code.size(); k++) {
+            Instr instr = code.get(k);
+            if (instr.is(".data"))
+                inText = false;
+            else if (instr.is(".text"))
+                inText = true;
+            text[k] = inText && !instr.isDirective();
+        }
+        return text;
+    }
+
+    // code[k] if it is a plain text-segment instruction, else null //
+    private static Instr inText(List<Instr> code, boolean[] text, int k) {
+        if (k >= code.size() || !text[k] || code.get(k).label() != null)
+            return null;
+        return code.get(k);
+    }
+
+    // sw X, 0($sp) / subu $sp, $sp, 4 //
+    private static boolean isPush(List<Instr> code, boolean[] text, int k) {
+        Instr sw = inText(code, text, k);
+        Instr sub = inText(code, text, k + 1);
+        return sw != null && sub != null && sw.is("sw") && sw.isIndexed() &&
+               sw.base().equals(Codegen.SP) && sw.offset() == 0 &&
+               isSpAdjust(sub, "subu");
+    }
+
+    // lw Y, 4($sp) / addu $sp, $sp, 4 //
+    private static boolean isPop(List<Instr> code, boolean[] text, int k) {
+        Instr lw = inText(code, text, k);
+        Instr add = inText(code, text, k + 1);
+        return lw != null && add != null && lw.is("lw") && lw.isIndexed() &&
+               lw.base().equals(Codegen.SP) && lw.offset() == 4 &&
+               isSpAdjust(add, "addu");
+    }
+
+    private static boolean isSpAdjust(Instr instr, String opcode) {
+        return instr.is(opcode) && instr.numArgs() == 3 &&
+               instr.arg(0).equals(Codegen.SP) &&
+               instr.arg(1).equals(Codegen.SP) && instr.arg(2).equals("4");
+    }
+
+    // the labels of the bare labels directly following code[k] //
+    private static Set<String> labelsAfter(List<Instr> code, int k) {
+        Set<String> labels = new HashSet<String>();
+        for (int j = k + 1; j < code.size() && code.get(j).isLabel(); j++)
+            labels.add(code.get(j).label());
+        return labels;
+    }
+
+    private static Map<String, Integer> labelIndices(List<Instr> code) {
+        Map<String, Integer> labels = new HashMap<String, Integer>();
+        for (int k = 0; k < code.size(); k++) {
+            if (code.get(k).label() != null)
+                labels.put(code.get(k).label(), k);
+        }
+        return labels;
+    }
+
+    // the first instruction at or after the label at index k (null if
+    // there is none or k is null) //
+    private static Instr firstAfterLabel(List<Instr> code, Integer k) {
+        if (k == null)
+            return null;
+        for (int j = k; j < code.size(); j++) {
+            if (!code.get(j).isLabel())
+                return code.get(j).isDirective() ? null : code.get(j);
+        }
+        return null;
+    }
+
+    // branch with the opposite condition //
+    private static final Map<String, String> NEGATE =
+        new HashMap<String, String>();
+    static {
+        String[][] pairs = {
+            {"beq", "bne"}, {"blt", "bge"}, {"bgt", "ble"},
+            {"beqz", "bnez"}, {"bltz", "bgez"}, {"bgtz", "blez"}
+        };
+        for (String[] pair : pairs) {
+            NEGATE.put(pair[0], pair[1]);
+            NEGATE.put(pair[1], pair[0]);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+import java.io.*;
+import java.util.*;
+
+// **********************************************************************
+// Profile does profile-guided optimization in two compiles of the same
+// program.
+//
+// With -profile-gen, apply adds a counter to the start of every basic
+// block and in front of every call of the freshly lowered code (see
+// CountQuad), and main's epilogue (genDump) writes the counts after the
+// program's own output:
+//
+//     #profile
+//     f <function> <blocks> <calls> <times entered>
+//     b <function> <block> <count>
+//     c <function> <call> <callee> <count>
+//
+// blocks and calls being numbered in order from 0 within the function.
+//
+// With -profile-use <file>, load reads such a run's output back (what
+// comes before #profile is skipped), and apply gives every quad of the
+// lowered code the count of its block, and every call the count of its
+// call edge (see Quad.count).  The counts are kept by the copies
+// Inliner, Specializer and the other passes make, and steer inlining,
+// block layout and loop unrolling.  A function whose blocks or calls no
+// longer match the profile keeps unknown counts (-1).
+//
+// The counters are a global table (COUNTS, added by addCounters along
+// with the program's globals).  They are read and written with $v1,
+// which never holds a temp, so they can go anywhere.
+// **********************************************************************
+
+public class Profile {
+
+    // the counter table, a word per counter //
+    public static final String COUNTS = "_rt_prof";
+    private static final String HEADER = "#profile";
+
+    private static boolean generating = false;
+    private static Map<String, Integer> loaded = null;
+
+    // a line of the dump per entry: its text, and its counter //
+    private static List<String> myLines = new ArrayList<String>();
+    private static List<Integer> myCounters = new ArrayList<Integer>();
+    private static int myNumCounters = 0;
+
+    public static void setGenerating(boolean on) {
+        generating = on;
+    }
+
+    public static boolean isGenerating() {
+        return generating;
+    }
+
+    // **********************************************************************
+    // load
+    //    read the counts in the output of a -profile-gen run
+    // **********************************************************************
+    public static void load(String filename) throws IOException {
+        loaded = new HashMap<String, Integer>();
+        BufferedReader in = new BufferedReader(new FileReader(filename));
+        try {
+            boolean started = false;
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (!started) {
+                    started = line.equals(HEADER);
+                    continue;
+                }
+                int split = line.lastIndexOf(' ');
+                if (split < 0)
+                    continue;
+                try {
+                    loaded.put(line.substring(0, split),
+                               Integer.parseInt(line.substring(split + 1)));
+                } catch (NumberFormatException ex) {
+                    // not a count - skip the line //
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    // **********************************************************************
+    // apply
+    //    instrument the lowered prog, or give its quads their counts
+    // **********************************************************************
+    public static void apply(IRProgram prog) {
+        for (IRFunction fn : prog.functions()) {
+            if (generating)
+                instrument(fn);
+            else if (loaded != null)
+                annotate(fn);
+        }
+    }
+
+    // a counter at the start of each block and before each call //
+    private static void instrument(IRFunction fn) {
+        List<BasicBlock> blocks = fn.basicBlocks();
+        List<Quad> code = new ArrayList<Quad>();
+        String name = fn.name();
+        int calls = 0;
+        myLines.add("f " + name + " " + blocks.size() + " " + numCalls(fn));
+        myCounters.add(myNumCounters);
+
+        for (BasicBlock b : blocks) {
+            List<Quad> quads = b.quads();
+            // after the label (and the entry's formals) //
+            int start = 0;
+            while (start < quads.size() &&
+                   (quads.get(start) instanceof LabelQuad ||
+                    quads.get(start) instanceof ArgQuad))
+                start++;
+            code.addAll(quads.subList(0, start));
+            myLines.add("b " + name + " " + b.id());
+            myCounters.add(myNumCounters);
+            code.add(new CountQuad(myNumCounters++));
+
+            for (Quad q : quads.subList(start, quads.size())) {
+                if (q instanceof CallQuad) {
+                    myLines.add("c " + name + " " + calls++ + " " +
+                                ((CallQuad)q).name());
+                    myCounters.add(myNumCounters);
+                    code.add(new CountQuad(myNumCounters++));
+                }
+                code.add(q);
+            }
+        }
+        fn.setCode(code);
+    }
+
+    // the counts of fn's blocks and calls, if the profile has them //
+    private static void annotate(IRFunction fn) {
+        List<BasicBlock> blocks = fn.basicBlocks();
+        String name = fn.name();
+        if (!loaded.containsKey("f " + name + " " + blocks.size() + " " +
+                                numCalls(fn)))
+            return;
+
+        int calls = 0;
+        for (BasicBlock b : blocks) {
+            Integer count = loaded.get("b " + name + " " + b.id());
+            for (Quad q : b.quads()) {
+                Integer c = count;
+                if (q instanceof CallQuad)
+                    c = loaded.get("c " + name + " " + calls++ + " " +
+                                   ((CallQuad)q).name());
+                if (c != null)
+                    q.setCount(c);
+            }
+        }
+    }
+
+    private static int numCalls(IRFunction fn) {
+        int calls = 0;
+        for (Quad q : fn.code()) {
+            if (q instanceof CallQuad)
+                calls++;
+        }
+        return calls;
+    }
+
+    // **********************************************************************
+    // addCounters
+    //    reserve the counter table, with the program's globals (before any
+    //    code that reads or writes it is generated)
+    // **********************************************************************
+    public static void addCounters() {
+        if (myNumCounters > 0)
+            Codegen.data().addGlobal(COUNTS, 4 * myNumCounters);
+    }
+
+    // **********************************************************************
+    // genDump
+    //    write the counters out (from main's epilogue, after the program's
+    //    own output has been flushed)
+    // **********************************************************************
+    public static void genDump() {
+        if (myNumCounters == 0)
+            return;
+        DataSegment data = Codegen.data();
+
+        genPrintStr(data.stringLabel("\"\\n" + HEADER + "\""));
+        for (int k = 0; k < myLines.size(); k++) {
+            genPrintStr(data.stringLabel("\"\\n" + myLines.get(k) + " \""));
+            Codegen.generate("lw", Codegen.A0,
+                             COUNTS + "+" + 4 * myCounters.get(k));
+            Codegen.generate("li", Codegen.V0, 1);
+            Codegen.generate("syscall");
+        }
+        genPrintStr(data.stringLabel("\"\\n\""));
+    }
+
+    private static void genPrintStr(String label) {
+        Codegen.generate("la", Codegen.A0, label);
+        Codegen.generate("li", Codegen.V0, 4);
+        Codegen.generate("syscall");
+    }
+}
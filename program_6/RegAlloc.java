@@ -0,0 +1,162 @@
+import java.util.*;
+
+// **********************************************************************
+// RegAlloc assigns the temps of an IRFunction to registers from the
+// Codegen register pool by linear scan: temps are visited in the order
+// their live intervals start, an interval's register goes back to the
+// pool once the interval ends, and when the pool is empty the interval
+// ending last is spilled to a frame slot.
+//
+// Intervals come from liveness analysis (see Dataflow). It also records,
+// for every call, which registers hold temps that are live across it
+// (and so have to be saved around the call).
+// **********************************************************************
+
+public class RegAlloc {
+
+    // **********************************************************************
+    // allocate
+    //    assign every temp in fn a register or a spill slot
+    // **********************************************************************
+    public static void allocate(IRFunction fn) {
+        Liveness live = new Liveness(new CFG(fn));
+        List<Interval> intervals = buildIntervals(fn, live);
+        Collections.sort(intervals, new Comparator<Interval>() {
+            public int compare(Interval a, Interval b) {
+                return a.start - b.start;
+            }
+        });
+
+        // active intervals, by increasing end //
+        LinkedList<Interval> active = new LinkedList<Interval>();
+
+        for (Interval curr : intervals) {
+            // expire intervals that ended before this one starts //
+            Iterator<Interval> it = active.iterator();
+            while (it.hasNext()) {
+                Interval a = it.next();
+                if (a.end >= curr.start)
+                    break;
+                Codegen.freeReg(a.temp.reg());
+                it.remove();
+            }
+
+            if (Codegen.numFreeRegs() > 0) {
+                curr.temp.setReg(Codegen.getReg());
+                insert(active, curr);
+            }
+            else {
+                // out of registers - spill whichever ends last //
+                Interval last = active.getLast();
+                if (last.end > curr.end) {
+                    curr.temp.setReg(last.temp.reg());
+                    spill(fn, last);
+                    active.removeLast();
+                    insert(active, curr);
+                }
+                else
+                    spill(fn, curr);
+            }
+        }
+
+        // give everything back to the pool //
+        for (Interval a : active)
+            Codegen.freeReg(a.temp.reg());
+
+        markSavedRegs(live);
+    }
+
+    // **********************************************************************
+    // buildIntervals
+    //    live interval of each temp: from the first to the last quad
+    //    where it is mentioned or live (by liveness analysis, so a temp
+    //    live around a loop covers the whole loop)
+    // **********************************************************************
+    private static List<Interval> buildIntervals(IRFunction fn,
+                                                 Liveness live) {
+        Map<Temp, Interval> map = new LinkedHashMap<Temp, Interval>();
+        Locations locs = live.locations();
+
+        int k = 0;
+        for (BasicBlock b : live.cfg().blocks()) {
+            List<BitSet> liveOut = live.quadValues(b);
+            for (int j = 0; j < b.quads().size(); j++, k++) {
+                Quad q = b.quads().get(j);
+                List<Operand> ops = q.uses();
+                if (q.def() != null)
+                    ops.add(q.def());
+                BitSet out = liveOut.get(j);
+                for (int l = out.nextSetBit(0); l >= 0;
+                     l = out.nextSetBit(l + 1))
+                    ops.add(locs.get(l));
+
+                for (Operand op : ops) {
+                    if (!(op instanceof Temp))
+                        continue;
+                    Temp t = (Temp)op;
+                    Interval i = map.get(t);
+                    if (i == null) {
+                        i = new Interval(t, k);
+                        map.put(t, i);
+                    }
+                    i.end = k;
+                }
+            }
+        }
+        return new ArrayList<Interval>(map.values());
+    }
+
+    // **********************************************************************
+    // markSavedRegs
+    //    tell every call which registers hold temps live after it
+    // **********************************************************************
+    private static void markSavedRegs(Liveness live) {
+        for (BasicBlock b : live.cfg().blocks()) {
+            List<BitSet> liveOut = live.quadValues(b);
+            for (int j = 0; j < b.quads().size(); j++) {
+                if (!(b.quads().get(j) instanceof CallQuad))
+                    continue;
+                CallQuad call = (CallQuad)b.quads().get(j);
+                List<String> saved = new LinkedList<String>();
+                BitSet out = liveOut.get(j);
+                for (int l = out.nextSetBit(0); l >= 0;
+                     l = out.nextSetBit(l + 1)) {
+                    Operand op = live.locations().get(l);
+                    if (op instanceof Temp && op != call.def() &&
+                        ((Temp)op).reg() != null)
+                        saved.add(((Temp)op).reg());
+                }
+                call.setSaved(saved);
+            }
+        }
+    }
+
+    private static void spill(IRFunction fn, Interval i) {
+        i.temp.setReg(null);
+        i.temp.setSpillOffset(fn.newSpillSlot());
+    }
+
+    // insert keeping the list sorted by end //
+    private static void insert(LinkedList<Interval> active, Interval i) {
+        ListIterator<Interval> it = active.listIterator();
+        while (it.hasNext()) {
+            if (it.next().end > i.end) {
+                it.previous();
+                break;
+            }
+        }
+        it.add(i);
+    }
+
+    private static class Interval {
+        Interval(Temp temp, int start) {
+            this.temp = temp;
+            this.start = start;
+            this.end = start;
+        }
+
+        Temp temp;
+        int start;
+        int end;
+    }
+}
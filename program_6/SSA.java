@@ -0,0 +1,786 @@
+import java.util.*;
+
+// **********************************************************************
+// SSA optimizes the temps of an IRFunction in static single assignment
+// form, where each temp is written by exactly one quad:
+//
+//   - promotion: the scalar locals and formals, which nothing but the
+//     function itself can reach (CFlat has no pointers), become temps;
+//     a formal passed on the stack is read into its temp on entry
+//
+//   - construction: dominators (Cooper, Harvey & Kennedy) give the
+//     dominance frontiers, where phis go for the temps written before
+//     (but only if the temp is live there), and then every write of a
+//     temp is renamed to a new temp, walking down the dominator tree
+//
+//   - sparse conditional constant propagation (Wegman & Zadeck): temps
+//     are evaluated over the lattice TOP > constant > BOTTOM along the
+//     def-use edges, in the blocks reached by edges known to be taken,
+//     so a constant that decides a branch keeps the other side out of
+//     the picture; then constant temps are replaced by their values,
+//     the branches they decide are resolved, and the blocks never
+//     reached are dropped
+//
+//   - copy propagation: a temp that is a copy of another (a move, or a
+//     phi with the same source on every edge) is replaced by it
+//
+//   - translation out of SSA: each phi x = phi(a1, ..., an) gets a new
+//     temp X, written by X = ai at the end of the i-th predecessor and
+//     read by x = X in place of the phi (so no edge has to be split,
+//     and phis reading each other's results still work); then the
+//     moves between temps that don't interfere are coalesced away
+//
+// Globals and struct fields stay in memory; nothing is known of their
+// values.
+// **********************************************************************
+
+public class SSA {
+
+    // **********************************************************************
+    // optimize
+    // **********************************************************************
+    public static void optimize(IRFunction fn) {
+        promote(fn);
+        if (fn.code().isEmpty())
+            return;
+        // the entry block must have no predecessors (or its phis would
+        // miss the way in) //
+        if (fn.code().get(0) instanceof LabelQuad)
+            fn.code().add(0, new LabelQuad(fn.newLabel()));
+
+        SSA ssa = new SSA(fn);
+        ssa.findDominators();
+        ssa.placePhis();
+        ssa.rename();
+        ssa.propagateConstants();
+        ssa.propagateCopies();
+        ssa.translateOut();
+        coalesce(fn);
+    }
+
+    // **********************************************************************
+    // promote
+    //    put the scalar locals and formals of fn in temps
+    // **********************************************************************
+    private static void promote(IRFunction fn) {
+        Map<Var, Temp> temps = new LinkedHashMap<Var, Temp>();
+        for (Quad q : fn.code()) {
+            List<Operand> ops = q.uses();
+            ops.add(q.def());
+            for (Operand op : ops) {
+                if (isScalarLocal(op) && !temps.containsKey(op))
+                    temps.put((Var)op, fn.newTemp());
+            }
+        }
+
+        List<Quad> loads = new ArrayList<Quad>();
+        for (Map.Entry<Var, Temp> e : temps.entrySet()) {
+            fn.replaceAll(e.getKey(), e.getValue());
+            if (fn.formalIndex(e.getKey().sym().getOffset()) >= 0)
+                loads.add(new MoveQuad(e.getValue(), e.getKey()));
+        }
+        // after the formals passed in registers are taken //
+        int k = 0;
+        while (k < fn.code().size() && fn.code().get(k) instanceof ArgQuad)
+            k++;
+        fn.code().addAll(k, loads);
+    }
+
+    // a variable in the frame that is not a struct //
+    private static boolean isScalarLocal(Operand op) {
+        return op instanceof Var && !((Var)op).isGlobal() &&
+               !(((Var)op).sym() instanceof StructSym);
+    }
+
+    private SSA(IRFunction fn) {
+        myFunction = fn;
+        myCFG = new CFG(fn);
+        myBlocks = myCFG.blocks();
+        myOrder = myCFG.reversePostorder();
+
+        int n = myBlocks.size();
+        boolean[] reachable = new boolean[n];
+        for (BasicBlock b : myOrder)
+            reachable[b.id()] = true;
+        for (BasicBlock b : myBlocks) {
+            List<BasicBlock> preds = new ArrayList<BasicBlock>();
+            for (BasicBlock p : b.preds()) {
+                if (reachable[p.id()])
+                    preds.add(p);
+            }
+            myPreds.add(preds);
+            myChildren.add(new ArrayList<BasicBlock>());
+            myFrontiers.add(new LinkedHashSet<BasicBlock>());
+            myExecPreds.add(new HashSet<BasicBlock>());
+        }
+        myIdom = new BasicBlock[n];
+        myExecutable = new boolean[n];
+    }
+
+    // the predecessors of b reachable from the entry //
+    private List<BasicBlock> preds(BasicBlock b) {
+        return myPreds.get(b.id());
+    }
+
+    // **********************************************************************
+    // findDominators
+    //    the immediate dominator of each reachable block (iterating over
+    //    the blocks in reverse postorder until nothing changes), then the
+    //    dominator tree and the dominance frontiers
+    // **********************************************************************
+    private void findDominators() {
+        int[] rpo = new int[myBlocks.size()];
+        for (int k = 0; k < myOrder.size(); k++)
+            rpo[myOrder.get(k).id()] = k;
+
+        BasicBlock entry = myCFG.entry();
+        myIdom[entry.id()] = entry;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock b : myOrder) {
+                if (b == entry)
+                    continue;
+                BasicBlock idom = null;
+                for (BasicBlock p : preds(b)) {
+                    if (myIdom[p.id()] == null)
+                        continue;
+                    idom = idom == null ? p : intersect(p, idom, rpo);
+                }
+                if (idom != myIdom[b.id()]) {
+                    myIdom[b.id()] = idom;
+                    changed = true;
+                }
+            }
+        }
+
+        for (BasicBlock b : myOrder) {
+            if (b != entry)
+                myChildren.get(myIdom[b.id()].id()).add(b);
+            if (preds(b).size() < 2)
+                continue;
+            // b is in the frontier of the blocks dominating a predecessor
+            // but not b itself //
+            for (BasicBlock p : preds(b)) {
+                for (BasicBlock runner = p; runner != myIdom[b.id()];
+                     runner = myIdom[runner.id()])
+                    myFrontiers.get(runner.id()).add(b);
+            }
+        }
+    }
+
+    // the nearest common dominator of a and b //
+    private BasicBlock intersect(BasicBlock a, BasicBlock b, int[] rpo) {
+        while (a != b) {
+            while (rpo[a.id()] > rpo[b.id()])
+                a = myIdom[a.id()];
+            while (rpo[b.id()] > rpo[a.id()])
+                b = myIdom[b.id()];
+        }
+        return a;
+    }
+
+    // **********************************************************************
+    // placePhis
+    //    a phi for temp t at the start of each block in the iterated
+    //    dominance frontier of t's writes where t is live
+    // **********************************************************************
+    private void placePhis() {
+        Liveness live = new Liveness(myCFG);
+
+        Map<Temp, Set<BasicBlock>> defSites =
+            new LinkedHashMap<Temp, Set<BasicBlock>>();
+        for (BasicBlock b : myOrder) {
+            for (Quad q : b.quads()) {
+                if (!(q.def() instanceof Temp))
+                    continue;
+                Set<BasicBlock> sites = defSites.get(q.def());
+                if (sites == null) {
+                    sites = new LinkedHashSet<BasicBlock>();
+                    defSites.put((Temp)q.def(), sites);
+                }
+                sites.add(b);
+            }
+        }
+
+        for (Map.Entry<Temp, Set<BasicBlock>> e : defSites.entrySet()) {
+            Temp t = e.getKey();
+            Set<BasicBlock> queued = new HashSet<BasicBlock>(e.getValue());
+            Deque<BasicBlock> worklist =
+                new ArrayDeque<BasicBlock>(e.getValue());
+            Set<BasicBlock> hasPhi = new HashSet<BasicBlock>();
+            while (!worklist.isEmpty()) {
+                BasicBlock b = worklist.poll();
+                for (BasicBlock y : myFrontiers.get(b.id())) {
+                    if (hasPhi.contains(y) || !live.isLive(live.in(y), t))
+                        continue;
+                    hasPhi.add(y);
+                    PhiQuad phi = new PhiQuad(t, preds(y).size());
+                    y.quads().add(phiEnd(y), phi);
+                    myPhiTemps.put(phi, t);
+                    if (queued.add(y))
+                        worklist.add(y);
+                }
+            }
+        }
+    }
+
+    // the index in b's quads past its label and phis //
+    private static int phiEnd(BasicBlock b) {
+        int k = 0;
+        List<Quad> quads = b.quads();
+        if (k < quads.size() && quads.get(k) instanceof LabelQuad)
+            k++;
+        while (k < quads.size() && quads.get(k) instanceof PhiQuad)
+            k++;
+        return k;
+    }
+
+    // **********************************************************************
+    // rename
+    //    give every write of a temp a new temp, and every read the one
+    //    written last on the way down the dominator tree (or the old
+    //    temp, unwritten, if none was)
+    // **********************************************************************
+    private void rename() {
+        Map<Temp, Deque<Temp>> current = new HashMap<Temp, Deque<Temp>>();
+
+        // iterative walk - deep functions would overflow the stack //
+        Deque<Visit> stack = new ArrayDeque<Visit>();
+        stack.push(new Visit(myCFG.entry()));
+        while (!stack.isEmpty()) {
+            Visit visit = stack.pop();
+            if (visit.written != null) {
+                // leaving the block: back to the names from above it //
+                for (Temp t : visit.written)
+                    current.get(t).pop();
+                continue;
+            }
+            visit.written = renameBlock(visit.block, current);
+            stack.push(visit);
+            for (BasicBlock child : myChildren.get(visit.block.id()))
+                stack.push(new Visit(child));
+        }
+    }
+
+    // rename in b and the phis of its successors; return the temps b
+    // wrote, once per write //
+    private List<Temp> renameBlock(BasicBlock b,
+                                   Map<Temp, Deque<Temp>> current) {
+        List<Temp> written = new ArrayList<Temp>();
+        for (Quad q : b.quads()) {
+            if (!(q instanceof PhiQuad)) {
+                for (Operand op : q.uses()) {
+                    if (op instanceof Temp)
+                        q.replaceUse(op, currentName((Temp)op, current));
+                }
+            }
+            if (q.def() instanceof Temp) {
+                Temp t = (Temp)q.def();
+                Temp name = myFunction.newTemp();
+                q.replaceDef(name);
+                myDefs.put(name, q);
+                if (!current.containsKey(t))
+                    current.put(t, new ArrayDeque<Temp>());
+                current.get(t).push(name);
+                written.add(t);
+            }
+        }
+
+        for (BasicBlock succ : b.succs()) {
+            int k = preds(succ).indexOf(b);
+            for (Quad q : succ.quads()) {
+                if (q instanceof PhiQuad) {
+                    PhiQuad phi = (PhiQuad)q;
+                    phi.setSrc(k, currentName(myPhiTemps.get(phi), current));
+                }
+            }
+        }
+        return written;
+    }
+
+    private static Temp currentName(Temp t, Map<Temp, Deque<Temp>> current) {
+        Deque<Temp> names = current.get(t);
+        if (names == null || names.isEmpty())
+            return t;
+        return names.peek();
+    }
+
+    // a block to rename (written == null), or to leave //
+    private static class Visit {
+        public Visit(BasicBlock block) {
+            this.block = block;
+        }
+
+        public BasicBlock block;
+        public List<Temp> written;
+    }
+
+    // **********************************************************************
+    // propagateConstants
+    //    sparse conditional constant propagation, then the rewriting
+    // **********************************************************************
+    private void propagateConstants() {
+        Map<Temp, List<Quad>> users = new HashMap<Temp, List<Quad>>();
+        for (BasicBlock b : myOrder) {
+            for (Quad q : b.quads()) {
+                myBlockOf.put(q, b);
+                for (Operand op : q.uses()) {
+                    if (!(op instanceof Temp))
+                        continue;
+                    if (!users.containsKey(op))
+                        users.put((Temp)op, new ArrayList<Quad>());
+                    users.get(op).add(q);
+                }
+            }
+        }
+
+        // edges (from, to) newly known to be taken, from == null for the
+        // way in, and quads whose operands' values went down //
+        Deque<BasicBlock[]> flowWork = new ArrayDeque<BasicBlock[]>();
+        Deque<Quad> ssaWork = new ArrayDeque<Quad>();
+        flowWork.add(new BasicBlock[] { null, myCFG.entry() });
+
+        while (!flowWork.isEmpty() || !ssaWork.isEmpty()) {
+            Quad q = null;
+            if (!flowWork.isEmpty()) {
+                BasicBlock[] edge = flowWork.poll();
+                BasicBlock to = edge[1];
+                if (edge[0] != null && !myExecPreds.get(to.id()).add(edge[0]))
+                    continue;
+                boolean first = !myExecutable[to.id()];
+                myExecutable[to.id()] = true;
+                // a new edge into a block only changes its phis //
+                for (Quad inTo : to.quads()) {
+                    if (first || inTo instanceof PhiQuad)
+                        visit(inTo, users, flowWork, ssaWork);
+                }
+                if (first && !(to.last() instanceof CondJumpQuad)) {
+                    for (BasicBlock succ : to.succs())
+                        flowWork.add(new BasicBlock[] { to, succ });
+                }
+                continue;
+            }
+            q = ssaWork.poll();
+            if (myExecutable[myBlockOf.get(q).id()])
+                visit(q, users, flowWork, ssaWork);
+        }
+
+        substituteConstants();
+    }
+
+    // evaluate q (in an executable block) again //
+    private void visit(Quad q, Map<Temp, List<Quad>> users,
+                       Deque<BasicBlock[]> flowWork, Deque<Quad> ssaWork) {
+        BasicBlock b = myBlockOf.get(q);
+        if (q instanceof CondJumpQuad) {
+            CondJumpQuad cj = (CondJumpQuad)q;
+            Value val1 = value(cj.src1());
+            Value val2 = value(cj.src2());
+            if (val1 == Value.TOP || val2 == Value.TOP)
+                return;
+            if (val1.isConstant() && val2.isConstant()) {
+                boolean taken = Quad.evaluate(cj.op(), val1.constant(),
+                                              val2.constant()) != 0;
+                flowWork.add(new BasicBlock[] {
+                    b, taken ? targetOf(b, cj.target()) :
+                               myBlocks.get(b.id() + 1) });
+            }
+            else {
+                for (BasicBlock succ : b.succs())
+                    flowWork.add(new BasicBlock[] { b, succ });
+            }
+            return;
+        }
+
+        if (!(q.def() instanceof Temp))
+            return;
+        Temp t = (Temp)q.def();
+        Value old = value(t);
+        Value val = old.meet(evaluate(q, b));
+        if (val.equals(old))
+            return;
+        myValues.put(t, val);
+        if (users.containsKey(t))
+            ssaWork.addAll(users.get(t));
+    }
+
+    // the successor of b that starts with label //
+    private static BasicBlock targetOf(BasicBlock b, String label) {
+        for (BasicBlock succ : b.succs()) {
+            if (label.equals(succ.label()))
+                return succ;
+        }
+        return null;
+    }
+
+    // the value q writes, given what is known of its operands //
+    private Value evaluate(Quad q, BasicBlock b) {
+        if (q instanceof PhiQuad) {
+            // only the edges taken count //
+            Value val = Value.TOP;
+            List<Operand> srcs = ((PhiQuad)q).srcs();
+            for (int k = 0; k < srcs.size(); k++) {
+                if (myExecPreds.get(b.id()).contains(preds(b).get(k)))
+                    val = val.meet(value(srcs.get(k)));
+            }
+            return val;
+        }
+        if (q instanceof MoveQuad)
+            return value(((MoveQuad)q).src());
+        if (q instanceof BinOpQuad) {
+            BinOpQuad bin = (BinOpQuad)q;
+            return apply(bin.op(), value(bin.src1()), value(bin.src2()));
+        }
+        if (q instanceof UnOpQuad) {
+            UnOpQuad un = (UnOpQuad)q;
+            return apply(un.op(), value(un.src()), Value.of(0));
+        }
+        // calls, input, arguments, string addresses //
+        return Value.BOTTOM;
+    }
+
+    private static Value apply(int op, Value val1, Value val2) {
+        if (val1 == Value.BOTTOM || val2 == Value.BOTTOM)
+            return Value.BOTTOM;
+        if (val1 == Value.TOP || val2 == Value.TOP)
+            return Value.TOP;
+        Integer result = Quad.evaluate(op, val1.constant(), val2.constant());
+        return result == null ? Value.BOTTOM : Value.of(result);
+    }
+
+    // what is known of op: temps never written hold anything //
+    private Value value(Operand op) {
+        if (op instanceof Const)
+            return Value.of(((Const)op).value());
+        if (!(op instanceof Temp) || !myDefs.containsKey(op))
+            return Value.BOTTOM;
+        Value val = myValues.get(op);
+        return val == null ? Value.TOP : val;
+    }
+
+    // **********************************************************************
+    // substituteConstants
+    //    replace the constant temps by their values (dropping their
+    //    writes), resolve the branches that are now decided, and drop
+    //    the blocks that can't be reached
+    // **********************************************************************
+    private void substituteConstants() {
+        for (BasicBlock b : myBlocks) {
+            if (!myExecutable[b.id()]) {
+                b.quads().clear();
+                continue;
+            }
+            ListIterator<Quad> it = b.quads().listIterator();
+            while (it.hasNext()) {
+                Quad q = it.next();
+                for (Operand op : q.uses()) {
+                    Value val = value(op);
+                    if (op instanceof Temp && val.isConstant())
+                        q.replaceUse(op, new Const(val.constant()));
+                }
+                if (q.def() instanceof Temp &&
+                    value(q.def()).isConstant() &&
+                    (q instanceof PhiQuad || q instanceof MoveQuad ||
+                     q instanceof BinOpQuad || q instanceof UnOpQuad)) {
+                    it.remove();
+                    continue;
+                }
+                if (q instanceof CondJumpQuad) {
+                    CondJumpQuad cj = (CondJumpQuad)q;
+                    if (!(cj.src1() instanceof Const &&
+                          cj.src2() instanceof Const))
+                        continue;
+                    if (Quad.evaluate(cj.op(), ((Const)cj.src1()).value(),
+                                      ((Const)cj.src2()).value()) != 0)
+                        it.set(new JumpQuad(cj.target()));
+                    else
+                        it.remove();
+                }
+            }
+        }
+    }
+
+    // **********************************************************************
+    // propagateCopies
+    //    read the original instead of each copy, and drop the copies
+    // **********************************************************************
+    private void propagateCopies() {
+        Map<Temp, Operand> copies = new HashMap<Temp, Operand>();
+
+        // a phi may become a copy once its sources are resolved //
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock b : myBlocks) {
+                for (Quad q : b.quads()) {
+                    if (!(q.def() instanceof Temp) ||
+                        copies.containsKey(q.def()))
+                        continue;
+                    Operand src = null;
+                    if (q instanceof MoveQuad &&
+                        ((MoveQuad)q).src() instanceof Temp)
+                        src = ((MoveQuad)q).src();
+                    else if (q instanceof PhiQuad)
+                        src = soleSource((PhiQuad)q, b, copies);
+                    if (src != null) {
+                        copies.put((Temp)q.def(), src);
+                        changed = true;
+                    }
+                }
+            }
+        }
+        if (copies.isEmpty())
+            return;
+
+        for (BasicBlock b : myBlocks) {
+            Iterator<Quad> it = b.quads().iterator();
+            while (it.hasNext()) {
+                Quad q = it.next();
+                if (copies.containsKey(q.def())) {
+                    it.remove();
+                    continue;
+                }
+                for (Operand op : q.uses())
+                    q.replaceUse(op, original(op, copies));
+            }
+        }
+    }
+
+    // the one value phi gets on every edge taken, other than its own
+    // (null if there are several) //
+    private Operand soleSource(PhiQuad phi, BasicBlock b,
+                               Map<Temp, Operand> copies) {
+        Operand sole = null;
+        for (int k = 0; k < phi.srcs().size(); k++) {
+            if (!myExecPreds.get(b.id()).contains(preds(b).get(k)))
+                continue;
+            Operand src = original(phi.srcs().get(k), copies);
+            if (src == phi.dst())
+                continue;
+            if (sole != null && !sole.equals(src))
+                return null;
+            sole = src;
+        }
+        return sole;
+    }
+
+    // what op is a copy of (op if it isn't one) //
+    private static Operand original(Operand op, Map<Temp, Operand> copies) {
+        Set<Operand> seen = new HashSet<Operand>();
+        while (copies.containsKey(op) && seen.add(op))
+            op = copies.get(op);
+        return op;
+    }
+
+    // **********************************************************************
+    // translateOut
+    //    replace the phis by moves (see the top) and put the code back
+    //    together from the blocks left
+    // **********************************************************************
+    private void translateOut() {
+        Map<BasicBlock, List<Quad>> atEnd =
+            new HashMap<BasicBlock, List<Quad>>();
+        for (BasicBlock b : myBlocks) {
+            List<Quad> reads = new ArrayList<Quad>();
+            Iterator<Quad> it = b.quads().iterator();
+            while (it.hasNext()) {
+                Quad q = it.next();
+                if (!(q instanceof PhiQuad))
+                    continue;
+                PhiQuad phi = (PhiQuad)q;
+                Temp shared = myFunction.newTemp();
+                for (int k = 0; k < phi.srcs().size(); k++) {
+                    BasicBlock pred = preds(b).get(k);
+                    if (!myExecPreds.get(b.id()).contains(pred))
+                        continue;
+                    if (!atEnd.containsKey(pred))
+                        atEnd.put(pred, new ArrayList<Quad>());
+                    atEnd.get(pred).add(new MoveQuad(shared,
+                                                     phi.srcs().get(k)));
+                }
+                reads.add(new MoveQuad(phi.dst(), shared));
+                it.remove();
+            }
+            b.quads().addAll(phiEnd(b), reads);
+        }
+
+        // before the jump ending the block, if there is one //
+        for (Map.Entry<BasicBlock, List<Quad>> e : atEnd.entrySet()) {
+            List<Quad> quads = e.getKey().quads();
+            Quad last = e.getKey().last();
+            int k = quads.size();
+            if (last != null &&
+                (last.target() != null || last.isUnconditionalJump()))
+                k--;
+            quads.addAll(k, e.getValue());
+        }
+
+        List<Quad> code = new ArrayList<Quad>();
+        for (BasicBlock b : myBlocks)
+            code.addAll(b.quads());
+        myFunction.setCode(code);
+    }
+
+    // **********************************************************************
+    // coalesce
+    //    merge the two temps of each move that don't interfere, i.e.,
+    //    neither is written while the other is live (a move from one to
+    //    the other aside)
+    // **********************************************************************
+    private static void coalesce(IRFunction fn) {
+        Liveness live = new Liveness(new CFG(fn));
+        Map<Temp, Set<Temp>> interferes = new HashMap<Temp, Set<Temp>>();
+        for (BasicBlock b : live.cfg().blocks()) {
+            List<BitSet> liveOut = live.quadValues(b);
+            for (int k = 0; k < b.quads().size(); k++) {
+                Quad q = b.quads().get(k);
+                if (!(q.def() instanceof Temp))
+                    continue;
+                Operand src = q instanceof MoveQuad ?
+                              ((MoveQuad)q).src() : null;
+                BitSet set = liveOut.get(k);
+                for (int j = set.nextSetBit(0); j >= 0;
+                     j = set.nextSetBit(j + 1)) {
+                    Operand op = live.locations().get(j);
+                    if (op instanceof Temp && op != q.def() && op != src)
+                        addInterference(interferes, (Temp)q.def(), (Temp)op);
+                }
+            }
+        }
+
+        Map<Temp, Temp> merged = new HashMap<Temp, Temp>();
+        for (Quad q : fn.code()) {
+            if (!(q instanceof MoveQuad) || !(q.def() instanceof Temp) ||
+                !(((MoveQuad)q).src() instanceof Temp))
+                continue;
+            Temp a = find((Temp)q.def(), merged);
+            Temp b = find((Temp)((MoveQuad)q).src(), merged);
+            if (a == b || neighbors(interferes, a).contains(b))
+                continue;
+            // b joins a //
+            merged.put(b, a);
+            for (Temp n : neighbors(interferes, b)) {
+                neighbors(interferes, n).remove(b);
+                addInterference(interferes, a, n);
+            }
+        }
+        if (merged.isEmpty())
+            return;
+
+        List<Quad> code = new ArrayList<Quad>();
+        for (Quad q : fn.code()) {
+            for (Operand op : q.uses()) {
+                if (op instanceof Temp)
+                    q.replaceUse(op, find((Temp)op, merged));
+            }
+            if (q.def() instanceof Temp)
+                q.replaceDef(find((Temp)q.def(), merged));
+            if (q instanceof MoveQuad && ((MoveQuad)q).src() == q.def())
+                continue;
+            code.add(q);
+        }
+        fn.setCode(code);
+    }
+
+    private static Temp find(Temp t, Map<Temp, Temp> merged) {
+        while (merged.containsKey(t))
+            t = merged.get(t);
+        return t;
+    }
+
+    private static Set<Temp> neighbors(Map<Temp, Set<Temp>> interferes,
+                                       Temp t) {
+        Set<Temp> set = interferes.get(t);
+        if (set == null) {
+            set = new HashSet<Temp>();
+            interferes.put(t, set);
+        }
+        return set;
+    }
+
+    private static void addInterference(Map<Temp, Set<Temp>> interferes,
+                                        Temp a, Temp b) {
+        neighbors(interferes, a).add(b);
+        neighbors(interferes, b).add(a);
+    }
+
+    // **********************************************************************
+    // Value is what constant propagation knows of a temp: TOP (nothing
+    // yet - it may still turn out to be any constant), a constant, or
+    // BOTTOM (not a constant).
+    // **********************************************************************
+    private static class Value {
+        public static final Value TOP = new Value(0, 0);
+        public static final Value BOTTOM = new Value(2, 0);
+
+        public static Value of(int constant) {
+            return new Value(1, constant);
+        }
+
+        private Value(int height, int constant) {
+            myHeight = height;
+            myConstant = constant;
+        }
+
+        public boolean isConstant() {
+            return myHeight == 1;
+        }
+
+        public int constant() {
+            return myConstant;
+        }
+
+        // the most that is known of something that is this or val //
+        public Value meet(Value val) {
+            if (myHeight == 0 || val.equals(this))
+                return val;
+            if (val.myHeight == 0)
+                return this;
+            return BOTTOM;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Value))
+                return false;
+            Value val = (Value)o;
+            return val.myHeight == myHeight && val.myConstant == myConstant;
+        }
+
+        public int hashCode() {
+            return myHeight * 31 + myConstant;
+        }
+
+        private int myHeight;
+        private int myConstant;
+    }
+
+    private IRFunction myFunction;
+    private CFG myCFG;
+    private List<BasicBlock> myBlocks;
+    // the reachable blocks //
+    private List<BasicBlock> myOrder;
+    private List<List<BasicBlock>> myPreds =
+        new ArrayList<List<BasicBlock>>();
+
+    // the dominator tree and frontiers, by block id //
+    private BasicBlock[] myIdom;
+    private List<List<BasicBlock>> myChildren =
+        new ArrayList<List<BasicBlock>>();
+    private List<Set<BasicBlock>> myFrontiers =
+        new ArrayList<Set<BasicBlock>>();
+
+    // the temp each phi was placed for //
+    private Map<PhiQuad, Temp> myPhiTemps = new HashMap<PhiQuad, Temp>();
+    // the quad writing each renamed temp //
+    private Map<Temp, Quad> myDefs = new HashMap<Temp, Quad>();
+
+    // constant propagation: the values found, the blocks and edges
+    // known to be taken (edges by their target's id) //
+    private Map<Temp, Value> myValues = new HashMap<Temp, Value>();
+    private boolean[] myExecutable;
+    private List<Set<BasicBlock>> myExecPreds =
+        new ArrayList<Set<BasicBlock>>();
+    private Map<Quad, BasicBlock> myBlockOf =
+        new IdentityHashMap<Quad, BasicBlock>();
+}
@@ -0,0 +1,380 @@
+import java.util.*;
+
+// **********************************************************************
+// Scheduler reorders the instruction stream (after Peephole) so that
+// fewer cycles are lost waiting for loads:
+//
+//   - each stretch of straight-line code (up to a label, branch, jump or
+//     syscall) is list scheduled: an instruction goes as soon as what
+//     it depends on is done, the one starting the longest chain of
+//     dependences first, so the instructions using the value of a load
+//     are pushed away from it when there is something else to do
+//
+// With setDelaySlots(true), the code is for a MIPS (SPIM with
+// -delayed_branches -delayed_loads) that runs the instruction after a
+// branch or jump whether it is taken or not, and whose loads take a
+// cycle before their register can be read:
+//
+//   - the delay slot after each branch or jump gets an instruction
+//     from before it that the branch doesn't depend on (or else a nop)
+//   - a nop goes after a load whose register is still read by the next
+//     instruction
+//
+// Only single machine instructions go into delay slots (not pseudo-
+// instructions that SPIM expands into several), and no loads.
+// Dependences are through registers (including HI and LO), and between
+// a store and any other memory access that may overlap it (not a
+// different offset from the same base register, a different global, or
+// the stack and a global).
+// **********************************************************************
+
+public class Scheduler {
+
+    private static boolean delaySlots = false;
+
+    public static void setDelaySlots(boolean on) {
+        delaySlots = on;
+    }
+
+    // **********************************************************************
+    // schedule
+    //    reorder code in place
+    // **********************************************************************
+    public static void schedule(List<Instr> code) {
+        List<Instr> out = new ArrayList<Instr>();
+        List<Instr> stretch = new ArrayList<Instr>();
+        boolean text = true;
+
+        for (Instr instr : code) {
+            if (instr.is(".data"))
+                text = false;
+            else if (instr.is(".text"))
+                text = true;
+
+            if (text && isMovable(instr)) {
+                stretch.add(instr);
+                continue;
+            }
+            int start = out.size();
+            out.addAll(listSchedule(stretch));
+            stretch.clear();
+
+            out.add(instr);
+            if (text && delaySlots && isControl(instr))
+                out.add(fillSlot(out, start));
+        }
+        out.addAll(listSchedule(stretch));
+
+        if (delaySlots)
+            separateLoads(out);
+
+        code.clear();
+        code.addAll(out);
+    }
+
+    // **********************************************************************
+    // listSchedule
+    //    the instructions of a straight-line stretch, reordered
+    // **********************************************************************
+    private static List<Instr> listSchedule(List<Instr> stretch) {
+        int n = stretch.size();
+        if (n < 2)
+            return new ArrayList<Instr>(stretch);
+
+        // dependences (i before j) and their latencies //
+        List<List<Integer>> succs = new ArrayList<List<Integer>>();
+        int[] numPreds = new int[n];
+        for (int i = 0; i < n; i++) {
+            succs.add(new ArrayList<Integer>());
+            for (int j = 0; j < i; j++) {
+                if (dependent(stretch.get(j), stretch.get(i))) {
+                    succs.get(j).add(i);
+                    numPreds[i]++;
+                }
+            }
+        }
+
+        // priority: the length of the longest chain from there //
+        int[] height = new int[n];
+        for (int i = n - 1; i >= 0; i--) {
+            height[i] = 1;
+            for (int j : succs.get(i)) {
+                height[i] = Math.max(height[i],
+                                     latency(stretch.get(i), stretch.get(j))
+                                     + height[j]);
+            }
+        }
+
+        int[] earliest = new int[n];
+        boolean[] done = new boolean[n];
+        List<Instr> out = new ArrayList<Instr>();
+        int cycle = 0;
+        while (out.size() < n) {
+            // the ready instruction that can go now with the longest
+            // chain, else the one that can go soonest //
+            int best = -1;
+            for (int i = 0; i < n; i++) {
+                if (done[i] || numPreds[i] > 0)
+                    continue;
+                if (best < 0 || better(i, best, earliest, height, cycle))
+                    best = i;
+            }
+
+            done[best] = true;
+            out.add(stretch.get(best));
+            cycle = Math.max(cycle, earliest[best]) + 1;
+            for (int j : succs.get(best)) {
+                numPreds[j]--;
+                earliest[j] = Math.max(earliest[j], cycle - 1 +
+                                       latency(stretch.get(best),
+                                               stretch.get(j)));
+            }
+        }
+        return out;
+    }
+
+    // should ready instruction i go before ready instruction j? //
+    private static boolean better(int i, int j, int[] earliest, int[] height,
+                                  int cycle) {
+        boolean iNow = earliest[i] <= cycle;
+        boolean jNow = earliest[j] <= cycle;
+        if (iNow != jNow)
+            return iNow;
+        if (!iNow && earliest[i] != earliest[j])
+            return earliest[i] < earliest[j];
+        if (height[i] != height[j])
+            return height[i] > height[j];
+        return i < j;
+    }
+
+    // cycles from a to an instruction that depends on it //
+    private static int latency(Instr a, Instr b) {
+        if (isLoad(a) && !Collections.disjoint(defs(a), uses(b)))
+            return 2;
+        return 1;
+    }
+
+    // **********************************************************************
+    // delay slots
+    // **********************************************************************
+
+    // the instruction for the delay slot of the branch or jump just added
+    // to out: the last one of the stretch before it (from start) that it
+    // and the ones after don't depend on, taken out of out; or else a
+    // nop //
+    private static Instr fillSlot(List<Instr> out, int start) {
+        int branch = out.size() - 1;
+        Instr jump = out.get(branch);
+        for (int k = branch - 1; k >= start; k--) {
+            Instr instr = out.get(k);
+            if (isSingle(instr) && !isLoad(instr) &&
+                !dependent(instr, jump) && !movesPast(out, k, branch))
+                return out.remove(k);
+        }
+        return new Instr("nop", "", "", "", "");
+    }
+
+    // does anything between k and end depend on the instruction at k? //
+    private static boolean movesPast(List<Instr> out, int k, int end) {
+        for (int j = k + 1; j < end; j++) {
+            if (dependent(out.get(k), out.get(j)))
+                return true;
+        }
+        return false;
+    }
+
+    // put a nop after each load whose register the next instruction
+    // reads //
+    private static void separateLoads(List<Instr> code) {
+        for (int k = 0; k < code.size(); k++) {
+            if (!isLoad(code.get(k)))
+                continue;
+            int next = k + 1;
+            while (next < code.size() && code.get(next).isLabel())
+                next++;
+            if (next < code.size() &&
+                !Collections.disjoint(defs(code.get(k)),
+                                      uses(code.get(next))))
+                code.add(k + 1, new Instr("nop", "", "", "", ""));
+        }
+    }
+
+    // **********************************************************************
+    // instructions
+    // **********************************************************************
+
+    private static final Set<String> ALU = new HashSet<String>(Arrays.asList(
+        "add", "addu", "sub", "subu", "and", "or", "xor", "nor", "slt",
+        "sltu", "sll", "srl", "sra", "sllv", "srlv", "srav", "addi", "addiu",
+        "andi", "ori", "xori", "slti", "sltiu", "seq", "sne", "sgt", "sge",
+        "sle", "move", "neg", "negu", "not", "li", "la", "lui"));
+
+    private static final Set<String> MULDIV = new HashSet<String>(
+        Arrays.asList("mul", "mult", "multu", "div", "divu", "rem"));
+
+    private static final Set<String> LOADS = new HashSet<String>(
+        Arrays.asList("lw", "lb", "lbu", "lh", "lhu"));
+
+    private static final Set<String> STORES = new HashSet<String>(
+        Arrays.asList("sw", "sb", "sh"));
+
+    // real instructions with register operands (or a 16-bit immediate) //
+    private static final Set<String> SINGLE = new HashSet<String>(
+        Arrays.asList("add", "addu", "sub", "subu", "and", "or", "xor",
+                      "nor", "slt", "sltu", "sllv", "srlv", "srav", "move",
+                      "neg", "negu", "mfhi", "mflo"));
+
+    private static final Set<String> SINGLE_IMMEDIATE = new HashSet<String>(
+        Arrays.asList("addi", "addiu", "slti", "sltiu", "sll", "srl",
+                      "sra", "li"));
+
+    private static final Set<String> SINGLE_UNSIGNED = new HashSet<String>(
+        Arrays.asList("andi", "ori", "xori"));
+
+    private static final String HI = "hi";
+    private static final String LO = "lo";
+
+    // an instruction that may be reordered within a stretch //
+    private static boolean isMovable(Instr instr) {
+        if (instr.label() != null || instr.isDirective())
+            return false;
+        String op = instr.opcode();
+        return ALU.contains(op) || MULDIV.contains(op) || LOADS.contains(op) ||
+               STORES.contains(op) || op.equals("mfhi") || op.equals("mflo") ||
+               op.equals("nop");
+    }
+
+    // a branch or jump //
+    private static boolean isControl(Instr instr) {
+        return instr.isBranch() || instr.is("jal") || instr.is("jr") ||
+               instr.is("jalr");
+    }
+
+    private static boolean isLoad(Instr instr) {
+        return LOADS.contains(instr.opcode());
+    }
+
+    // is instr one machine instruction (so it can fill a delay slot)? //
+    private static boolean isSingle(Instr instr) {
+        String op = instr.opcode();
+        if (LOADS.contains(op) || STORES.contains(op))
+            return instr.isIndexed() ? fits(instr.offset(), false)
+                                     : Codegen.data().isSmall(global(instr));
+        List<String> args = instr.args();
+        if (args.isEmpty())
+            return false;
+        String last = args.get(args.size() - 1);
+        if (SINGLE.contains(op))
+            return last.startsWith("$");
+        if (SINGLE_IMMEDIATE.contains(op) || SINGLE_UNSIGNED.contains(op))
+            return last.startsWith("$") ||
+                   fits(last, SINGLE_UNSIGNED.contains(op));
+        return false;
+    }
+
+    private static boolean fits(String value, boolean unsigned) {
+        try {
+            return fits(Integer.parseInt(value), unsigned);
+        } catch (NumberFormatException e) {
+            return false;    // a label //
+        }
+    }
+
+    private static boolean fits(int value, boolean unsigned) {
+        if (unsigned)
+            return value >= 0 && value <= 65535;
+        return value >= -32768 && value <= 32767;
+    }
+
+    // must a (coming first) stay before b? //
+    private static boolean dependent(Instr a, Instr b) {
+        Set<String> defsA = defs(a);
+        Set<String> defsB = defs(b);
+        if (!Collections.disjoint(defsA, uses(b)) ||
+            !Collections.disjoint(uses(a), defsB) ||
+            !Collections.disjoint(defsA, defsB))
+            return true;
+        boolean memA = isLoad(a) || STORES.contains(a.opcode());
+        boolean memB = isLoad(b) || STORES.contains(b.opcode());
+        return memA && memB &&
+               (STORES.contains(a.opcode()) || STORES.contains(b.opcode())) &&
+               !disjoint(a, b);
+    }
+
+    // do loads / stores a and b surely access different bytes?  (If the
+    // base register changes in between, that orders them anyway.) //
+    private static boolean disjoint(Instr a, Instr b) {
+        if (a.isIndexed() && b.isIndexed()) {
+            if (!a.base().equals(b.base()))
+                return false;
+            return a.offset() + size(a) <= b.offset() ||
+                   b.offset() + size(b) <= a.offset();
+        }
+        if (!a.isIndexed() && !b.isIndexed())
+            return !global(a).equals(global(b));
+        // the stack holds no globals //
+        Instr indexed = a.isIndexed() ? a : b;
+        return indexed.base().equals(Codegen.FP) ||
+               indexed.base().equals(Codegen.SP);
+    }
+
+    // the bytes a load or store accesses //
+    private static int size(Instr instr) {
+        String op = instr.opcode();
+        if (op.endsWith("b") || op.endsWith("bu"))
+            return 1;
+        if (op.endsWith("h") || op.endsWith("hu"))
+            return 2;
+        return 4;
+    }
+
+    // the label of a load or store of a global (label or label+offset) //
+    private static String global(Instr instr) {
+        return instr.arg(1).split("[+-]")[0];
+    }
+
+    // the registers instr writes //
+    private static Set<String> defs(Instr instr) {
+        Set<String> defs = new HashSet<String>();
+        String op = instr.opcode();
+        if (MULDIV.contains(op)) {
+            defs.add(HI);
+            defs.add(LO);
+        }
+        if (ALU.contains(op) || LOADS.contains(op) || op.equals("mfhi") ||
+            op.equals("mflo") ||
+            (MULDIV.contains(op) && instr.numArgs() == 3))
+            defs.add(instr.arg(0));
+        if (op.equals("jal") || op.equals("jalr"))
+            defs.add(Codegen.RA);
+        return defs;
+    }
+
+    // the registers instr reads //
+    private static Set<String> uses(Instr instr) {
+        Set<String> uses = new HashSet<String>();
+        String op = instr.opcode();
+        List<String> args = instr.args();
+
+        // everything but the register written //
+        boolean writes = ALU.contains(op) || LOADS.contains(op) ||
+                         (MULDIV.contains(op) && args.size() == 3);
+        for (int k = writes ? 1 : 0; k < args.size(); k++) {
+            if (args.get(k).startsWith("$"))
+                uses.add(args.get(k));
+        }
+        // two-operand forms like addu r, x also read r //
+        if (writes && args.size() == 2 && !op.equals("move") &&
+            !op.equals("neg") && !op.equals("negu") && !op.equals("not") &&
+            !op.equals("li") && !op.equals("la") && !op.equals("lui") &&
+            !LOADS.contains(op))
+            uses.add(args.get(0));
+        if (instr.isIndexed())
+            uses.add(instr.base());
+        if (op.equals("mfhi"))
+            uses.add(HI);
+        if (op.equals("mflo"))
+            uses.add(LO);
+        return uses;
+    }
+}
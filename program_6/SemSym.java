@@ -9,6 +9,8 @@ public class SemSym {
 	// For Code Generation //
 	private int offset = 0;
 	private boolean global = false;
+	// Declared name (for labels and IR printing) //
+	private String name = "";
     
 	// Don't wan't to change/overload the constructor w/ offset/global //
     public SemSym(Type type) {
@@ -28,6 +30,15 @@ public class SemSym {
 		return this.offset;
 	}
 
+	// Name //
+	public void setName(String name){
+		this.name = name;
+	}
+
+	public String getName(){
+		return this.name;
+	}
+
 	// Global Variable //
 	public void setGlobal(){
 		this.global = true;
@@ -114,6 +125,11 @@ class StructSym extends SemSym {
     public IdNode getStructType() {
         return structType;
     }    
+
+	// Size in bytes (from the struct's definition) //
+	public int getSize() {
+		return ((StructDefSym)structType.sym()).getSize();
+	}
 }
 
 /**
@@ -125,6 +141,8 @@ class StructSym extends SemSym {
 class StructDefSym extends SemSym {
     // new fields
     private SymTable symTab;
+	// Size in bytes of a variable of this struct type //
+	private int size = 0;
     
     public StructDefSym(SymTable table) {
         super(new StructDefType());
@@ -134,4 +152,12 @@ class StructDefSym extends SemSym {
     public SymTable getSymTable() {
         return symTab;
     }
+
+	public void setSize(int size) {
+		this.size = size;
+	}
+
+	public int getSize() {
+		return size;
+	}
 }
@@ -0,0 +1,174 @@
+import java.util.*;
+
+// **********************************************************************
+// Specializer gives calls with constant actuals their own copy of the
+// callee, with those actuals built in.
+//
+// For a call like f(x, 3), f is copied as f.1, whose code starts by
+// moving 3 into the formal instead of taking it from a register; the
+// call becomes f.1(x).  The passes that run on f.1 afterwards (constant
+// folding, dead code, loop optimization) then get to work with the 3,
+// and the caller has one argument less to pass.  Calls with the same
+// callee and the same constants in the same places share a copy, and
+// the copies are themselves searched for calls to specialize, so a
+// recursive f(n - 1, 3) inside f.1 calls f.1 again.
+//
+// A callee qualifies if it is not main, has at most MAX_SIZE quads, has
+// all of its formals passed in registers, and has no struct locals; at
+// most MAX_CLONES copies are made of any one function.  As in Inliner,
+// the copy's formals and locals become temps, and its temps and labels
+// are renamed.  Originals left without callers are dropped later by
+// DeadCode.removeUncalled.
+// **********************************************************************
+
+public class Specializer {
+
+    // largest function body that is copied //
+    private static final int MAX_SIZE = 150;
+    // most copies made of one function //
+    private static final int MAX_CLONES = 4;
+
+    // **********************************************************************
+    // specialize
+    //    specialize calls throughout prog
+    // **********************************************************************
+    public static void specialize(IRProgram prog) {
+        Map<String, IRFunction> byName = new HashMap<String, IRFunction>();
+        for (IRFunction fn : prog.functions())
+            byName.put(fn.name(), fn);
+        Map<String, String> clones = new HashMap<String, String>();
+        Map<String, Integer> numClones = new HashMap<String, Integer>();
+
+        Deque<IRFunction> worklist =
+            new ArrayDeque<IRFunction>(prog.functions());
+        while (!worklist.isEmpty()) {
+            IRFunction fn = worklist.poll();
+            List<Quad> code = fn.code();
+            for (int k = 0; k < code.size(); k++) {
+                if (!(code.get(k) instanceof CallQuad))
+                    continue;
+                CallQuad call = (CallQuad)code.get(k);
+                IRFunction callee = byName.get(call.name());
+                String key = constantsKey(call);
+                if (callee == null || key == null || !canSpecialize(callee))
+                    continue;
+
+                String cloneName = clones.get(key);
+                if (cloneName == null) {
+                    int n = numClones.containsKey(callee.name()) ?
+                            numClones.get(callee.name()) : 0;
+                    if (n == MAX_CLONES)
+                        continue;
+                    numClones.put(callee.name(), n + 1);
+                    cloneName = callee.name() + "." + (n + 1);
+
+                    IRFunction clone = copyFunction(callee, call, cloneName);
+                    clones.put(key, cloneName);
+                    byName.put(cloneName, clone);
+                    prog.addFunction(clone);
+                    worklist.add(clone);
+                }
+
+                List<Operand> args = new ArrayList<Operand>();
+                for (Operand arg : call.args()) {
+                    if (!(arg instanceof Const))
+                        args.add(arg);
+                }
+                CallQuad specialized =
+                    new CallQuad(call.dst(), cloneName, args);
+                specialized.setCount(call.count());
+                code.set(k, specialized);
+            }
+        }
+    }
+
+    // callee and the constant actuals by position (null if none) //
+    private static String constantsKey(CallQuad call) {
+        StringBuilder key = new StringBuilder(call.name());
+        boolean any = false;
+        for (Operand arg : call.args()) {
+            if (arg instanceof Const) {
+                key.append(" " + ((Const)arg).value());
+                any = true;
+            }
+            else
+                key.append(" _");
+        }
+        return any ? key.toString() : null;
+    }
+
+    // small enough, formals all in registers, every local a scalar //
+    private static boolean canSpecialize(IRFunction callee) {
+        if (callee.name().equals("main") ||
+            callee.code().size() > MAX_SIZE ||
+            callee.formalsSize() != 0)
+            return false;
+        for (Quad q : callee.code()) {
+            List<Operand> ops = q.uses();
+            ops.add(q.def());
+            for (Operand op : ops) {
+                if (op instanceof Var && !((Var)op).isGlobal() &&
+                    (((Var)op).fieldOffset() != 0 ||
+                     ((Var)op).sym().getType().isStructType()))
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    // **********************************************************************
+    // copyFunction
+    //    a copy of callee named name, with call's constant actuals in
+    //    place of the formals they are passed for
+    // **********************************************************************
+    private static IRFunction copyFunction(IRFunction callee, CallQuad call,
+                                           String name) {
+        List<Operand> actuals = call.args();
+        // new position of each actual passed on (-1 if built in) //
+        int[] position = new int[actuals.size()];
+        int numArgs = 0;
+        for (int k = 0; k < actuals.size(); k++)
+            position[k] = actuals.get(k) instanceof Const ? -1 : numArgs++;
+
+        IRFunction clone = new IRFunction(name, numArgs, 0, 0);
+        Map<Operand, Operand> renamed = new HashMap<Operand, Operand>();
+        Map<String, String> labels = new HashMap<String, String>();
+        for (Quad q : callee.code()) {
+            List<Operand> ops = q.uses();
+            ops.add(q.def());
+            for (Operand op : ops) {
+                if ((op instanceof Temp ||
+                     (op instanceof Var && !((Var)op).isGlobal())) &&
+                    !renamed.containsKey(op))
+                    renamed.put(op, clone.newTemp());
+            }
+            if (q instanceof LabelQuad)
+                labels.put(((LabelQuad)q).label(), clone.newLabel());
+        }
+
+        for (Quad q : callee.code()) {
+            if (q instanceof ArgQuad) {
+                int k = ((ArgQuad)q).index();
+                Operand dst = renamed.get(q.def());
+                Quad formal = position[k] < 0 ?
+                              new MoveQuad(dst, actuals.get(k)) :
+                              new ArgQuad(dst, position[k]);
+                formal.setCount(q.count());
+                clone.emit(formal);
+                continue;
+            }
+
+            Quad copy = q.copy();
+            for (Operand op : q.uses()) {
+                if (renamed.containsKey(op))
+                    copy.replaceUse(op, renamed.get(op));
+            }
+            if (renamed.containsKey(q.def()))
+                copy.replaceDef(renamed.get(q.def()));
+            for (Map.Entry<String, String> e : labels.entrySet())
+                copy.replaceLabel(e.getKey(), e.getValue());
+            clone.emit(copy);
+        }
+        return clone;
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.*;
+
+// **********************************************************************
+// TailCall handles calls whose result is returned right away:
+//
+//   - a function calling itself that way (e.g., return f(n - 1, acc))
+//     instead assigns the actuals to its formals and jumps back to its
+//     top, so the recursion becomes a loop
+//
+//   - any other such call (with its actuals all in registers) is marked
+//     as a tail call: the caller's frame is popped before the call and
+//     the callee is jumped to, so it returns straight to the caller's
+//     caller
+// **********************************************************************
+
+public class TailCall {
+
+    // **********************************************************************
+    // eliminateSelfRecursion
+    //    turn the self-recursive tail calls of fn into loops
+    // **********************************************************************
+    public static void eliminateSelfRecursion(IRFunction fn) {
+        List<Quad> code = fn.code();
+        List<Integer> calls = new ArrayList<Integer>();
+        for (int k = 0; k < code.size(); k++) {
+            if (code.get(k) instanceof CallQuad &&
+                ((CallQuad)code.get(k)).name().equals(fn.name()) &&
+                isTail(code, k))
+                calls.add(k);
+        }
+        if (calls.isEmpty())
+            return;
+
+        Map<Integer, Operand> formals = formals(fn);
+        String top = fn.newLabel();
+        List<Quad> newCode = new ArrayList<Quad>();
+        int k = 0;
+
+        // the formals passed in registers are taken before the loop //
+        while (k < code.size() && code.get(k) instanceof ArgQuad)
+            newCode.add(code.get(k++));
+        newCode.add(new LabelQuad(top));
+
+        for (; k < code.size(); k++) {
+            if (!calls.contains(k)) {
+                newCode.add(code.get(k));
+                continue;
+            }
+            // evaluate all the actuals before assigning any formal //
+            List<Operand> args = ((CallQuad)code.get(k)).args();
+            Map<Operand, Temp> values = new LinkedHashMap<Operand, Temp>();
+            for (Map.Entry<Integer, Operand> e : formals.entrySet()) {
+                Temp t = fn.newTemp();
+                newCode.add(new MoveQuad(t, args.get(e.getKey())));
+                values.put(e.getValue(), t);
+            }
+            for (Map.Entry<Operand, Temp> e : values.entrySet())
+                newCode.add(new MoveQuad(e.getKey(), e.getValue()));
+            newCode.add(new JumpQuad(top));
+        }
+        fn.setCode(newCode);
+    }
+
+    // **********************************************************************
+    // markTailCalls
+    //    mark the calls of fn that can jump to their callee
+    // **********************************************************************
+    public static void markTailCalls(IRFunction fn) {
+        // main's epilogue exits the program instead of returning //
+        if (fn.name().equals("main"))
+            return;
+        List<Quad> code = fn.code();
+        for (int k = 0; k < code.size(); k++) {
+            if (!(code.get(k) instanceof CallQuad))
+                continue;
+            CallQuad call = (CallQuad)code.get(k);
+            if (call.args().size() <= Codegen.ARGREGS.length &&
+                isTail(code, k))
+                call.setTail();
+        }
+    }
+
+    // is the call at k followed (maybe through jumps) by returning its
+    // result, or returning nothing? //
+    private static boolean isTail(List<Quad> code, int k) {
+        Operand result = code.get(k).def();
+        Map<String, Integer> labels = new HashMap<String, Integer>();
+        for (int j = 0; j < code.size(); j++) {
+            if (code.get(j) instanceof LabelQuad)
+                labels.put(((LabelQuad)code.get(j)).label(), j);
+        }
+
+        Set<Integer> seen = new HashSet<Integer>();
+        int j = k + 1;
+        while (seen.add(j)) {
+            if (j >= code.size())
+                return true; // falls off the end //
+            Quad q = code.get(j);
+            if (q instanceof ReturnQuad) {
+                Operand src = ((ReturnQuad)q).src();
+                return src == null || src.equals(result);
+            }
+            if (q instanceof LabelQuad)
+                j++;
+            else if (q instanceof JumpQuad)
+                j = labels.get(q.target());
+            else
+                return false;
+        }
+        return false; // an empty infinite loop //
+    }
+
+    // the operand holding each formal that is used, by position //
+    private static Map<Integer, Operand> formals(IRFunction fn) {
+        Map<Integer, Operand> formals = new TreeMap<Integer, Operand>();
+        for (Quad q : fn.code()) {
+            if (q instanceof ArgQuad) {
+                formals.put(((ArgQuad)q).index(), q.def());
+                continue;
+            }
+            List<Operand> ops = q.uses();
+            ops.add(q.def());
+            for (Operand op : ops) {
+                if (!(op instanceof Var) || ((Var)op).isGlobal())
+                    continue;
+                int index = fn.formalIndex(((Var)op).sym().getOffset());
+                if (index >= 0)
+                    formals.put(index, op);
+            }
+        }
+        return formals;
+    }
+}
@@ -0,0 +1,318 @@
+import java.util.*;
+
+// **********************************************************************
+// Unroller unrolls counted loops: rotated while loops (see
+// WhileStmtNode.lower) of the form
+//
+//     top: body; i = i + c; if i REL N goto top
+//
+// where N is a constant, and i (a local or temp) is changed in the loop
+// only by that increment (or decrement), as a ++ or -- statement at the
+// end of the body lowers to.
+//
+// If i is set to a constant right before the loop, the trip count is
+// known, and a loop of at most MAX_FULL_TRIPS trips is unrolled fully:
+// it becomes that many copies of its body, with no branches.  Otherwise
+// a loop counting towards N (up for < and <=, down for > and >=) is
+// unrolled partially, by the largest of FACTORS that fits:
+//
+//     if !(i REL N - (k-1)c) goto top
+//     top2: k copies of body and increment
+//           if i REL N - (k-1)c goto top2
+//           if !(i REL N) goto done
+//     top:  body; i = i + c; if i REL N goto top   (the remainder)
+//     done:
+//
+// so only one test is made per k trips while at least k are left, and
+// the original loop finishes the rest.
+//
+// Each function may grow by at most the unroll budget (in quads; see
+// setBudget).  Loops are done innermost first, and a loop that never
+// ran in the profile (see Profile) is left alone.
+// **********************************************************************
+
+public class Unroller {
+
+    // most trips of a loop unrolled fully //
+    private static final int MAX_FULL_TRIPS = 16;
+    // copies of the body per trip through a partially unrolled loop //
+    private static final int[] FACTORS = { 4, 2 };
+
+    // quads a function may grow by //
+    private static int budget = 64;
+
+    public static void setBudget(int quads) {
+        budget = quads;
+    }
+
+    // **********************************************************************
+    // unroll
+    //    unroll the counted loops of fn
+    // **********************************************************************
+    public static void unroll(IRFunction fn) {
+        // back jumps of loops already looked at (copies included) //
+        Set<Quad> done = new HashSet<Quad>();
+        int left = budget;
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (CountedLoop loop : findLoops(fn.code())) {
+                Quad back = fn.code().get(loop.end);
+                if (!done.add(back) || !isCounted(fn.code(), loop) ||
+                    fn.code().get(loop.head).count() == 0)
+                    continue;
+
+                int size = loop.end - loop.head - 1;
+                int trips = tripCount(fn.code(), loop);
+                if (trips > 0 && trips <= MAX_FULL_TRIPS &&
+                    (trips - 1) * size <= left) {
+                    unrollFully(fn, loop, trips, done);
+                    left -= (trips - 1) * size;
+                }
+                else {
+                    int factor = factor(loop, size, left);
+                    if (factor == 0)
+                        continue;
+                    unrollPartially(fn, loop, factor, done);
+                    left -= factor * size;
+                }
+                changed = true;
+                break; // indices are stale - find the loops again //
+            }
+        }
+    }
+
+    // **********************************************************************
+    // findLoops
+    //    every backward conditional jump, innermost (shortest) loops first
+    // **********************************************************************
+    private static List<CountedLoop> findLoops(List<Quad> code) {
+        Map<String, Integer> labels = new HashMap<String, Integer>();
+        List<CountedLoop> loops = new ArrayList<CountedLoop>();
+        for (int k = 0; k < code.size(); k++) {
+            Quad q = code.get(k);
+            if (q instanceof LabelQuad)
+                labels.put(((LabelQuad)q).label(), k);
+            else if (q instanceof CondJumpQuad &&
+                     labels.containsKey(q.target()))
+                loops.add(new CountedLoop(labels.get(q.target()), k));
+        }
+        Collections.sort(loops, new Comparator<CountedLoop>() {
+            public int compare(CountedLoop a, CountedLoop b) {
+                return (a.end - a.head) - (b.end - b.head);
+            }
+        });
+        return loops;
+    }
+
+    // **********************************************************************
+    // isCounted
+    //    is loop a counted loop entered only by falling into its head?
+    //    (if so, fill in its variable, step, test and bound)
+    // **********************************************************************
+    private static boolean isCounted(List<Quad> code, CountedLoop loop) {
+        if (loop.head == 0 || code.get(loop.head - 1).isUnconditionalJump())
+            return false;
+
+        // the test, as i REL N //
+        CondJumpQuad back = (CondJumpQuad)code.get(loop.end);
+        if (back.src2() instanceof Const && !(back.src1() instanceof Const)) {
+            loop.var = back.src1();
+            loop.op = back.op();
+            loop.bound = ((Const)back.src2()).value();
+        }
+        else if (back.src1() instanceof Const &&
+                 !(back.src2() instanceof Const)) {
+            loop.var = back.src2();
+            loop.op = Quad.mirror(back.op());
+            loop.bound = ((Const)back.src1()).value();
+        }
+        else
+            return false;
+        if (loop.var instanceof Var &&
+            (((Var)loop.var).isGlobal() || ((Var)loop.var).fieldOffset() != 0))
+            return false;
+
+        // the one change to i, with nothing but straight-line code after
+        // it //
+        int inc = -1;
+        for (int k = loop.head + 1; k < loop.end; k++) {
+            Quad q = code.get(k);
+            if (loop.var.equals(q.def())) {
+                if (inc >= 0)
+                    return false;
+                inc = k;
+            }
+            if (inc >= 0 && (q instanceof LabelQuad || q.target() != null ||
+                             q.isUnconditionalJump()))
+                return false;
+        }
+        if (inc < 0 || !(code.get(inc) instanceof BinOpQuad))
+            return false;
+        BinOpQuad step = (BinOpQuad)code.get(inc);
+        if (!loop.var.equals(step.src1()) || !(step.src2() instanceof Const) ||
+            (step.op() != Quad.ADD && step.op() != Quad.SUB))
+            return false;
+        loop.step = ((Const)step.src2()).value();
+        if (step.op() == Quad.SUB)
+            loop.step = -loop.step;
+        if (loop.step == 0)
+            return false;
+
+        // no way in but through the head, and in only from above //
+        Set<String> inside = new HashSet<String>();
+        for (int k = loop.head + 1; k < loop.end; k++) {
+            if (code.get(k) instanceof LabelQuad)
+                inside.add(((LabelQuad)code.get(k)).label());
+        }
+        String top = ((LabelQuad)code.get(loop.head)).label();
+        for (int k = 0; k < code.size(); k++) {
+            String target = code.get(k).target();
+            if (k == loop.end || target == null)
+                continue;
+            if (target.equals(top) ||
+                ((k < loop.head || k > loop.end) && inside.contains(target)))
+                return false;
+        }
+        return true;
+    }
+
+    // **********************************************************************
+    // tripCount
+    //    times the body runs, if i is set to a constant right before the
+    //    loop (0 if unknown, or more than MAX_FULL_TRIPS)
+    // **********************************************************************
+    private static int tripCount(List<Quad> code, CountedLoop loop) {
+        Integer start = null;
+        for (int k = loop.head - 1; k >= 0; k--) {
+            Quad q = code.get(k);
+            if (q instanceof LabelQuad || q.isUnconditionalJump())
+                break;
+            if (loop.var.equals(q.def())) {
+                if (q instanceof MoveQuad &&
+                    ((MoveQuad)q).src() instanceof Const)
+                    start = ((Const)((MoveQuad)q).src()).value();
+                break;
+            }
+        }
+        if (start == null)
+            return 0;
+
+        // the body runs once before the first test //
+        long i = start;
+        int trips = 0;
+        do {
+            trips++;
+            i += loop.step;
+            if (i != (int)i || trips > MAX_FULL_TRIPS)
+                return 0;
+        } while (Quad.evaluate(loop.op, (int)i, loop.bound) == 1);
+        return trips;
+    }
+
+    // largest factor the loop can be unrolled by in size quads (0 if none) //
+    private static int factor(CountedLoop loop, int size, int left) {
+        boolean up = loop.op == Quad.LT || loop.op == Quad.LE;
+        boolean down = loop.op == Quad.GT || loop.op == Quad.GE;
+        if (!(up && loop.step > 0) && !(down && loop.step < 0))
+            return 0;
+        for (int factor : FACTORS) {
+            long bound = loop.bound - (long)(factor - 1) * loop.step;
+            if (factor * size <= left && bound == (int)bound)
+                return factor;
+        }
+        return 0;
+    }
+
+    // **********************************************************************
+    // unrollFully
+    //    replace loop by trips copies of its body
+    // **********************************************************************
+    private static void unrollFully(IRFunction fn, CountedLoop loop,
+                                    int trips, Set<Quad> done) {
+        List<Quad> code = fn.code();
+        List<Quad> unrolled = new ArrayList<Quad>(code.subList(0, loop.head));
+        for (int t = 0; t < trips; t++)
+            unrolled.addAll(copyBody(fn, code, loop, done));
+        unrolled.addAll(code.subList(loop.end + 1, code.size()));
+        fn.setCode(unrolled);
+    }
+
+    // **********************************************************************
+    // unrollPartially
+    //    put a loop of factor copies of the body in front of loop, the
+    //    original loop doing what is left
+    // **********************************************************************
+    private static void unrollPartially(IRFunction fn, CountedLoop loop,
+                                        int factor, Set<Quad> done) {
+        List<Quad> code = fn.code();
+        Quad back = code.get(loop.end);
+        String top = ((LabelQuad)code.get(loop.head)).label();
+        String top2 = fn.newLabel();
+        String end = fn.newLabel();
+        // i REL bound: at least factor trips left //
+        Const bound = new Const(loop.bound - (factor - 1) * loop.step);
+        int notOp = Quad.negate(loop.op);
+
+        List<Quad> unrolled = new ArrayList<Quad>(code.subList(0, loop.head));
+        unrolled.add(counted(new CondJumpQuad(notOp, loop.var, bound, top),
+                             back));
+        unrolled.add(counted(new LabelQuad(top2), code.get(loop.head)));
+        for (int t = 0; t < factor; t++)
+            unrolled.addAll(copyBody(fn, code, loop, done));
+        Quad back2 = counted(new CondJumpQuad(loop.op, loop.var, bound, top2),
+                             back);
+        done.add(back2);
+        unrolled.add(back2);
+        unrolled.add(counted(new CondJumpQuad(notOp, loop.var,
+                                              new Const(loop.bound), end),
+                             back));
+        unrolled.addAll(code.subList(loop.head, loop.end + 1));
+        unrolled.add(new LabelQuad(end));
+        unrolled.addAll(code.subList(loop.end + 1, code.size()));
+        fn.setCode(unrolled);
+    }
+
+    // q, with the profiled count of like (see Profile) //
+    private static Quad counted(Quad q, Quad like) {
+        q.setCount(like.count());
+        return q;
+    }
+
+    // a copy of the body of loop (its labels renamed) //
+    private static List<Quad> copyBody(IRFunction fn, List<Quad> code,
+                                       CountedLoop loop, Set<Quad> done) {
+        List<Quad> body = code.subList(loop.head + 1, loop.end);
+        Map<String, String> labels = new HashMap<String, String>();
+        for (Quad q : body) {
+            if (q instanceof LabelQuad)
+                labels.put(((LabelQuad)q).label(), fn.newLabel());
+        }
+
+        List<Quad> copy = new ArrayList<Quad>();
+        for (Quad q : body) {
+            Quad c = q.copy();
+            for (Map.Entry<String, String> e : labels.entrySet())
+                c.replaceLabel(e.getKey(), e.getValue());
+            if (done.contains(q))
+                done.add(c);
+            copy.add(c);
+        }
+        return copy;
+    }
+
+    private static class CountedLoop {
+        CountedLoop(int head, int end) {
+            this.head = head;
+            this.end = end;
+        }
+
+        int head;       // index of the loop's label
+        int end;        // index of the jump back to it
+        Operand var;    // i
+        int step;       // c (negative for a decrement)
+        int op;         // REL
+        int bound;      // N
+    }
+}
@@ -117,6 +117,8 @@ abstract class ASTnode {
 	// Check for main //
 	static boolean hasMain = false;
 	static String currentFunction = "";
+	// Next free frame offset (in bytes from FP) in the current function //
+	static int currentOffset = 0;
 }
 
 // **********************************************************************
@@ -154,11 +156,23 @@ class ProgramNode extends ASTnode {
     }
 
 	/**
-	 * codeGen
+	 * fold
+	 * Constant folding and propagation: rewrite constant subexpressions
+	 * into literals and replace uses of locals whose value is known.
+	 * Runs after typeCheck.
 	 */
-	public void codeGen() {
-		// Kickoff code generation //
-		myDeclList.codeGen();
+	public void fold() {
+		myDeclList.fold();
+	}
+
+	/**
+	 * lower
+	 * Translate the (type-checked) program into three-address code.
+	 */
+	public IRProgram lower() {
+		IRProgram prog = new IRProgram();
+		myDeclList.lower(prog);
+		return prog;
 	}
 
     // 1 kid
@@ -204,11 +218,20 @@ class DeclListNode extends ASTnode {
     }
 
 	/**
-	 * codeGen
+	 * fold
+	 */
+	public void fold() {
+		for(DeclNode node : myDecls) {
+			node.fold();
+		}
+	}
+
+	/**
+	 * lower
 	 */
-	public void codeGen(){
+	public void lower(IRProgram prog){
 		for(DeclNode node : myDecls) {
-			node.codeGen();
+			node.lower(prog);
 		}
 	}
     
@@ -247,23 +270,23 @@ class FormalsListNode extends ASTnode {
      */
     public List<Type> nameAnalysis(SymTable symTab) {
         List<Type> typeList = new LinkedList<Type>();
+		// the first formals arrive in registers and are kept in temps (see
+		// FnDeclNode.lower); the caller pushes the rest above the return
+		// address //
+		int numRegs = Math.min(myFormals.size(), Codegen.ARGREGS.length);
+		int k = 0;
         for (FormalDeclNode node : myFormals) {
+			currentOffset = k < numRegs ? -1 : (k - numRegs) * 4;
+			k++;
             SemSym sym = node.nameAnalysis(symTab);
             if (sym != null) {
                 typeList.add(sym.getType());
             }
         }
+		// skip return address and control link //
+		currentOffset = (myFormals.size() - numRegs) * 4 + 8;
         return typeList;
     }  
-
-	/**
-	 * codeGen
-	 */
-	public void codeGen() {
-		for(FormalDeclNode node : myFormals) {
-			node.codeGen();
-		}
-	}
     
     /**
      * Return the number of formals in this list.
@@ -271,6 +294,16 @@ class FormalsListNode extends ASTnode {
     public int length() {
         return myFormals.size();
     }
+
+	/**
+	 * Return the symbols of the formals, in order.
+	 */
+	public List<SemSym> syms() {
+		List<SemSym> syms = new ArrayList<SemSym>();
+		for (FormalDeclNode node : myFormals)
+			syms.add(node.sym());
+		return syms;
+	}
     
     public void unparse(PrintWriter p, int indent) {
         Iterator<FormalDeclNode> it = myFormals.iterator();
@@ -312,10 +345,17 @@ class FnBodyNode extends ASTnode {
     }
 
 	/**
-	 * codeGen
+	 * fold
 	 */
-	public void codeGen() {
-		myStmtList.codeGen();
+	public void fold(Map<SemSym, Integer> known) {
+		myStmtList.fold(known);
+	}
+
+	/**
+	 * lower
+	 */
+	public void lower(IRFunction fn) {
+		myStmtList.lower(fn);
 	}
           
     public void unparse(PrintWriter p, int indent) {
@@ -357,11 +397,32 @@ class StmtListNode extends ASTnode {
     }
 
 	/**
-	 * codeGen
+	 * fold
+	 * known maps locals to their constant values at this point; it is
+	 * updated as each statement is processed.
+	 */
+	public void fold(Map<SemSym, Integer> known) {
+		for(StmtNode node : myStmts) {
+			node.fold(known);
+		}
+	}
+
+	/**
+	 * collectAssigned
+	 * Add every variable these statements may assign to vars.
 	 */
-	public void codeGen() {
+	public void collectAssigned(Set<SemSym> vars) {
 		for(StmtNode node : myStmts) {
-			node.codeGen();
+			node.collectAssigned(vars);
+		}
+	}
+
+	/**
+	 * lower
+	 */
+	public void lower(IRFunction fn) {
+		for(StmtNode node : myStmts) {
+			node.lower(fn);
 		}
 	}
     
@@ -420,12 +481,46 @@ class ExpListNode extends ASTnode {
     }
 
 	/**
-	 * codeGen
+	 * fold
 	 */
-	public void codeGen() {
+	public void fold(Map<SemSym, Integer> known) {
+		ListIterator<ExpNode> it = myExps.listIterator();
+		while(it.hasNext()) {
+			it.set(it.next().fold(known));
+		}
+	}
+
+	/**
+	 * collectAssigned
+	 */
+	public void collectAssigned(Set<SemSym> vars) {
 		for(ExpNode node : myExps) {
-			node.codeGen();
+			node.collectAssigned(vars);
+		}
+	}
+
+	/**
+	 * lower
+	 * Lower the actuals in order. A variable is copied into a temp if a
+	 * later actual could change it before the call.
+	 */
+	public List<Operand> lower(IRFunction fn) {
+		List<Operand> args = new LinkedList<Operand>();
+		for(int k = 0; k < myExps.size(); k++) {
+			Operand arg = myExps.get(k).lower(fn);
+			if(arg instanceof Var) {
+				for(ExpNode later : myExps.subList(k + 1, myExps.size())) {
+					if(later.hasSideEffects()) {
+						Temp t = fn.newTemp();
+						fn.emit(new MoveQuad(t, arg));
+						arg = t;
+						break;
+					}
+				}
+			}
+			args.add(arg);
 		}
+		return args;
 	}
     
     public void unparse(PrintWriter p, int indent) {
@@ -455,7 +550,8 @@ abstract class DeclNode extends ASTnode {
 
     // default version of typeCheck for non-function decls
     public void typeCheck() { }
-	public void codeGen() { }
+	public void fold() { }
+	public void lower(IRProgram prog) { }
 }
 
 class VarDeclNode extends DeclNode {
@@ -521,14 +617,31 @@ class VarDeclNode extends DeclNode {
         
         if (!badDecl) {  // insert into symbol table
             try {
+                int size = 4;
                 if (myType instanceof StructNode) {
                     sym = new StructSym(structId);
+					size = ((StructDefSym)structId.sym()).getSize();
+					mySize = size;
                 }
                 else {
                     sym = new SemSym(myType.type());
-					// set offset //
-					sym.setOffset(symTab.size() - 1);
                 }
+				sym.setName(name);
+				// struct field -> next offset within the struct //
+				if (symTab != globalTab) {
+					sym.setOffset(currentOffset);
+					currentOffset += size;
+				}
+				// outermost scope of the program -> global //
+				else if (symTab.size() == 1) {
+					sym.setGlobal();
+				}
+				// local -> next slot(s) in the frame; the frame grows down
+				// while fields grow up, so point at the lowest word //
+				else {
+					sym.setOffset(currentOffset + size - 4);
+					currentOffset += size;
+				}
                 symTab.addDecl(name, sym);
                 myId.link(sym);
             } catch (DuplicateSymException ex) {
@@ -546,17 +659,11 @@ class VarDeclNode extends DeclNode {
     } 
 
 	/**
-	 * codeGen
+	 * lower
 	 */
-	public void codeGen() {
+	public void lower(IRProgram prog) {
 		if(myId.isGlobal())
-		{
-			// Generate global variable header //
-			Codegen.generate(".data");
-			Codegen.generate(".align 2");
-			Codegen.genLabel("_" + myId.name());
-			Codegen.generate(".space 4");
-		}
+			prog.addGlobal(myId.sym(), mySize == NOT_STRUCT ? 4 : mySize);
 	}
     
     public void unparse(PrintWriter p, int indent) {
@@ -571,6 +678,7 @@ class VarDeclNode extends DeclNode {
     private TypeNode myType;
     private IdNode myId;
     private int mySize;  // use value NOT_STRUCT if this is not a struct type
+                         // (size in bytes once name analysis has run)
 
     public static int NOT_STRUCT = -1;
 }
@@ -633,6 +741,7 @@ class FnDeclNode extends DeclNode {
         symTab.addScope();  // add a new scope for locals and params
         
         // process the formals
+		currentOffset = 0;
         List<Type> typeList = myFormalsList.nameAnalysis(symTab);
         if (sym != null) {
             sym.addFormals(typeList);
@@ -648,11 +757,11 @@ class FnDeclNode extends DeclNode {
             System.exit(-1);
         }
 
-		//TODO how do handle the variant size of structs???
-		// formals //
-		this.formalsSize = typeList.size() * 4;
-		// locals //
-		this.localsSize = myBody.numLocals() * 4;
+		// formals (never structs) passed in registers, and on the stack //
+		this.numRegFormals = Math.min(typeList.size(), Codegen.ARGREGS.length);
+		this.formalsSize = (typeList.size() - numRegFormals) * 4;
+		// locals (including those declared in nested statements) //
+		this.localsSize = currentOffset - this.formalsSize - 8;
         
         return null;
     } 
@@ -665,52 +774,33 @@ class FnDeclNode extends DeclNode {
     }
 
 	/**
-	 * codeGen
+	 * fold
+	 * Nothing is known about the locals on entry.
 	 */
-	public void codeGen() {
-		// Preamble //
-		Codegen.generate(".text");
+	public void fold() {
+		myBody.fold(new HashMap<SemSym, Integer>());
+	}
 
-		if(myId.name().equals("main")){
-			Codegen.generate(".globl main");
-			Codegen.genLabel("main");
-			Codegen.genLabel("__start");
+	/**
+	 * lower
+	 */
+	public void lower(IRProgram prog) {
+		IRFunction fn = new IRFunction(myId.name(), numRegFormals,
+		                               formalsSize, localsSize);
+		List<SemSym> formals = myFormalsList.syms();
+		List<Temp> regFormals = new ArrayList<Temp>();
+		for (int k = 0; k < numRegFormals; k++) {
+			Temp t = fn.newTemp();
+			fn.emit(new ArgQuad(t, k));
+			regFormals.add(t);
 		}
-		else
-			Codegen.genLabel("_" + myId.name()); // normal functions
-
-		// Push return addr //
-		Codegen.genPush(Codegen.RA);
-		// PUsh control link //
-		Codegen.genPush(Codegen.FP);
-		// Set FP //
-		Codegen.generate("addu", Codegen.FP, Codegen.SP, (formalsSize * 4) + 8);
-		// Push space for locals //
-		Codegen.generate("addu", Codegen.SP, Codegen.SP, localsSize * 4);
-
-		// codeGen() the body //
-		myBody.codeGen();
-
-		// Epilogue //
-		Codegen.genLabel("epilogue_" + myId.name());
-		// Return addr //
-		Codegen.generateIndexed("lw", Codegen.RA, Codegen.FP, -formalsSize);
-		// Control Link //
-		Codegen.generate("move", Codegen.T0, Codegen.FP);
-		// Restore FP //
-		Codegen.generateIndexed("lw", Codegen.FP, Codegen.FP, -formalsSize - 4);
-		// Restore SP //
-		Codegen.generate("move", Codegen.SP, Codegen.T0);
-		
-		// Return from function - also handle main //
-		if(myId.name().equals("main")){
-			Codegen.generate("li", Codegen.V0, 10);
-			Codegen.generate("syscall");
+		myBody.lower(fn);
+		// formals passed in registers stay in their temps //
+		for (int k = 0; k < numRegFormals; k++) {
+			SemSym sym = formals.get(k);
+			fn.replaceAll(new Var(sym, sym.getName(), 0), regFormals.get(k));
 		}
-		else
-			Codegen.generate("jr", Codegen.RA); // return
-
-
+		prog.addFunction(fn);
 	}
         
     public void unparse(PrintWriter p, int indent) {
@@ -731,6 +821,7 @@ class FnDeclNode extends DeclNode {
     private FormalsListNode myFormalsList;
     private FnBodyNode myBody;
 	// Keep track of nodes formals and locals size //
+	private int numRegFormals;
 	private int formalsSize;
 	private int localsSize;
 }
@@ -769,6 +860,9 @@ class FormalDeclNode extends DeclNode {
         if (!badDecl) {  // insert into symbol table
             try {
                 sym = new SemSym(myType.type());
+				sym.setName(name);
+				// slot chosen by FormalsListNode //
+				sym.setOffset(currentOffset);
                 symTab.addDecl(name, sym);
                 myId.link(sym);
             } catch (DuplicateSymException ex) {
@@ -785,6 +879,10 @@ class FormalDeclNode extends DeclNode {
         return sym;
     }    
     
+	public SemSym sym() {
+		return myId.sym();
+	}
+
     public void unparse(PrintWriter p, int indent) {
         myType.unparse(p, 0);
         p.print(" ");
@@ -816,9 +914,7 @@ class StructDeclNode extends DeclNode {
         String name = myId.name();
         boolean badDecl = false;
 
-		// Set size of struct //
-		this.bodySize = this.myDeclList.numDecl();
-        
+
         if (symTab.lookupLocal(name) != null) {
             ErrMsg.fatal(myId.lineNum(), myId.charNum(), 
                          "Multiply declared identifier");
@@ -827,12 +923,19 @@ class StructDeclNode extends DeclNode {
 
         SymTable structSymTab = new SymTable();
         
-        // process the fields of the struct
+        // process the fields of the struct (laying them out from 0)
+		int outerOffset = currentOffset;
+		currentOffset = 0;
         myDeclList.nameAnalysis(structSymTab, symTab);
+
+		// Set size of struct //
+		this.bodySize = currentOffset;
+		currentOffset = outerOffset;
         
         if (!badDecl) {
             try {   // add entry to symbol table
                 StructDefSym sym = new StructDefSym(structSymTab);
+				sym.setSize(this.bodySize);
                 symTab.addDecl(name, sym);
                 myId.link(sym);
             } catch (DuplicateSymException ex) {
@@ -868,7 +971,7 @@ class StructDeclNode extends DeclNode {
     // 2 kids
     private IdNode myId;
     private DeclListNode myDeclList;
-	// Size of struct body //
+	// Size of struct body (bytes) //
 	private int bodySize;
 }
 
@@ -961,7 +1064,34 @@ class StructNode extends TypeNode {
 abstract class StmtNode extends ASTnode {
     abstract public void nameAnalysis(SymTable symTab);
     abstract public void typeCheck(Type retType);
-	abstract public void codeGen();
+	abstract public void fold(Map<SemSym, Integer> known);
+	abstract public void collectAssigned(Set<SemSym> vars);
+	abstract public void lower(IRFunction fn);
+
+	/**
+	 * forget
+	 * Drop what is known about the variables the given statements or
+	 * expression may assign.
+	 */
+	protected static void forget(Map<SemSym, Integer> known, Set<SemSym> vars) {
+		for(SemSym sym : vars) {
+			known.remove(sym);
+		}
+	}
+
+	/**
+	 * meet
+	 * Keep only the facts that also hold in other (control flow join).
+	 */
+	protected static void meet(Map<SemSym, Integer> known,
+	                           Map<SemSym, Integer> other) {
+		Iterator<Map.Entry<SemSym, Integer>> it = known.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<SemSym, Integer> e = it.next();
+			if(!e.getValue().equals(other.get(e.getKey())))
+				it.remove();
+		}
+	}
 }
 
 class AssignStmtNode extends StmtNode {
@@ -985,12 +1115,22 @@ class AssignStmtNode extends StmtNode {
     }
 
 	/**
-	 * codeGen
+	 * fold
 	 */
-	public void codeGen() {
-		myAssign.codeGen();
-		// Pop intermediate result onto stack //
-		Codegen.genPop(Codegen.T0);
+	public void fold(Map<SemSym, Integer> known) {
+		myAssign.fold(known);
+	}
+
+	public void collectAssigned(Set<SemSym> vars) {
+		myAssign.collectAssigned(vars);
+	}
+
+	/**
+	 * lower
+	 */
+	public void lower(IRFunction fn) {
+		// Value of the assignment isn't needed //
+		myAssign.lower(fn);
 	}
         
     public void unparse(PrintWriter p, int indent) {
@@ -1029,18 +1169,27 @@ class PostIncStmtNode extends StmtNode {
     }
 
 	/**
-	 * codeGen
+	 * fold
 	 */
-	public void codeGen() {
-		myExp.codeGen();
-		((IdNode)myExp).genAddr();
-		// addr into T0 //
-		Codegen.genPop(Codegen.T0);
-		// value into T1 //
-		Codegen.genPop(Codegen.T1);
-		// Do the increment //
-		Codegen.generate("add", Codegen.T1, Codegen.T1, 1); // ++
-		Codegen.generateIndexed("sw", Codegen.T1, Codegen.T0, 0);
+	public void fold(Map<SemSym, Integer> known) {
+		if(myExp instanceof IdNode) {
+			SemSym sym = ((IdNode)myExp).sym();
+			Integer val = known.get(sym);
+			if(val != null)
+				known.put(sym, val + 1);
+		}
+	}
+
+	public void collectAssigned(Set<SemSym> vars) {
+		myExp.collectTarget(vars);
+	}
+
+	/**
+	 * lower
+	 */
+	public void lower(IRFunction fn) {
+		Operand loc = myExp.lower(fn);
+		fn.emit(new BinOpQuad(loc, Quad.ADD, loc, new Const(1))); // ++
 	}
         
     public void unparse(PrintWriter p, int indent) {
@@ -1079,18 +1228,27 @@ class PostDecStmtNode extends StmtNode {
     }
 
 	/**
-	 * codeGen
+	 * fold
 	 */
-	public void codeGen() {
-		myExp.codeGen();
-		((IdNode)myExp).genAddr();
-		// addr into T0 //
-		Codegen.genPop(Codegen.T0);
-		// value into T1 //
-		Codegen.genPop(Codegen.T1);
-		// Do the increment //
-		Codegen.generate("add", Codegen.T1, Codegen.T1, -1); // ++
-		Codegen.generateIndexed("sw", Codegen.T1, Codegen.T0, 0);
+	public void fold(Map<SemSym, Integer> known) {
+		if(myExp instanceof IdNode) {
+			SemSym sym = ((IdNode)myExp).sym();
+			Integer val = known.get(sym);
+			if(val != null)
+				known.put(sym, val - 1);
+		}
+	}
+
+	public void collectAssigned(Set<SemSym> vars) {
+		myExp.collectTarget(vars);
+	}
+
+	/**
+	 * lower
+	 */
+	public void lower(IRFunction fn) {
+		Operand loc = myExp.lower(fn);
+		fn.emit(new BinOpQuad(loc, Quad.SUB, loc, new Const(1))); // --
 	}
               
     public void unparse(PrintWriter p, int indent) {
@@ -1139,19 +1297,23 @@ class ReadStmtNode extends StmtNode {
     }
 
 	/**
-	 * codeGen
+	 * fold
 	 */
-	public void codeGen() {
-		if(myExp instanceof IdNode){
-			((IdNode)myExp).genAddr();
-		}
-		// Syscall 5 //
-		Codegen.generate("li", Codegen.V0, 5);
-		Codegen.generate("syscall");
+	public void fold(Map<SemSym, Integer> known) {
+		Set<SemSym> vars = new HashSet<SemSym>();
+		collectAssigned(vars);
+		forget(known, vars);
+	}
 
-		// Get addr //
-		Codegen.genPop(Codegen.T0);
-		Codegen.generateIndexed("sw", Codegen.V0, Codegen.T0, 0);
+	public void collectAssigned(Set<SemSym> vars) {
+		myExp.collectTarget(vars);
+	}
+
+	/**
+	 * lower
+	 */
+	public void lower(IRFunction fn) {
+		fn.emit(new ReadQuad(myExp.lower(fn)));
 	}
     
     public void unparse(PrintWriter p, int indent) {
@@ -1206,18 +1368,22 @@ class WriteStmtNode extends StmtNode {
     }
 
 	/**
-	 * codeGen
+	 * fold
 	 */
-	public void codeGen() {
-		int syscall = 1;
+	public void fold(Map<SemSym, Integer> known) {
+		myExp = myExp.fold(known);
+	}
 
-		if(myExp instanceof StringLitNode)
-			syscall = 4;
+	public void collectAssigned(Set<SemSym> vars) {
+		myExp.collectAssigned(vars);
+	}
 
-		myExp.codeGen();
-		Codegen.genPop(Codegen.A0);
-		Codegen.generate("li", Codegen.V0, syscall);
-		Codegen.generate("syscall");
+	/**
+	 * lower
+	 */
+	public void lower(IRFunction fn) {
+		boolean isString = myExp instanceof StringLitNode;
+		fn.emit(new WriteQuad(myExp.lower(fn), isString));
 	}
         
     public void unparse(PrintWriter p, int indent) {
@@ -1275,23 +1441,35 @@ class IfStmtNode extends StmtNode {
     }
 
 	/**
-	 * codeGen
+	 * fold
+	 * Afterwards only what holds on both paths (body taken or not) is
+	 * still known.
 	 */
-	public void codeGen() {
-		String jump_label = Codegen.nextLabel();
+	public void fold(Map<SemSym, Integer> known) {
+		myExp = myExp.fold(known);
+		Map<SemSym, Integer> thenKnown = new HashMap<SemSym, Integer>(known);
+		myStmtList.fold(thenKnown);
+		meet(known, thenKnown);
+	}
 
-		// eval //
-		myExp.codeGen();
+	public void collectAssigned(Set<SemSym> vars) {
+		myExp.collectAssigned(vars);
+		myStmtList.collectAssigned(vars);
+	}
+
+	/**
+	 * lower
+	 */
+	public void lower(IRFunction fn) {
+		String jump_label = fn.newLabel();
 
-		// get the return value //
-		Codegen.genPop(Codegen.T0);
-		Codegen.generate("beqz", Codegen.T0, "0", jump_label);
+		// skip the body if the condition is false //
+		myExp.lowerJumpIfFalse(fn, jump_label);
 
-		myDeclList.codeGen();
-		myStmtList.codeGen();
+		myStmtList.lower(fn);
 
 		// false label //
-		Codegen.genLabel(jump_label);
+		fn.emit(new LabelQuad(jump_label));
 	}
        
     public void unparse(PrintWriter p, int indent) {
@@ -1373,28 +1551,38 @@ class IfElseStmtNode extends StmtNode {
     }
 
 	/**
-	 * codeGen
+	 * fold
 	 */
-	public void codeGen() {
-		String false_label = Codegen.nextLabel();
-		String end_label = Codegen.nextLabel();
+	public void fold(Map<SemSym, Integer> known) {
+		myExp = myExp.fold(known);
+		Map<SemSym, Integer> thenKnown = new HashMap<SemSym, Integer>(known);
+		myThenStmtList.fold(thenKnown);
+		myElseStmtList.fold(known);
+		meet(known, thenKnown);
+	}
+
+	public void collectAssigned(Set<SemSym> vars) {
+		myExp.collectAssigned(vars);
+		myThenStmtList.collectAssigned(vars);
+		myElseStmtList.collectAssigned(vars);
+	}
 
-		myExp.codeGen();
+	/**
+	 * lower
+	 */
+	public void lower(IRFunction fn) {
+		String false_label = fn.newLabel();
+		String end_label = fn.newLabel();
 
-		// Get evaluated //
-		Codegen.genPop(Codegen.T0);
 		// go to else if its false //
-		Codegen.generate("beqz", Codegen.T0, "0", false_label);
-		myThenDeclList.codeGen();
-		myThenStmtList.codeGen();
-		Codegen.generate("b", end_label);
+		myExp.lowerJumpIfFalse(fn, false_label);
+		myThenStmtList.lower(fn);
+		fn.emit(new JumpQuad(end_label));
 		// else case //
-		Codegen.genLabel(false_label);
-		myElseDeclList.codeGen();
-		myElseStmtList.codeGen();
+		fn.emit(new LabelQuad(false_label));
+		myElseStmtList.lower(fn);
 		// end label //
-		Codegen.genLabel(end_label);
-
+		fn.emit(new LabelQuad(end_label));
 	}
         
     public void unparse(PrintWriter p, int indent) {
@@ -1466,22 +1654,42 @@ class WhileStmtNode extends StmtNode {
     }
 
 	/**
-	 * codeGen
+	 * fold
+	 * Anything the loop assigns is unknown at the top of every iteration
+	 * (and so also after the loop).
+	 */
+	public void fold(Map<SemSym, Integer> known) {
+		Set<SemSym> vars = new HashSet<SemSym>();
+		collectAssigned(vars);
+		forget(known, vars);
+
+		myExp = myExp.fold(known);
+		myStmtList.fold(new HashMap<SemSym, Integer>(known));
+	}
+
+	public void collectAssigned(Set<SemSym> vars) {
+		myExp.collectAssigned(vars);
+		myStmtList.collectAssigned(vars);
+	}
+
+	/**
+	 * lower
+	 * The loop is rotated so each iteration takes a single (conditional)
+	 * branch at the bottom, with a copy of the test guarding entry:
+	 *     if !cond goto end; top: body; if cond goto top; end:
 	 */
-	public void codeGen() {
-		// Loop label //
-		String loop = Codegen.nextLabel();
-		String end = Codegen.nextLabel();
+	public void lower(IRFunction fn) {
+		String top = fn.newLabel();
+		String end = fn.newLabel();
+		// guard //
+		myExp.lowerJumpIfFalse(fn, end);
 		// top of while //
-		Codegen.genLabel(loop);
-		myExp.codeGen();
-		Codegen.genPop(Codegen.T0);
-		Codegen.generate("beq", Codegen.T0, "0", end); // break while
-		myDeclList.codeGen(); // hmm we dont want to repeat this doe?
-		myStmtList.codeGen();
-		Codegen.generate("b", loop);
+		fn.emit(new LabelQuad(top));
+		myStmtList.lower(fn);
+		// loop back while the condition holds //
+		myExp.lowerJumpIfTrue(fn, top);
 		// Finish //
-		Codegen.genLabel(end);
+		fn.emit(new LabelQuad(end));
 	}
         
     public void unparse(PrintWriter p, int indent) {
@@ -1522,12 +1730,22 @@ class CallStmtNode extends StmtNode {
     }
 
 	/**
-	 * codeGen
+	 * fold
+	 */
+	public void fold(Map<SemSym, Integer> known) {
+		myCall.fold(known);
+	}
+
+	public void collectAssigned(Set<SemSym> vars) {
+		myCall.collectAssigned(vars);
+	}
+
+	/**
+	 * lower
 	 */
-	public void codeGen() {
-		myCall.codeGen();
-		// pop ret value //
-		Codegen.genPop(Codegen.V0);
+	public void lower(IRFunction fn) {
+		// ret value is unused //
+		myCall.lowerCall(fn, null);
 	}
     
     public void unparse(PrintWriter p, int indent) {
@@ -1583,15 +1801,26 @@ class ReturnStmtNode extends StmtNode {
     }
 
 	/**
-	 * codeGen
+	 * fold
 	 */
-	public void codeGen() {
-		if(myExp != null){
-			myExp.codeGen();
-			Codegen.genPop(Codegen.V0);
-		}
+	public void fold(Map<SemSym, Integer> known) {
+		if(myExp != null)
+			myExp = myExp.fold(known);
+	}
 
-		Codegen.generate("b", currentFunction);
+	public void collectAssigned(Set<SemSym> vars) {
+		if(myExp != null)
+			myExp.collectAssigned(vars);
+	}
+
+	/**
+	 * lower
+	 */
+	public void lower(IRFunction fn) {
+		Operand val = null;
+		if(myExp != null)
+			val = myExp.lower(fn);
+		fn.emit(new ReturnQuad(val));
 	}
     
     public void unparse(PrintWriter p, int indent) {
@@ -1619,9 +1848,87 @@ abstract class ExpNode extends ASTnode {
     public void nameAnalysis(SymTable symTab) { }
     
     abstract public Type typeCheck();
-	abstract public void codeGen();
     abstract public int lineNum();
     abstract public int charNum();
+
+	/**
+	 * fold
+	 * Return this expression with constant parts folded and known locals
+	 * replaced by literals (possibly a new node). Assignments inside it
+	 * update known.
+	 */
+	public ExpNode fold(Map<SemSym, Integer> known) {
+		return this;
+	}
+
+	/**
+	 * constValue
+	 * Value of an int or bool literal (true is 1, false 0), else null.
+	 */
+	public Integer constValue() {
+		return null;
+	}
+
+	/**
+	 * collectAssigned
+	 * Add every variable evaluating this expression may assign to vars.
+	 */
+	public void collectAssigned(Set<SemSym> vars) { }
+
+	/**
+	 * collectTarget
+	 * Add the variable this location names (when used as the target of an
+	 * assignment) to vars.
+	 */
+	public void collectTarget(Set<SemSym> vars) { }
+
+	// literal nodes at this expression's position //
+	protected ExpNode intLit(int value) {
+		return new IntLitNode(lineNum(), charNum(), value);
+	}
+
+	protected ExpNode boolLit(boolean value) {
+		if(value)
+			return new TrueNode(lineNum(), charNum());
+		return new FalseNode(lineNum(), charNum());
+	}
+
+	/**
+	 * lower
+	 * Emit the quads evaluating this expression into fn and return the
+	 * operand holding its value (a Temp, Const, or for locations a Var).
+	 */
+	abstract public Operand lower(IRFunction fn);
+
+	/**
+	 * lowerJumpIfFalse
+	 * Emit the quads evaluating this (bool) expression as a condition:
+	 * control goes to label if it is false and falls through otherwise.
+	 * Conditions override this to branch directly instead of computing a
+	 * value first.
+	 */
+	public void lowerJumpIfFalse(IRFunction fn, String label) {
+		Operand cond = lower(fn);
+		fn.emit(new CondJumpQuad(Quad.EQ, cond, new Const(0), label));
+	}
+
+	/**
+	 * lowerJumpIfTrue
+	 * As lowerJumpIfFalse, but going to label if the expression is true.
+	 */
+	public void lowerJumpIfTrue(IRFunction fn, String label) {
+		Operand cond = lower(fn);
+		fn.emit(new CondJumpQuad(Quad.NE, cond, new Const(0), label));
+	}
+
+	/**
+	 * hasSideEffects
+	 * Whether evaluating this expression can change program state, in
+	 * which case its evaluation order may not be changed.
+	 */
+	public boolean hasSideEffects() {
+		return false;
+	}
 }
 
 class IntLitNode extends ExpNode {
@@ -1652,13 +1959,15 @@ class IntLitNode extends ExpNode {
         return new IntType();
     }
 
+	public Integer constValue() {
+		return myIntVal;
+	}
+
 	/**
-	 * codeGen
+	 * lower
 	 */
-	public void codeGen() {
-		// load value and push onto stack //
-		Codegen.generate("li", Codegen.T0, myIntVal);
-		Codegen.genPush(Codegen.T0);
+	public Operand lower(IRFunction fn) {
+		return new Const(myIntVal);
 	}
     
     public void unparse(PrintWriter p, int indent) {
@@ -1699,17 +2008,12 @@ class StringLitNode extends ExpNode {
     }
 
 	/**
-	 * codeGen
+	 * lower
 	 */
-	public void codeGen() {
-		// Handle duplicates somehow? TODO if I have time //
-		String l = Codegen.nextLabel();
-		Codegen.generate(".data");
-		Codegen.generateLabeled(l, ".asciiz ", "", myStrVal);
-		// PUsh address //
-		Codegen.generate(".text");
-		Codegen.generate("la", Codegen.T0, l);
-		Codegen.genPush(Codegen.T0);
+	public Operand lower(IRFunction fn) {
+		Temp t = fn.newTemp();
+		fn.emit(new LoadStrQuad(t, myStrVal));
+		return t;
 	}
         
     public void unparse(PrintWriter p, int indent) {
@@ -1748,12 +2052,21 @@ class TrueNode extends ExpNode {
         return new BoolType();
     }
 
+	public Integer constValue() {
+		return 1;
+	}
+
 	/**
-	 * codeGen
+	 * lower
 	 */
-	public void codeGen() {
-		Codegen.generate("li", Codegen.T0, Codegen.TRUE);
-		Codegen.genPush(Codegen.T0);
+	public Operand lower(IRFunction fn) {
+		return new Const(1);
+	}
+
+	public void lowerJumpIfFalse(IRFunction fn, String label) { }
+
+	public void lowerJumpIfTrue(IRFunction fn, String label) {
+		fn.emit(new JumpQuad(label));
 	}
         
     public void unparse(PrintWriter p, int indent) {
@@ -1791,13 +2104,22 @@ class FalseNode extends ExpNode {
         return new BoolType();
     }
 
+	public Integer constValue() {
+		return 0;
+	}
+
 	/**
-	 * codeGen
+	 * lower
 	 */
-	public void codeGen() {
-		Codegen.generate("li", Codegen.T0, Codegen.FALSE);
-		Codegen.genPush(Codegen.T0);
+	public Operand lower(IRFunction fn) {
+		return new Const(0);
 	}
+
+	public void lowerJumpIfFalse(IRFunction fn, String label) {
+		fn.emit(new JumpQuad(label));
+	}
+
+	public void lowerJumpIfTrue(IRFunction fn, String label) { }
         
     public void unparse(PrintWriter p, int indent) {
         p.print("false");
@@ -1886,28 +2208,27 @@ class IdNode extends ExpNode {
     }
 
 	/**
-	 * codeGen
+	 * fold
+	 * A local with a known value becomes a literal.
 	 */
-	public void codeGen() {
-		if(mySym.isGlobal())
-			Codegen.generate("lw", Codegen.T0, "_" + myStrVal);
-		else
-			Codegen.generateIndexed("lw", Codegen.T0, Codegen.FP, -mySym.getOffset());
-		
+	public ExpNode fold(Map<SemSym, Integer> known) {
+		Integer val = known.get(mySym);
+		if(val == null)
+			return this;
+		if(mySym.getType().isBoolType())
+			return boolLit(val != 0);
+		return intLit(val);
 	}
 
-	// linking back //
-	public void genJumpAndLink() {
-		Codegen.generate("jal", "_" + myStrVal);
+	public void collectTarget(Set<SemSym> vars) {
+		vars.add(mySym);
 	}
 
-	// generate address //
-	public void genAddr() {
-		if(mySym.isGlobal()) {
-			Codegen.generate("la", Codegen.T0, "_" + myStrVal);
-		} else {
-			Codegen.generateIndexed("la", Codegen.T0, Codegen.FP, -mySym.getOffset());
-		}
+	/**
+	 * lower
+	 */
+	public Operand lower(IRFunction fn) {
+		return new Var(mySym, myStrVal, 0);
 	}
            
     public void unparse(PrintWriter p, int indent) {
@@ -2056,10 +2377,13 @@ class DotAccessExpNode extends ExpNode {
     }
 
 	/**
-	 * codeGen
+	 * lower
+	 * A field is just the struct variable at a larger offset.
 	 */
-	public void codeGen() {
-		// uhhh nothing?
+	public Operand lower(IRFunction fn) {
+		Var loc = (Var)myLoc.lower(fn);
+		return new Var(loc.sym(), loc + "." + myId.name(),
+		               loc.fieldOffset() + myId.sym().getOffset());
 	}
     
     public void unparse(PrintWriter p, int indent) {
@@ -2143,20 +2467,42 @@ class AssignNode extends ExpNode {
     }
 
 	/**
-	 * codeGen
+	 * fold
+	 * Assigning a literal to a local scalar makes its value known.
 	 */
-	public void codeGen() {
+	public ExpNode fold(Map<SemSym, Integer> known) {
+		myExp = myExp.fold(known);
+
+		if(myLhs instanceof IdNode) {
+			SemSym sym = ((IdNode)myLhs).sym();
+			Integer val = myExp.constValue();
+			if(val != null && !sym.isGlobal())
+				known.put(sym, val);
+			else
+				known.remove(sym);
+		}
+		return this;
+	}
+
+	public void collectAssigned(Set<SemSym> vars) {
+		myExp.collectAssigned(vars);
+		myLhs.collectTarget(vars);
+	}
+
+	/**
+	 * lower
+	 */
+	public Operand lower(IRFunction fn) {
 		// RHS
-		myExp.codeGen();
+		Operand val = myExp.lower(fn);
 		// LHS
-		((IdNode)myLhs).genAddr();
-		// get address and the load value //
-		Codegen.genPop(Codegen.T0);
-		Codegen.genPop(Codegen.T1);
-		Codegen.generateIndexed("sw", Codegen.T1, Codegen.T0, 0);
+		Operand loc = myLhs.lower(fn);
+		fn.emit(new MoveQuad(loc, val));
+		return loc;
+	}
 
-		// return operand //
-		Codegen.genPush(Codegen.T1);
+	public boolean hasSideEffects() {
+		return true;
 	}
     
     public void unparse(PrintWriter p, int indent) {
@@ -2237,14 +2583,37 @@ class CallExpNode extends ExpNode {
     }
 
 	/**
-	 * codeGen
+	 * fold
+	 * Calls can't touch locals, so nothing is forgotten.
 	 */
-	public void codeGen() {
-		if(myExpList != null)
-			myExpList.codeGen();
+	public ExpNode fold(Map<SemSym, Integer> known) {
+		myExpList.fold(known);
+		return this;
+	}
 
-		myId.genJumpAndLink(); // Codegen.generate("jal", "__" + myId.name());
-		Codegen.genPush(Codegen.V0);
+	public void collectAssigned(Set<SemSym> vars) {
+		myExpList.collectAssigned(vars);
+	}
+
+	/**
+	 * lower
+	 */
+	public Operand lower(IRFunction fn) {
+		Temp t = fn.newTemp();
+		lowerCall(fn, t);
+		return t;
+	}
+
+	/**
+	 * lowerCall
+	 * Emit the call, putting the result into dst (null to drop it).
+	 */
+	public void lowerCall(IRFunction fn, Operand dst) {
+		fn.emit(new CallQuad(dst, myId.name(), myExpList.lower(fn)));
+	}
+
+	public boolean hasSideEffects() {
+		return true;
 	}
         
     // ** unparse **
@@ -2290,6 +2659,14 @@ abstract class UnaryExpNode extends ExpNode {
     public void nameAnalysis(SymTable symTab) {
         myExp.nameAnalysis(symTab);
     }
+
+	public boolean hasSideEffects() {
+		return myExp.hasSideEffects();
+	}
+
+	public void collectAssigned(Set<SemSym> vars) {
+		myExp.collectAssigned(vars);
+	}
     
     // one child
     protected ExpNode myExp;
@@ -2326,6 +2703,71 @@ abstract class BinaryExpNode extends ExpNode {
         myExp1.nameAnalysis(symTab);
         myExp2.nameAnalysis(symTab);
     }
+
+	public boolean hasSideEffects() {
+		return myExp1.hasSideEffects() || myExp2.hasSideEffects();
+	}
+
+	public void collectAssigned(Set<SemSym> vars) {
+		myExp1.collectAssigned(vars);
+		myExp2.collectAssigned(vars);
+	}
+
+	/**
+	 * fold
+	 * Fold both operands, then the operation itself if both are literals.
+	 */
+	public ExpNode fold(Map<SemSym, Integer> known) {
+		myExp1 = myExp1.fold(known);
+		myExp2 = myExp2.fold(known);
+
+		Integer val1 = myExp1.constValue();
+		Integer val2 = myExp2.constValue();
+		if(val1 == null || val2 == null)
+			return this;
+		return foldConst(val1, val2);
+	}
+
+	/**
+	 * foldConst
+	 * The literal this operation yields on the given operand values, or
+	 * this node if it must be left for run time.
+	 */
+	abstract protected ExpNode foldConst(int val1, int val2);
+
+	/**
+	 * lowerBinary
+	 * Lower both operands (left to right) and emit t = exp1 op exp2 into a
+	 * new temp t.
+	 */
+	protected Operand lowerBinary(IRFunction fn, int op) {
+		Operand[] srcs = lowerOperands(fn);
+		Temp dst = fn.newTemp();
+		fn.emit(new BinOpQuad(dst, op, srcs[0], srcs[1]));
+		return dst;
+	}
+
+	/**
+	 * lowerCompare
+	 * Lower both operands and jump to label if exp1 relop exp2 holds.
+	 */
+	protected void lowerCompare(IRFunction fn, int relop, String label) {
+		Operand[] srcs = lowerOperands(fn);
+		fn.emit(new CondJumpQuad(relop, srcs[0], srcs[1], label));
+	}
+
+	// operands of exp1 op exp2, evaluated left to right //
+	private Operand[] lowerOperands(IRFunction fn) {
+		Operand src1 = myExp1.lower(fn);
+		// a variable has to be read before exp2 can change it //
+		if(src1 instanceof Var && myExp2.hasSideEffects()) {
+			Temp t = fn.newTemp();
+			fn.emit(new MoveQuad(t, src1));
+			src1 = t;
+		}
+		Operand src2 = myExp2.lower(fn);
+		return new Operand[] {src1, src2};
+	}
     
     // two kids
     protected ExpNode myExp1;
@@ -2362,16 +2804,23 @@ class UnaryMinusNode extends UnaryExpNode {
     }
 
 	/**
-	 * codeGen
+	 * fold
 	 */
-	public void codeGen() {
-		myExp.codeGen();
-		// Retrieve off the stack //
-		Codegen.genPop(Codegen.T0);
-		Codegen.generate("li", Codegen.T1, "0"); //load 0 to flip into negative
-		Codegen.generate("sub", Codegen.T1, Codegen.T1, Codegen.T0);
-		// place on the stack //
-		Codegen.genPush(Codegen.T1);
+	public ExpNode fold(Map<SemSym, Integer> known) {
+		myExp = myExp.fold(known);
+		Integer val = myExp.constValue();
+		if(val == null)
+			return this;
+		return intLit(-val);
+	}
+
+	/**
+	 * lower
+	 */
+	public Operand lower(IRFunction fn) {
+		Temp t = fn.newTemp();
+		fn.emit(new UnOpQuad(t, Quad.NEG, myExp.lower(fn)));
+		return t;
 	}
 
     public void unparse(PrintWriter p, int indent) {
@@ -2407,18 +2856,32 @@ class NotNode extends UnaryExpNode {
     }
 
 	/**
-	 * codeGen
+	 * fold
+	 */
+	public ExpNode fold(Map<SemSym, Integer> known) {
+		myExp = myExp.fold(known);
+		Integer val = myExp.constValue();
+		if(val == null)
+			return this;
+		return boolLit(val == 0);
+	}
+
+	/**
+	 * lower
 	 */
-	public void codeGen() {
-		myExp.codeGen();
-		// Get operand //
-		Codegen.genPop(Codegen.T0);
-		Codegen.generate("li", Codegen.T1, 1);
-		// xor with 1 -> NOT // I never knew why mips doesn't have a NOT operator...
-		Codegen.generate("xor", Codegen.T0, Codegen.T0, Codegen.T1);
+	public Operand lower(IRFunction fn) {
+		Temp t = fn.newTemp();
+		fn.emit(new UnOpQuad(t, Quad.NOT, myExp.lower(fn)));
+		return t;
+	}
+
+	// !e is false exactly when e is true //
+	public void lowerJumpIfFalse(IRFunction fn, String label) {
+		myExp.lowerJumpIfTrue(fn, label);
+	}
 
-		// push result //
-		Codegen.genPush(Codegen.T0);
+	public void lowerJumpIfTrue(IRFunction fn, String label) {
+		myExp.lowerJumpIfFalse(fn, label);
 	}
 
     public void unparse(PrintWriter p, int indent) {
@@ -2496,6 +2959,52 @@ abstract class LogicalExpNode extends BinaryExpNode {
         
         return retType;
     }
+
+	/**
+	 * fold
+	 * The right operand might not be evaluated, so what it assigns is
+	 * forgotten rather than learned.
+	 */
+	public ExpNode fold(Map<SemSym, Integer> known) {
+		myExp1 = myExp1.fold(known);
+		myExp2 = myExp2.fold(new HashMap<SemSym, Integer>(known));
+		Set<SemSym> vars = new HashSet<SemSym>();
+		myExp2.collectAssigned(vars);
+		StmtNode.forget(known, vars);
+
+		Integer val1 = myExp1.constValue();
+		Integer val2 = myExp2.constValue();
+		if(val1 == null)
+			return this;
+		if(val2 != null)
+			return foldConst(val1, val2);
+		return foldLeft(val1);
+	}
+
+	/**
+	 * foldLeft
+	 * Simplify given only the value of the left operand.
+	 */
+	abstract protected ExpNode foldLeft(int val1);
+
+	/**
+	 * lowerLogical
+	 * The value of a logical expression, computed with jumps:
+	 *     (jump to F if false); t = 1; goto E; F: t = 0; E:
+	 */
+	protected Operand lowerLogical(IRFunction fn) {
+		String falseLabel = fn.newLabel();
+		String done = fn.newLabel();
+		Temp dst = fn.newTemp();
+
+		lowerJumpIfFalse(fn, falseLabel);
+		fn.emit(new MoveQuad(dst, new Const(1)));
+		fn.emit(new JumpQuad(done));
+		fn.emit(new LabelQuad(falseLabel));
+		fn.emit(new MoveQuad(dst, new Const(0)));
+		fn.emit(new LabelQuad(done));
+		return dst;
+	}
 }
 
 abstract class EqualityExpNode extends BinaryExpNode {
@@ -2549,6 +3058,7 @@ abstract class EqualityExpNode extends BinaryExpNode {
     }
 }
 
+
 abstract class RelationalExpNode extends BinaryExpNode {
     public RelationalExpNode(ExpNode exp1, ExpNode exp2) {
         super(exp1, exp2);
@@ -2595,20 +3105,15 @@ class PlusNode extends ArithmeticExpNode {
         p.print(")");
     }
 
+	protected ExpNode foldConst(int val1, int val2) {
+		return intLit(val1 + val2);
+	}
+
 	/**
-	 * codeGen
+	 * lower
 	 */
-	public void codeGen() {
-		// Evaluate operands //
-		myExp2.codeGen();
-		myExp1.codeGen();
-		// Pop values //
-		Codegen.genPop(Codegen.T0);
-		Codegen.genPop(Codegen.T1);
-
-		// Add and push result //
-		Codegen.generate("add", Codegen.T0, Codegen.T0, Codegen.T1);
-		Codegen.genPush(Codegen.T0);
+	public Operand lower(IRFunction fn) {
+		return lowerBinary(fn, Quad.ADD);
 	}
 }
 
@@ -2625,20 +3130,15 @@ class MinusNode extends ArithmeticExpNode {
         p.print(")");
     }
 
+	protected ExpNode foldConst(int val1, int val2) {
+		return intLit(val1 - val2);
+	}
+
 	/**
-	 * codeGen
+	 * lower
 	 */
-	public void codeGen() {
-		// Evaluate operands //
-		myExp2.codeGen();
-		myExp1.codeGen();
-		// Pop values //
-		Codegen.genPop(Codegen.T0);
-		Codegen.genPop(Codegen.T1);
-
-		// Subtract and push result //
-		Codegen.generate("sub", Codegen.T0, Codegen.T0, Codegen.T1);
-		Codegen.genPush(Codegen.T0);
+	public Operand lower(IRFunction fn) {
+		return lowerBinary(fn, Quad.SUB);
 	}
 }
 
@@ -2656,20 +3156,15 @@ class TimesNode extends ArithmeticExpNode {
         p.print(")");
     }
 
+	protected ExpNode foldConst(int val1, int val2) {
+		return intLit(val1 * val2);
+	}
+
 	/**
-	 * codeGen
+	 * lower
 	 */
-	public void codeGen() {
-		// Evaluate operands //
-		myExp2.codeGen();
-		myExp1.codeGen();
-		// Pop values //
-		Codegen.genPop(Codegen.T0);
-		Codegen.genPop(Codegen.T1);
-
-		// Multiply and push result //
-		Codegen.generate("mul", Codegen.T0, Codegen.T0, Codegen.T1);
-		Codegen.genPush(Codegen.T0);
+	public Operand lower(IRFunction fn) {
+		return lowerBinary(fn, Quad.MUL);
 	}
 }
 
@@ -2686,20 +3181,18 @@ class DivideNode extends ArithmeticExpNode {
         p.print(")");
     }
 
+	protected ExpNode foldConst(int val1, int val2) {
+		// dividing by zero has to fail at run time //
+		if(val2 == 0)
+			return this;
+		return intLit(val1 / val2);
+	}
+
 	/**
-	 * codeGen
+	 * lower
 	 */
-	public void codeGen() {
-		// Evaluate operands //
-		myExp2.codeGen();
-		myExp1.codeGen();
-		// Pop values //
-		Codegen.genPop(Codegen.T0);
-		Codegen.genPop(Codegen.T1);
-
-		//Divide and push result //
-		Codegen.generate("div", Codegen.T0, Codegen.T0, Codegen.T1);
-		Codegen.genPush(Codegen.T0);
+	public Operand lower(IRFunction fn) {
+		return lowerBinary(fn, Quad.DIV);
 	}
 }
 
@@ -2716,35 +3209,37 @@ class AndNode extends LogicalExpNode {
         p.print(")");
     }
 
+	protected ExpNode foldConst(int val1, int val2) {
+		return boolLit(val1 != 0 && val2 != 0);
+	}
+
+	// false && e is false, true && e is e //
+	protected ExpNode foldLeft(int val1) {
+		if(val1 != 0)
+			return myExp2;
+		if(!myExp2.hasSideEffects())
+			return boolLit(false);
+		return this;
+	}
+
 	/**
-	 * codeGen
+	 * lower
+	 * Short-circuit: exp2 is evaluated only if exp1 is true.
 	 */
-	public void codeGen() {
-		String shortCircuit = Codegen.nextLabel();
-		String end = Codegen.nextLabel();
-		// Evaluate operands //
-		myExp2.codeGen();
-		myExp1.codeGen();
-		// Pop values //
-		Codegen.genPop(Codegen.T0);
-		Codegen.genPop(Codegen.T1);
-		
-		// Load 0 to T2 and see if LHS is false //
-		Codegen.generate("li", Codegen.T2, 0);
-		Codegen.generate("beq", Codegen.T2, Codegen.T0, shortCircuit);
-
-		// check left operand - short if false //
+	public Operand lower(IRFunction fn) {
+		return lowerLogical(fn);
+	}
 
-		// AND and push result //
-		Codegen.generate("and", Codegen.T0, Codegen.T0, Codegen.T1);
-		Codegen.genPush(Codegen.T0);
-		Codegen.generate("b", end);
+	public void lowerJumpIfFalse(IRFunction fn, String label) {
+		myExp1.lowerJumpIfFalse(fn, label);
+		myExp2.lowerJumpIfFalse(fn, label);
+	}
 
-		// short //
-		Codegen.genLabel(shortCircuit);
-		Codegen.genPush(Codegen.T0);
-		// end //
-		Codegen.genLabel(end);
+	public void lowerJumpIfTrue(IRFunction fn, String label) {
+		String skip = fn.newLabel();
+		myExp1.lowerJumpIfFalse(fn, skip);
+		myExp2.lowerJumpIfTrue(fn, label);
+		fn.emit(new LabelQuad(skip));
 	}
 }
 
@@ -2761,35 +3256,37 @@ class OrNode extends LogicalExpNode {
         p.print(")");
     }
 
+	protected ExpNode foldConst(int val1, int val2) {
+		return boolLit(val1 != 0 || val2 != 0);
+	}
+
+	// true || e is true, false || e is e //
+	protected ExpNode foldLeft(int val1) {
+		if(val1 == 0)
+			return myExp2;
+		if(!myExp2.hasSideEffects())
+			return boolLit(true);
+		return this;
+	}
+
 	/**
-	 * codeGen
+	 * lower
+	 * Short-circuit: exp2 is evaluated only if exp1 is false.
 	 */
-	public void codeGen() {
-		String shortCircuit = Codegen.nextLabel();
-		String end = Codegen.nextLabel();
-		// Evaluate operands //
-		myExp2.codeGen();
-		myExp1.codeGen();
-		// Pop values //
-		Codegen.genPop(Codegen.T0);
-		Codegen.genPop(Codegen.T1);
-		
-		// Load  to T2 and see if LHS is true //
-		Codegen.generate("li", Codegen.T2, 0);
-		Codegen.generate("bne", Codegen.T2, Codegen.T0, shortCircuit);
-
-		// check left operand - short if false //
+	public Operand lower(IRFunction fn) {
+		return lowerLogical(fn);
+	}
 
-		// AND and push result //
-		Codegen.generate("or", Codegen.T0, Codegen.T0, Codegen.T1);
-		Codegen.genPush(Codegen.T0);
-		Codegen.generate("b", end);
+	public void lowerJumpIfFalse(IRFunction fn, String label) {
+		String skip = fn.newLabel();
+		myExp1.lowerJumpIfTrue(fn, skip);
+		myExp2.lowerJumpIfFalse(fn, label);
+		fn.emit(new LabelQuad(skip));
+	}
 
-		// short //
-		Codegen.genLabel(shortCircuit);
-		Codegen.genPush(Codegen.T0);
-		// end //
-		Codegen.genLabel(end);
+	public void lowerJumpIfTrue(IRFunction fn, String label) {
+		myExp1.lowerJumpIfTrue(fn, label);
+		myExp2.lowerJumpIfTrue(fn, label);
 	}
 }
 
@@ -2806,19 +3303,23 @@ class EqualsNode extends EqualityExpNode {
         p.print(")");
     }
 
+	protected ExpNode foldConst(int val1, int val2) {
+		return boolLit(val1 == val2);
+	}
+
 	/**
-	 * codeGen
+	 * lower
 	 */
-	public void codeGen() {
-		myExp1.codeGen();
-		myExp2.codeGen();
-		// Get operands //
-		Codegen.genPop(Codegen.T1);
-		Codegen.genPop(Codegen.T0);
-		// check if - XOR followed by NOT gives all 1's for equal //
-		Codegen.generate("xor", Codegen.T0, Codegen.T0, Codegen.T1);
-		Codegen.generate("not", Codegen.T0, Codegen.T0);
-		Codegen.genPush(Codegen.T0);
+	public Operand lower(IRFunction fn) {
+		return lowerBinary(fn, Quad.EQ);
+	}
+
+	public void lowerJumpIfFalse(IRFunction fn, String label) {
+		lowerCompare(fn, Quad.negate(Quad.EQ), label);
+	}
+
+	public void lowerJumpIfTrue(IRFunction fn, String label) {
+		lowerCompare(fn, Quad.EQ, label);
 	}
 }
 
@@ -2835,18 +3336,23 @@ class NotEqualsNode extends EqualityExpNode {
         p.print(")");
     }
 
+	protected ExpNode foldConst(int val1, int val2) {
+		return boolLit(val1 != val2);
+	}
+
 	/**
-	 * codeGen
+	 * lower
 	 */
-	public void codeGen() {
-		myExp1.codeGen();
-		myExp2.codeGen();
-		// Get operands //
-		Codegen.genPop(Codegen.T1);
-		Codegen.genPop(Codegen.T0);
-		// check if - XOR gives 1's for not equal //
-		Codegen.generate("xor", Codegen.T0, Codegen.T0, Codegen.T1);
-		Codegen.genPush(Codegen.T0);
+	public Operand lower(IRFunction fn) {
+		return lowerBinary(fn, Quad.NE);
+	}
+
+	public void lowerJumpIfFalse(IRFunction fn, String label) {
+		lowerCompare(fn, Quad.negate(Quad.NE), label);
+	}
+
+	public void lowerJumpIfTrue(IRFunction fn, String label) {
+		lowerCompare(fn, Quad.NE, label);
 	}
 }
 
@@ -2863,27 +3369,23 @@ class LessNode extends RelationalExpNode {
         p.print(")");
     }
 
+	protected ExpNode foldConst(int val1, int val2) {
+		return boolLit(val1 < val2);
+	}
+
 	/**
-	 * codeGen
+	 * lower
 	 */
-	public void codeGen() {
-		// False label //
-		String skip = Codegen.nextLabel();
-		myExp2.codeGen();
-		myExp1.codeGen();
-		// Get operands //
-		Codegen.genPop(Codegen.T0);
-		Codegen.genPop(Codegen.T1);
-		// Load 0 //
-		Codegen.generate("li", Codegen.T2, 0);
+	public Operand lower(IRFunction fn) {
+		return lowerBinary(fn, Quad.LT);
+	}
 
-		// BGE //
-		Codegen.generate("bge", Codegen.T0, Codegen.T1, skip);
-		Codegen.generate("addi", Codegen.T2, 1); // 0 -> 1
-		Codegen.genLabel(skip);
+	public void lowerJumpIfFalse(IRFunction fn, String label) {
+		lowerCompare(fn, Quad.negate(Quad.LT), label);
+	}
 
-		// push result //
-		Codegen.genPush(Codegen.T2);
+	public void lowerJumpIfTrue(IRFunction fn, String label) {
+		lowerCompare(fn, Quad.LT, label);
 	}
 }
 
@@ -2900,27 +3402,23 @@ class GreaterNode extends RelationalExpNode {
         p.print(")");
     }
 
+	protected ExpNode foldConst(int val1, int val2) {
+		return boolLit(val1 > val2);
+	}
+
 	/**
-	 * codeGen
+	 * lower
 	 */
-	public void codeGen() {
-		// False label //
-		String skip = Codegen.nextLabel();
-		myExp2.codeGen();
-		myExp1.codeGen();
-		// Get operands //
-		Codegen.genPop(Codegen.T0);
-		Codegen.genPop(Codegen.T1);
-		// Load 0 //
-		Codegen.generate("li", Codegen.T2, 0);
+	public Operand lower(IRFunction fn) {
+		return lowerBinary(fn, Quad.GT);
+	}
 
-		// BLE //
-		Codegen.generate("ble", Codegen.T0, Codegen.T1, skip);
-		Codegen.generate("addi", Codegen.T2, 1); // 0 -> 1
-		Codegen.genLabel(skip);
+	public void lowerJumpIfFalse(IRFunction fn, String label) {
+		lowerCompare(fn, Quad.negate(Quad.GT), label);
+	}
 
-		// push result //
-		Codegen.genPush(Codegen.T2);
+	public void lowerJumpIfTrue(IRFunction fn, String label) {
+		lowerCompare(fn, Quad.GT, label);
 	}
 }
 
@@ -2937,27 +3435,23 @@ class LessEqNode extends RelationalExpNode {
         p.print(")");
     }
 
+	protected ExpNode foldConst(int val1, int val2) {
+		return boolLit(val1 <= val2);
+	}
+
 	/**
-	 * codeGen
+	 * lower
 	 */
-	public void codeGen() {
-		// False label //
-		String skip = Codegen.nextLabel();
-		myExp2.codeGen();
-		myExp1.codeGen();
-		// Get operands //
-		Codegen.genPop(Codegen.T0);
-		Codegen.genPop(Codegen.T1);
-		// Load 0 //
-		Codegen.generate("li", Codegen.T2, 0);
+	public Operand lower(IRFunction fn) {
+		return lowerBinary(fn, Quad.LE);
+	}
 
-		// BGE //
-		Codegen.generate("bgt", Codegen.T0, Codegen.T1, skip);
-		Codegen.generate("addi", Codegen.T2, 1); // 0 -> 1
-		Codegen.genLabel(skip);
+	public void lowerJumpIfFalse(IRFunction fn, String label) {
+		lowerCompare(fn, Quad.negate(Quad.LE), label);
+	}
 
-		// push result //
-		Codegen.genPush(Codegen.T2);
+	public void lowerJumpIfTrue(IRFunction fn, String label) {
+		lowerCompare(fn, Quad.LE, label);
 	}
 }
 
@@ -2974,27 +3468,23 @@ class GreaterEqNode extends RelationalExpNode {
         p.print(")");
     }
 
+	protected ExpNode foldConst(int val1, int val2) {
+		return boolLit(val1 >= val2);
+	}
+
 	/**
-	 * codeGen
+	 * lower
 	 */
-	public void codeGen() {
-		// False label //
-		String skip = Codegen.nextLabel();
-		myExp2.codeGen();
-		myExp1.codeGen();
-		// Get operands //
-		Codegen.genPop(Codegen.T0);
-		Codegen.genPop(Codegen.T1);
-		// Load 0 //
-		Codegen.generate("li", Codegen.T2, 0);
+	public Operand lower(IRFunction fn) {
+		return lowerBinary(fn, Quad.GE);
+	}
 
-		// BGE //
-		Codegen.generate("blt", Codegen.T0, Codegen.T1, skip);
-		Codegen.generate("addi", Codegen.T2, 1); // 0 -> 1
-		Codegen.genLabel(skip);
+	public void lowerJumpIfFalse(IRFunction fn, String label) {
+		lowerCompare(fn, Quad.negate(Quad.GE), label);
+	}
 
-		// push result //
-		Codegen.genPush(Codegen.T2);
+	public void lowerJumpIfTrue(IRFunction fn, String label) {
+		lowerCompare(fn, Quad.GE, label);
 	}
 }
 
@@ -0,0 +1,1482 @@
+import java.io.*;
+import java.util.*;
+
+// **********************************************************************
+// The IR classes define the three-address code (quadruples) that the AST
+// is lowered to after type checking, and that Codegen turns into MIPS.
+//
+// Each function is a flat list of quads. Quad operands are:
+//
+//     Operand
+//       Temp            compiler temporary (lives in a register or a
+//                       spill slot, decided by RegAlloc)
+//       Const           integer (or boolean) constant
+//       Var             a scalar variable or struct field in memory,
+//                       i.e., a global label or a frame slot plus a
+//                       constant field offset
+//
+// Here are all the different kinds of quads:
+//
+//     Subclass          Meaning
+//     --------          -------
+//     MoveQuad          dst = src
+//     BinOpQuad         dst = src1 op src2
+//     UnOpQuad          dst = op src
+//     LabelQuad         L:
+//     JumpQuad          goto L
+//     CondJumpQuad      if src1 relop src2 goto L  (else fall through)
+//     CallQuad          dst = call f(args)  (dst may be null)
+//     ReturnQuad        return src  (src may be null)
+//     ArgQuad           dst = argument k  (at the start of the function)
+//     ReadQuad          cin >> dst
+//     WriteQuad         cout << src
+//     LoadStrQuad       dst = address of string literal
+//     PhiQuad           dst = phi(srcs)  (only while SSA has the function
+//                       in SSA form)
+//
+// IRFunction holds the quads of one function together with its frame
+// information, and can split them into BasicBlocks (which CFG links into
+// a control-flow graph). IRProgram holds the globals and functions of the
+// whole program.
+// **********************************************************************
+
+// **********************************************************************
+// Operands
+// **********************************************************************
+
+abstract class Operand {
+}
+
+class Temp extends Operand {
+    public Temp(int id) {
+        myId = id;
+    }
+
+    public int id() {
+        return myId;
+    }
+
+	// Register assigned by RegAlloc (null if spilled) //
+	public String reg() {
+		return myReg;
+	}
+
+	public void setReg(String reg) {
+		myReg = reg;
+	}
+
+	// Spill slot (offset from FP) assigned by RegAlloc //
+	public int spillOffset() {
+		return mySpillOffset;
+	}
+
+	public void setSpillOffset(int offset) {
+		mySpillOffset = offset;
+	}
+
+    public String toString() {
+        return "t" + myId;
+    }
+
+    private int myId;
+    private String myReg = null;
+    private int mySpillOffset = -1;
+}
+
+class Const extends Operand {
+    public Const(int value) {
+        myValue = value;
+    }
+
+    public int value() {
+        return myValue;
+    }
+
+    public boolean equals(Object o) {
+        return (o instanceof Const) && ((Const)o).myValue == myValue;
+    }
+
+    public int hashCode() {
+        return myValue;
+    }
+
+    public String toString() {
+        return "" + myValue;
+    }
+
+    private int myValue;
+}
+
+class Var extends Operand {
+    /**
+     * A variable (sym) or one of its struct fields, fieldOffset bytes past
+     * the start of the variable. name is for printing only.
+     */
+    public Var(SemSym sym, String name, int fieldOffset) {
+        mySym = sym;
+        myName = name;
+        myFieldOffset = fieldOffset;
+    }
+
+    public SemSym sym() {
+        return mySym;
+    }
+
+    public boolean isGlobal() {
+        return mySym.isGlobal();
+    }
+
+    /**
+     * Label of a global variable (plus field offset), e.g., _s+8
+     */
+    public String label() {
+        String base = "_" + mySym.getName();
+        if (myFieldOffset == 0)
+            return base;
+        return base + "+" + myFieldOffset;
+    }
+
+    /**
+     * Distance below FP of a local variable (or field of one)
+     */
+    public int frameOffset() {
+        return mySym.getOffset() - myFieldOffset;
+    }
+
+    public int fieldOffset() {
+        return myFieldOffset;
+    }
+
+    public boolean equals(Object o) {
+        if (!(o instanceof Var))
+            return false;
+        Var v = (Var)o;
+        return v.mySym == mySym && v.myFieldOffset == myFieldOffset;
+    }
+
+    public int hashCode() {
+        return mySym.hashCode() * 31 + myFieldOffset;
+    }
+
+    public String toString() {
+        return myName;
+    }
+
+    private SemSym mySym;
+    private String myName;
+    private int myFieldOffset;
+}
+
+// **********************************************************************
+// Quad and its subclasses
+// **********************************************************************
+
+abstract class Quad implements Cloneable {
+	// operators for BinOpQuad, UnOpQuad and CondJumpQuad //
+	public static final int ADD = 0;
+	public static final int SUB = 1;
+	public static final int MUL = 2;
+	public static final int DIV = 3;
+	public static final int AND = 4;
+	public static final int OR  = 5;
+	public static final int EQ  = 6;
+	public static final int NE  = 7;
+	public static final int LT  = 8;
+	public static final int GT  = 9;
+	public static final int LE  = 10;
+	public static final int GE  = 11;
+	public static final int NEG = 12;
+	public static final int NOT = 13;
+
+	protected static final String[] OPNAMES = {
+		"+", "-", "*", "/", "&&", "||", "==", "!=", "<", ">", "<=", ">=",
+		"-", "!"
+	};
+
+	// MIPS branch taken when the relation holds //
+	protected static final String[] BRANCHES = {
+		"", "", "", "", "", "", "beq", "bne", "blt", "bgt", "ble", "bge"
+	};
+
+	/**
+	 * The relational operator that holds exactly when relop does not
+	 */
+	public static int negate(int relop) {
+		switch (relop) {
+		case EQ: return NE;
+		case NE: return EQ;
+		case LT: return GE;
+		case GE: return LT;
+		case GT: return LE;
+		default: return GT; // LE
+		}
+	}
+
+	/**
+	 * The operator giving the same result with its operands swapped
+	 * (-1 if there is none)
+	 */
+	public static int mirror(int op) {
+		switch (op) {
+		case ADD: case MUL: case AND: case OR: case EQ: case NE:
+			return op;
+		case LT: return GT;
+		case GT: return LT;
+		case LE: return GE;
+		case GE: return LE;
+		default: return -1; // SUB, DIV, NEG, NOT
+		}
+	}
+
+	/**
+	 * Value of val1 op val2 (op val1 for NEG and NOT), booleans being 1
+	 * and 0; null for a division by zero, which is left to trap at run
+	 * time
+	 */
+	public static Integer evaluate(int op, int val1, int val2) {
+		switch (op) {
+		case ADD: return val1 + val2;
+		case SUB: return val1 - val2;
+		case MUL: return val1 * val2;
+		case DIV: return val2 == 0 ? null : (Integer)(val1 / val2);
+		case AND: return (val1 != 0 && val2 != 0) ? 1 : 0;
+		case OR:  return (val1 != 0 || val2 != 0) ? 1 : 0;
+		case EQ:  return val1 == val2 ? 1 : 0;
+		case NE:  return val1 != val2 ? 1 : 0;
+		case LT:  return val1 < val2 ? 1 : 0;
+		case GT:  return val1 > val2 ? 1 : 0;
+		case LE:  return val1 <= val2 ? 1 : 0;
+		case GE:  return val1 >= val2 ? 1 : 0;
+		case NEG: return -val1;
+		default:  return val1 == 0 ? 1 : 0; // NOT
+		}
+	}
+
+	/**
+	 * Operand written by this quad (null if none)
+	 */
+	public Operand def() {
+		return null;
+	}
+
+	/**
+	 * Operands read by this quad
+	 */
+	public List<Operand> uses() {
+		return new LinkedList<Operand>();
+	}
+
+	/**
+	 * Make the quad write to instead (if it writes anything)
+	 */
+	public void replaceDef(Operand to) {
+	}
+
+	/**
+	 * Rename label from to to (in a label or jump quad)
+	 */
+	public void replaceLabel(String from, String to) {
+	}
+
+	/**
+	 * A copy of this quad, to be changed without affecting the original
+	 */
+	public Quad copy() {
+		try {
+			return (Quad)clone();
+		} catch (CloneNotSupportedException ex) {
+			throw new RuntimeException(ex);
+		}
+	}
+
+	/**
+	 * Make the quad read to instead of from (every occurrence)
+	 */
+	public void replaceUse(Operand from, Operand to) {
+	}
+
+	// to if op is from, else op //
+	protected static Operand replace(Operand op, Operand from, Operand to) {
+		if (op != null && op.equals(from))
+			return to;
+		return op;
+	}
+
+	/**
+	 * Does control never fall through to the next quad?
+	 */
+	public boolean isUnconditionalJump() {
+		return false;
+	}
+
+	/**
+	 * Label this quad may jump to (null if none)
+	 */
+	public String target() {
+		return null;
+	}
+
+	/**
+	 * Times the quad ran in the profiled run (-1 if unknown; see Profile)
+	 */
+	public int count() {
+		return myCount;
+	}
+
+	public void setCount(int count) {
+		myCount = count;
+	}
+
+	abstract public void codeGen(IRFunction fn);
+	abstract public String toString();
+
+	private int myCount = -1;
+}
+
+class MoveQuad extends Quad {
+    public MoveQuad(Operand dst, Operand src) {
+        myDst = dst;
+        mySrc = src;
+    }
+
+    public Operand dst() {
+        return myDst;
+    }
+
+    public Operand src() {
+        return mySrc;
+    }
+
+	public Operand def() {
+		return myDst;
+	}
+
+	public void replaceDef(Operand to) {
+		myDst = to;
+	}
+
+	public List<Operand> uses() {
+		List<Operand> L = new LinkedList<Operand>();
+		L.add(mySrc);
+		return L;
+	}
+
+	public void replaceUse(Operand from, Operand to) {
+		mySrc = replace(mySrc, from, to);
+	}
+
+	/**
+	 * codeGen
+	 */
+	public void codeGen(IRFunction fn) {
+		Burs.generate(this);
+	}
+
+    public String toString() {
+        return myDst + " = " + mySrc;
+    }
+
+    private Operand myDst;
+    private Operand mySrc;
+}
+
+class BinOpQuad extends Quad {
+    public BinOpQuad(Operand dst, int op, Operand src1, Operand src2) {
+        myDst = dst;
+        myOp = op;
+        mySrc1 = src1;
+        mySrc2 = src2;
+    }
+
+    public Operand dst() {
+        return myDst;
+    }
+
+    public int op() {
+        return myOp;
+    }
+
+    public Operand src1() {
+        return mySrc1;
+    }
+
+    public Operand src2() {
+        return mySrc2;
+    }
+
+    // does an ADD or SUB wrap around on overflow (addu) rather than trap
+    // (add)?  Only for those the optimizer makes up, like LoopOpt's
+    // running products, where the source had no add to trap //
+    public boolean wraps() {
+        return myWraps;
+    }
+
+    public void setWraps(boolean wraps) {
+        myWraps = wraps;
+    }
+
+	public Operand def() {
+		return myDst;
+	}
+
+	public void replaceDef(Operand to) {
+		myDst = to;
+	}
+
+	public List<Operand> uses() {
+		List<Operand> L = new LinkedList<Operand>();
+		L.add(mySrc1);
+		L.add(mySrc2);
+		return L;
+	}
+
+	public void replaceUse(Operand from, Operand to) {
+		mySrc1 = replace(mySrc1, from, to);
+		mySrc2 = replace(mySrc2, from, to);
+	}
+
+	/**
+	 * codeGen
+	 */
+	public void codeGen(IRFunction fn) {
+		Burs.generate(this);
+	}
+
+    public String toString() {
+        return myDst + " = " + mySrc1 + " " + OPNAMES[myOp] +
+               (myWraps ? "u " : " ") + mySrc2;
+    }
+
+    private Operand myDst;
+    private int myOp;
+    private Operand mySrc1;
+    private Operand mySrc2;
+    private boolean myWraps = false;
+}
+
+class UnOpQuad extends Quad {
+    public UnOpQuad(Operand dst, int op, Operand src) {
+        myDst = dst;
+        myOp = op;
+        mySrc = src;
+    }
+
+    public Operand dst() {
+        return myDst;
+    }
+
+    public int op() {
+        return myOp;
+    }
+
+    public Operand src() {
+        return mySrc;
+    }
+
+	public Operand def() {
+		return myDst;
+	}
+
+	public void replaceDef(Operand to) {
+		myDst = to;
+	}
+
+	public List<Operand> uses() {
+		List<Operand> L = new LinkedList<Operand>();
+		L.add(mySrc);
+		return L;
+	}
+
+	public void replaceUse(Operand from, Operand to) {
+		mySrc = replace(mySrc, from, to);
+	}
+
+	/**
+	 * codeGen
+	 */
+	public void codeGen(IRFunction fn) {
+		Burs.generate(this);
+	}
+
+    public String toString() {
+        return myDst + " = " + OPNAMES[myOp] + mySrc;
+    }
+
+    private Operand myDst;
+    private int myOp;
+    private Operand mySrc;
+}
+
+class LabelQuad extends Quad {
+    public LabelQuad(String label) {
+        myLabel = label;
+    }
+
+    public String label() {
+        return myLabel;
+    }
+
+	public void replaceLabel(String from, String to) {
+		if (myLabel.equals(from))
+			myLabel = to;
+	}
+
+	/**
+	 * codeGen
+	 */
+	public void codeGen(IRFunction fn) {
+		Codegen.genLabel(myLabel);
+	}
+
+    public String toString() {
+        return myLabel + ":";
+    }
+
+    private String myLabel;
+}
+
+class JumpQuad extends Quad {
+    public JumpQuad(String label) {
+        myLabel = label;
+    }
+
+	public boolean isUnconditionalJump() {
+		return true;
+	}
+
+	public String target() {
+		return myLabel;
+	}
+
+	public void replaceLabel(String from, String to) {
+		if (myLabel.equals(from))
+			myLabel = to;
+	}
+
+	/**
+	 * codeGen
+	 */
+	public void codeGen(IRFunction fn) {
+		Codegen.generate("b", myLabel);
+	}
+
+    public String toString() {
+        return "goto " + myLabel;
+    }
+
+    private String myLabel;
+}
+
+class CondJumpQuad extends Quad {
+    /**
+     * Jump to label if (src1 op src2) holds, op being a relational operator
+     */
+    public CondJumpQuad(int op, Operand src1, Operand src2, String label) {
+        myOp = op;
+        mySrc1 = src1;
+        mySrc2 = src2;
+        myLabel = label;
+    }
+
+    public int op() {
+        return myOp;
+    }
+
+    public Operand src1() {
+        return mySrc1;
+    }
+
+    public Operand src2() {
+        return mySrc2;
+    }
+
+	public List<Operand> uses() {
+		List<Operand> L = new LinkedList<Operand>();
+		L.add(mySrc1);
+		L.add(mySrc2);
+		return L;
+	}
+
+	public void replaceUse(Operand from, Operand to) {
+		mySrc1 = replace(mySrc1, from, to);
+		mySrc2 = replace(mySrc2, from, to);
+	}
+
+	public String target() {
+		return myLabel;
+	}
+
+	public void replaceLabel(String from, String to) {
+		if (myLabel.equals(from))
+			myLabel = to;
+	}
+
+	/**
+	 * codeGen
+	 */
+	public void codeGen(IRFunction fn) {
+		Burs.generate(this);
+	}
+
+    public String toString() {
+        return "if " + mySrc1 + " " + OPNAMES[myOp] + " " + mySrc2 +
+               " goto " + myLabel;
+    }
+
+    private int myOp;
+    private Operand mySrc1;
+    private Operand mySrc2;
+    private String myLabel;
+}
+
+class CallQuad extends Quad {
+    public CallQuad(Operand dst, String name, List<Operand> args) {
+        myDst = dst;
+        myName = name;
+        myArgs = args;
+    }
+
+    public Operand dst() {
+        return myDst;
+    }
+
+    public String name() {
+        return myName;
+    }
+
+    public List<Operand> args() {
+        return myArgs;
+    }
+
+	public Operand def() {
+		return myDst;
+	}
+
+	public void replaceDef(Operand to) {
+		myDst = to;
+	}
+
+	public List<Operand> uses() {
+		return new LinkedList<Operand>(myArgs);
+	}
+
+	public void replaceUse(Operand from, Operand to) {
+		for (int k = 0; k < myArgs.size(); k++)
+			myArgs.set(k, replace(myArgs.get(k), from, to));
+	}
+
+	/**
+	 * Registers (holding temps live across this call) that have to be
+	 * saved around it -- set by RegAlloc
+	 */
+	public void setSaved(List<String> regs) {
+		mySaved = regs;
+	}
+
+	/**
+	 * Make this a tail call: its result is returned right away, so the
+	 * frame is popped first and the callee returns straight to our caller
+	 */
+	public void setTail() {
+		myTail = true;
+		myDst = null;
+	}
+
+	/**
+	 * What CallGraph found out about the callee (see there): a pure one
+	 * touches no globals and does no I/O, a safe one also surely returns
+	 */
+	public void setPurity(boolean pure, boolean safe) {
+		myPure = pure;
+		mySafe = safe;
+	}
+
+	public boolean isPure() {
+		return myPure;
+	}
+
+	public boolean isSafe() {
+		return mySafe;
+	}
+
+	public boolean isUnconditionalJump() {
+		return myTail;
+	}
+
+	public Quad copy() {
+		CallQuad q = (CallQuad)super.copy();
+		q.myArgs = new ArrayList<Operand>(myArgs);
+		q.mySaved = new LinkedList<String>();
+		return q;
+	}
+
+	/**
+	 * codeGen
+	 */
+	public void codeGen(IRFunction fn) {
+		if (myTail) {
+			// the actuals all fit in registers - nothing else to pop //
+			for (int k = 0; k < myArgs.size(); k++)
+				Codegen.genLoadInto(myArgs.get(k), Codegen.ARGREGS[k]);
+			fn.genPopFrame();
+			Codegen.generate("j", IRFunction.label(myName));
+			return;
+		}
+
+		// Save live registers - the callee draws from the same pool //
+		for (String reg : mySaved)
+			Codegen.genPush(reg);
+
+		// push the actuals that don't fit in registers, in order //
+		int numRegs = Math.min(myArgs.size(), Codegen.ARGREGS.length);
+		for (int k = numRegs; k < myArgs.size(); k++)
+			Codegen.genPush(Codegen.genLoad(myArgs.get(k), Codegen.V1));
+
+		// and load the others into the argument registers //
+		for (int k = 0; k < numRegs; k++)
+			Codegen.genLoadInto(myArgs.get(k), Codegen.ARGREGS[k]);
+
+		Codegen.generate("jal", IRFunction.label(myName));
+
+		// Restore live registers //
+		for (int k = mySaved.size() - 1; k >= 0; k--)
+			Codegen.genPop(mySaved.get(k));
+
+		if (myDst != null)
+			Codegen.genStore(myDst, Codegen.V0);
+	}
+
+    public String toString() {
+        String str = "call " + myName + "(";
+        for (int k = 0; k < myArgs.size(); k++) {
+            if (k > 0)
+                str += ", ";
+            str += myArgs.get(k);
+        }
+        str += ")";
+        if (myTail)
+            return "tail " + str;
+        if (myDst != null)
+            return myDst + " = " + str;
+        return str;
+    }
+
+    private Operand myDst;   // possibly null
+    private String myName;
+    private List<Operand> myArgs;
+    private List<String> mySaved = new LinkedList<String>();
+    private boolean myTail = false;
+    private boolean myPure = false;
+    private boolean mySafe = false;
+}
+
+class ReturnQuad extends Quad {
+    public ReturnQuad(Operand src) {
+        mySrc = src;
+    }
+
+    public Operand src() {
+        return mySrc;
+    }
+
+	public List<Operand> uses() {
+		List<Operand> L = new LinkedList<Operand>();
+		if (mySrc != null)
+			L.add(mySrc);
+		return L;
+	}
+
+	public void replaceUse(Operand from, Operand to) {
+		mySrc = replace(mySrc, from, to);
+	}
+
+	public boolean isUnconditionalJump() {
+		return true;
+	}
+
+	/**
+	 * codeGen
+	 */
+	public void codeGen(IRFunction fn) {
+		if (mySrc != null)
+			Codegen.genLoadInto(mySrc, Codegen.V0);
+		fn.genReturn(this);
+	}
+
+    public String toString() {
+        if (mySrc == null)
+            return "return";
+        return "return " + mySrc;
+    }
+
+    private Operand mySrc;   // possibly null
+}
+
+class ArgQuad extends Quad {
+    /**
+     * Take the argument passed in register ARGREGS[index]
+     */
+    public ArgQuad(Operand dst, int index) {
+        myDst = dst;
+        myIndex = index;
+    }
+
+    public int index() {
+        return myIndex;
+    }
+
+	public Operand def() {
+		return myDst;
+	}
+
+	public void replaceDef(Operand to) {
+		myDst = to;
+	}
+
+	/**
+	 * codeGen
+	 */
+	public void codeGen(IRFunction fn) {
+		Codegen.genStore(myDst, Codegen.ARGREGS[myIndex]);
+	}
+
+    public String toString() {
+        return myDst + " = arg " + myIndex;
+    }
+
+    private Operand myDst;
+    private int myIndex;
+}
+
+class ReadQuad extends Quad {
+    public ReadQuad(Operand dst) {
+        myDst = dst;
+    }
+
+	public Operand def() {
+		return myDst;
+	}
+
+	public void replaceDef(Operand to) {
+		myDst = to;
+	}
+
+	/**
+	 * codeGen
+	 */
+	public void codeGen(IRFunction fn) {
+		// Buffered read (see IORuntime) //
+		Codegen.generate("jal", IORuntime.GETINT);
+
+		// Store what was read //
+		Codegen.genStore(myDst, Codegen.V0);
+	}
+
+    public String toString() {
+        return "read " + myDst;
+    }
+
+    private Operand myDst;
+}
+
+class WriteQuad extends Quad {
+    /**
+     * Write src, which is the address of a string if isString, else an
+     * int or bool
+     */
+    public WriteQuad(Operand src, boolean isString) {
+        mySrc = src;
+        myIsString = isString;
+    }
+
+    public Operand src() {
+        return mySrc;
+    }
+
+    public boolean isString() {
+        return myIsString;
+    }
+
+	public List<Operand> uses() {
+		List<Operand> L = new LinkedList<Operand>();
+		L.add(mySrc);
+		return L;
+	}
+
+	public void replaceUse(Operand from, Operand to) {
+		mySrc = replace(mySrc, from, to);
+	}
+
+	/**
+	 * codeGen
+	 */
+	public void codeGen(IRFunction fn) {
+		Burs.generate(this);
+	}
+
+    public String toString() {
+        return "write " + mySrc;
+    }
+
+    private Operand mySrc;
+    private boolean myIsString;
+}
+
+class LoadStrQuad extends Quad {
+    public LoadStrQuad(Operand dst, String strVal) {
+        myDst = dst;
+        myStrVal = strVal;
+    }
+
+    public String strVal() {
+        return myStrVal;
+    }
+
+	public Operand def() {
+		return myDst;
+	}
+
+	public void replaceDef(Operand to) {
+		myDst = to;
+	}
+
+	/**
+	 * codeGen
+	 */
+	public void codeGen(IRFunction fn) {
+		Burs.generate(this);
+	}
+
+    public String toString() {
+        return myDst + " = " + myStrVal;
+    }
+
+    private Operand myDst;
+    private String myStrVal;
+}
+
+class CountQuad extends Quad {
+    /**
+     * Add one to profile counter index (see Profile)
+     */
+    public CountQuad(int index) {
+        myIndex = index;
+    }
+
+    public int index() {
+        return myIndex;
+    }
+
+	/**
+	 * codeGen
+	 */
+	public void codeGen(IRFunction fn) {
+		String counter = Profile.COUNTS + "+" + 4 * myIndex;
+		Codegen.generate("lw", Codegen.V1, counter);
+		Codegen.generate("addu", Codegen.V1, Codegen.V1, "1");
+		Codegen.generate("sw", Codegen.V1, counter);
+	}
+
+    public String toString() {
+        return "count " + myIndex;
+    }
+
+    private int myIndex;
+}
+
+class PhiQuad extends Quad {
+    /**
+     * dst = the src of whichever of the block's numSrcs predecessors
+     * control came from (the srcs are in the order of the preds, and
+     * set by SSA as it renames)
+     */
+    public PhiQuad(Operand dst, int numSrcs) {
+        myDst = dst;
+        mySrcs = new ArrayList<Operand>();
+        for (int k = 0; k < numSrcs; k++)
+            mySrcs.add(null);
+    }
+
+    public Operand dst() {
+        return myDst;
+    }
+
+    public List<Operand> srcs() {
+        return mySrcs;
+    }
+
+    public void setSrc(int k, Operand src) {
+        mySrcs.set(k, src);
+    }
+
+	public Operand def() {
+		return myDst;
+	}
+
+	public void replaceDef(Operand to) {
+		myDst = to;
+	}
+
+	public List<Operand> uses() {
+		List<Operand> uses = new LinkedList<Operand>();
+		for (Operand src : mySrcs) {
+			if (src != null)
+				uses.add(src);
+		}
+		return uses;
+	}
+
+	public void replaceUse(Operand from, Operand to) {
+		for (int k = 0; k < mySrcs.size(); k++)
+			mySrcs.set(k, replace(mySrcs.get(k), from, to));
+	}
+
+	public Quad copy() {
+		PhiQuad q = (PhiQuad)super.copy();
+		q.mySrcs = new ArrayList<Operand>(mySrcs);
+		return q;
+	}
+
+	/**
+	 * codeGen
+	 * SSA translates phis into moves before code is generated.
+	 */
+	public void codeGen(IRFunction fn) {
+		System.err.println("Unexpected PhiQuad in PhiQuad.codeGen");
+		System.exit(-1);
+	}
+
+    public String toString() {
+        String str = myDst + " = phi(";
+        for (int k = 0; k < mySrcs.size(); k++) {
+            if (k > 0)
+                str += ", ";
+            str += mySrcs.get(k);
+        }
+        return str + ")";
+    }
+
+    private Operand myDst;
+    private List<Operand> mySrcs;
+}
+
+// **********************************************************************
+// BasicBlock, IRFunction, IRProgram
+// **********************************************************************
+
+class BasicBlock {
+    public BasicBlock(int id) {
+        myId = id;
+        myQuads = new ArrayList<Quad>();
+    }
+
+    public int id() {
+        return myId;
+    }
+
+    public List<Quad> quads() {
+        return myQuads;
+    }
+
+    /**
+     * Label starting this block (null if it doesn't start with one)
+     */
+    public String label() {
+        if (!myQuads.isEmpty() && myQuads.get(0) instanceof LabelQuad)
+            return ((LabelQuad)myQuads.get(0)).label();
+        return null;
+    }
+
+    /**
+     * Last quad of this block (null if empty)
+     */
+    public Quad last() {
+        if (myQuads.isEmpty())
+            return null;
+        return myQuads.get(myQuads.size() - 1);
+    }
+
+    /**
+     * Control flow edges (filled in by CFG)
+     */
+    public List<BasicBlock> succs() {
+        return mySuccs;
+    }
+
+    public List<BasicBlock> preds() {
+        return myPreds;
+    }
+
+    private int myId;
+    private List<Quad> myQuads;
+    private List<BasicBlock> mySuccs = new ArrayList<BasicBlock>();
+    private List<BasicBlock> myPreds = new ArrayList<BasicBlock>();
+}
+
+class IRFunction {
+    /**
+     * The first numRegFormals formals come in registers (see ArgQuad);
+     * the caller pushes the other formalsSize bytes of them
+     */
+    public IRFunction(String name, int numRegFormals, int formalsSize,
+                      int localsSize) {
+        myName = name;
+        myNumRegFormals = numRegFormals;
+        myFormalsSize = formalsSize;
+        myLocalsSize = localsSize;
+        myCode = new ArrayList<Quad>();
+    }
+
+    public String name() {
+        return myName;
+    }
+
+    public List<Quad> code() {
+        return myCode;
+    }
+
+	public void setCode(List<Quad> code) {
+		myCode = code;
+	}
+
+    /**
+     * Assembly label of the function with the given name
+     */
+    public static String label(String name) {
+        if (name.equals("main"))
+            return "main";
+        return "_" + name;
+    }
+
+    public String epilogueLabel() {
+        return "epilogue_" + myName;
+    }
+
+    public int formalsSize() {
+        return myFormalsSize;
+    }
+
+	public int localsSize() {
+		return myLocalsSize;
+	}
+
+	public void setLocalsSize(int size) {
+		myLocalsSize = size;
+	}
+
+	/**
+	 * Position in the argument list of the formal at offset (-1 if
+	 * offset is not a formal's); only formals passed on the stack have
+	 * offsets
+	 */
+	public int formalIndex(int offset) {
+		if (offset >= 0 && offset < myFormalsSize)
+			return myNumRegFormals + offset / 4;
+		return -1;
+	}
+
+    // **********************************************************************
+    // lowering helpers
+    // **********************************************************************
+
+    public Temp newTemp() {
+        return new Temp(myNumTemps++);
+    }
+
+    public int numTemps() {
+        return myNumTemps;
+    }
+
+    public String newLabel() {
+        return Codegen.nextLabel();
+    }
+
+    public void emit(Quad q) {
+        myCode.add(q);
+    }
+
+	/**
+	 * Read and write to instead of from throughout the code
+	 */
+	public void replaceAll(Operand from, Operand to) {
+		for (Quad q : myCode) {
+			q.replaceUse(from, to);
+			if (from.equals(q.def()))
+				q.replaceDef(to);
+		}
+	}
+
+	/**
+	 * Reserve a new 4-byte slot in the frame (below the locals) and
+	 * return its offset from FP
+	 */
+	public int newSpillSlot() {
+		int offset = myFormalsSize + 8 + myLocalsSize + mySpillSize;
+		mySpillSize += 4;
+		return offset;
+	}
+
+	/**
+	 * Split the code into basic blocks: a block starts at a label or
+	 * right after a jump, and ends with a jump or right before a label.
+	 */
+	public List<BasicBlock> basicBlocks() {
+		List<BasicBlock> blocks = new ArrayList<BasicBlock>();
+		BasicBlock curr = null;
+
+		for (Quad q : myCode) {
+			if (curr == null || q instanceof LabelQuad) {
+				if (curr == null || !curr.quads().isEmpty()) {
+					curr = new BasicBlock(blocks.size());
+					blocks.add(curr);
+				}
+			}
+			curr.quads().add(q);
+			if (q.target() != null || q.isUnconditionalJump())
+				curr = null;
+		}
+		return blocks;
+	}
+
+	/**
+	 * codeGen
+	 */
+	public void codeGen() {
+		RegAlloc.allocate(this);
+
+		// Preamble //
+		Codegen.generate(".text");
+
+		if(myName.equals("main")){
+			Codegen.generate(".globl main");
+			Codegen.genLabel("main");
+			Codegen.genLabel("__start");
+		}
+		else
+			Codegen.genLabel(label(myName)); // normal functions
+
+		// Leaf functions keep SP fixed, so the frame is addressed from
+		// it and FP is left alone; functions with an empty frame only
+		// save the return address //
+		myLeaf = isLeaf();
+		int frameSize = myLocalsSize + mySpillSize;
+		myFrameless = frameSize == 0 && myFormalsSize == 0;
+		// stack space a leaf takes (slots for RA and control link too,
+		// so offsets stay as they are with FP) //
+		myLeafSize = frameSize == 0 ? 0 : frameSize + 8;
+
+		if (myLeaf) {
+			if (myLeafSize > 0)
+				Codegen.generate("subu", Codegen.SP, Codegen.SP, myLeafSize);
+			Codegen.setFrame(Codegen.SP, myFormalsSize + myLeafSize);
+		}
+		else if (myFrameless) {
+			// Push return addr //
+			Codegen.genPush(Codegen.RA);
+		}
+		else {
+			// Push return addr //
+			Codegen.genPush(Codegen.RA);
+			// PUsh control link //
+			Codegen.genPush(Codegen.FP);
+			// Set FP //
+			Codegen.generate("addu", Codegen.FP, Codegen.SP, myFormalsSize + 8);
+			// Push space for locals and spilled temps //
+			Codegen.generate("subu", Codegen.SP, Codegen.SP, frameSize);
+			Codegen.setFrame(Codegen.FP, 0);
+		}
+
+		// Instructions for the body, with the quads tiled as trees //
+		Burs.generate(this);
+
+		// Epilogue //
+		Codegen.genLabel(epilogueLabel());
+		genPopFrame();
+
+		// Return from function - also handle main //
+		if(myName.equals("main")){
+			// print what is left in the output buffer //
+			if (IORuntime.isGenerated())
+				Codegen.generate("jal", IORuntime.FLUSH);
+			if (Profile.isGenerating())
+				Profile.genDump();
+			Codegen.generate("li", Codegen.V0, 10);
+			Codegen.generate("syscall");
+		}
+		else
+			Codegen.generate("jr", Codegen.RA); // return
+	}
+
+	/**
+	 * genReturn
+	 * Leave the function from ret: with a copy of the epilogue where it
+	 * is short (no FP to restore) and ret is not right before it, else
+	 * by a branch to it.
+	 */
+	public void genReturn(Quad ret) {
+		boolean last = myCode.get(myCode.size() - 1) == ret;
+		if (!last && !myName.equals("main") && (myLeaf || myFrameless)) {
+			genPopFrame();
+			Codegen.generate("jr", Codegen.RA);
+		}
+		else
+			Codegen.generate("b", epilogueLabel());
+	}
+
+	/**
+	 * genPopFrame
+	 * Restore RA, FP and SP as they were before the call (popping the
+	 * actuals too); used by the epilogue and by tail calls.
+	 */
+	public void genPopFrame() {
+		if (myLeaf) {
+			// Pop the frame and the actuals //
+			if (myFormalsSize + myLeafSize > 0)
+				Codegen.generate("addu", Codegen.SP, Codegen.SP,
+				                 myFormalsSize + myLeafSize);
+		}
+		else if (myFrameless) {
+			// Return addr //
+			Codegen.genPop(Codegen.RA);
+		}
+		else {
+			// Return addr //
+			Codegen.generateIndexed("lw", Codegen.RA, Codegen.FP, -myFormalsSize);
+			// Control Link //
+			Codegen.generate("move", Codegen.T0, Codegen.FP);
+			// Restore FP //
+			Codegen.generateIndexed("lw", Codegen.FP, Codegen.FP, -myFormalsSize - 4);
+			// Restore SP //
+			Codegen.generate("move", Codegen.SP, Codegen.T0);
+		}
+	}
+
+	// does the function make no calls (I/O included - it goes through
+	// IORuntime)? //
+	private boolean isLeaf() {
+		for (Quad q : myCode) {
+			if (q instanceof CallQuad || q instanceof ReadQuad ||
+			    q instanceof WriteQuad)
+				return false;
+		}
+		return true;
+	}
+
+    public void print(PrintWriter p) {
+        p.println(myName + ":");
+        for (Quad q : myCode) {
+            String count = q.count() < 0 ? "" : "    [" + q.count() + "]";
+            if (q instanceof LabelQuad)
+                p.println(q + count);
+            else
+                p.println("    " + q + count);
+        }
+        p.println();
+    }
+
+    private String myName;
+    private List<Quad> myCode;
+    private int myNumTemps = 0;
+    private int myNumRegFormals;
+    private int myFormalsSize;
+    private int myLocalsSize;
+    private int mySpillSize = 0;
+    // frame shape, chosen by codeGen //
+    private boolean myLeaf;
+    private boolean myFrameless;
+    private int myLeafSize;
+}
+
+class IRProgram {
+    public IRProgram() {
+        myGlobals = new ArrayList<SemSym>();
+        myGlobalSizes = new ArrayList<Integer>();
+        myFunctions = new ArrayList<IRFunction>();
+    }
+
+    public void addGlobal(SemSym sym, int size) {
+        myGlobals.add(sym);
+        myGlobalSizes.add(size);
+    }
+
+    public void addFunction(IRFunction fn) {
+        myFunctions.add(fn);
+    }
+
+    public List<IRFunction> functions() {
+        return myFunctions;
+    }
+
+	/**
+	 * optimize
+	 * Run the IR optimization passes over every function.
+	 */
+	public void optimize() {
+		// counters in, or counts back, while the code is as lowered //
+		Profile.apply(this);
+		DeadCode.removeUncalled(this);
+		// clean callees up before they are copied into their callers //
+		for (IRFunction fn : myFunctions) {
+			DeadCode.optimize(fn);
+			TailCall.eliminateSelfRecursion(fn);
+		}
+		Specializer.specialize(this);
+		Inliner.inline(this);
+		DeadCode.removeUncalled(this);
+		// which calls later passes may move, merge or drop //
+		new CallGraph(this).markCalls();
+
+		for (IRFunction fn : myFunctions) {
+			DeadCode.optimize(fn);
+			CSE.optimize(fn);
+			LoopOpt.optimize(fn);
+			Unroller.unroll(fn);
+			SSA.optimize(fn);
+			TailCall.markTailCalls(fn);
+			BlockLayout.arrange(fn);
+			DeadCode.optimize(fn);
+			FrameLayout.assignSlots(fn);
+		}
+	}
+
+	/**
+	 * codeGen
+	 */
+	public void codeGen() {
+		// Global variables (written out with the data segment) //
+		for (int k = 0; k < myGlobals.size(); k++)
+			Codegen.data().addGlobal("_" + myGlobals.get(k).getName(),
+			                         myGlobalSizes.get(k));
+		Profile.addCounters();
+
+		// I/O goes through IORuntime - emit it if there is any //
+		if (usesIO())
+			IORuntime.generate();
+
+		for (IRFunction fn : myFunctions)
+			fn.codeGen();
+	}
+
+	private boolean usesIO() {
+		for (IRFunction fn : myFunctions) {
+			for (Quad q : fn.code()) {
+				if (q instanceof ReadQuad || q instanceof WriteQuad)
+					return true;
+			}
+		}
+		return false;
+	}
+
+    public void print(PrintWriter p) {
+        for (int k = 0; k < myGlobals.size(); k++)
+            p.println("global " + myGlobals.get(k).getName() + " [" +
+                      myGlobalSizes.get(k) + "]");
+        p.println();
+        for (IRFunction fn : myFunctions)
+            fn.print(p);
+    }
+
+    private List<SemSym> myGlobals;
+    private List<Integer> myGlobalSizes;
+    private List<IRFunction> myFunctions;
+}